@@ -0,0 +1,9 @@
+package dk.northtech.dasscofileproxy.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+@ConfigurationProperties("cache")
+public record CacheAdmissionConfig(DataSize admissionSizeThreshold, int admissionMinFrequency) {
+
+}
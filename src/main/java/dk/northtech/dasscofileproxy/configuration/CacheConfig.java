@@ -0,0 +1,10 @@
+package dk.northtech.dasscofileproxy.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties("cache")
+public record CacheConfig(int fillMaxAttempts, Duration fillRetryBackoff, Duration negativeLookupTtl, double bloomFilterFpp, Duration readAccessTtl) {
+
+}
@@ -0,0 +1,11 @@
+package dk.northtech.dasscofileproxy.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * How the disk space of the cache is divided between pinned files, files cached block by block and the partitions.
+ */
+@ConfigurationProperties("cache")
+public record CacheDiskConfig(int pinnedDiskspace, int prefetchConcurrency, int partialDiskspace, String partitionQuotas, int partitionDefaultDiskspace) {
+
+}
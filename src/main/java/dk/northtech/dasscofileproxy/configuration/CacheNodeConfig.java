@@ -0,0 +1,13 @@
+package dk.northtech.dasscofileproxy.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * How this instance identifies itself to, and reaches, the other instances that share the database.
+ */
+@ConfigurationProperties("cache")
+public record CacheNodeConfig(String nodeId, Duration invalidationBatchWindow, String nodeUrl, String peerSecret, Duration peerTimeout) {
+
+}
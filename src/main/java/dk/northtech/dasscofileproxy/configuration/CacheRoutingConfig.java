@@ -0,0 +1,11 @@
+package dk.northtech.dasscofileproxy.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * How the requests for the files of an asset are sent to the instance that owns the asset, see CacheRouter.
+ */
+@ConfigurationProperties("cache")
+public record CacheRoutingConfig(String routing, String routingNodes, String publicUrl) {
+
+}
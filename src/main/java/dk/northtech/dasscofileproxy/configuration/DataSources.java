@@ -38,7 +38,8 @@ public class DataSources {
             .registerRowMapper(ConstructorMapper.factory(UserAccess.class))
             .registerRowMapper(ConstructorMapper.factory(SharedAsset.class))
             .registerRowMapper(ConstructorMapper.factory(DasscoFile.class))
-            .registerRowMapper(ConstructorMapper.factory(CacheInfo.class));
+            .registerRowMapper(ConstructorMapper.factory(CacheInfo.class))
+            .registerRowMapper(ConstructorMapper.factory(UploadJournalEntry.class));
 
   }
 }
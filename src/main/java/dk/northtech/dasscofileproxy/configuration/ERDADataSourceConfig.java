@@ -2,6 +2,7 @@ package dk.northtech.dasscofileproxy.configuration;
 
 import dk.northtech.dasscofileproxy.service.ErdaDataSource;
 import dk.northtech.dasscofileproxy.service.ErdaDataSource2;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.inject.Inject;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -9,15 +10,17 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 public class ERDADataSourceConfig {
     private StorageConfig storageConfig;
+    private MeterRegistry meterRegistry;
 
     @Inject
-    public ERDADataSourceConfig(StorageConfig storageConfig) {
+    public ERDADataSourceConfig(StorageConfig storageConfig, MeterRegistry meterRegistry) {
         this.storageConfig = storageConfig;
+        this.meterRegistry = meterRegistry;
     }
     
     @Bean
     public ErdaDataSource erdaDataSource() {
-        return new ErdaDataSource( true, storageConfig);
+        return new ErdaDataSource( true, storageConfig, meterRegistry);
     }
 
     @Bean
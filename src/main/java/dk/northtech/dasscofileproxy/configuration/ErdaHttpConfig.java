@@ -0,0 +1,10 @@
+package dk.northtech.dasscofileproxy.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties("erda-http")
+public record ErdaHttpConfig(Duration connectTimeout, Duration readTimeout, int maxConcurrentRequests, int maxAttempts, Duration retryBackoff) {
+
+}
@@ -1,5 +1,6 @@
 package dk.northtech.dasscofileproxy.configuration;
 
+import dk.northtech.dasscofileproxy.webapi.CacheRoutingFilter;
 import dk.northtech.dasscofileproxy.webapi.exceptionmappers.BadRequestExceptionMapper;
 import dk.northtech.dasscofileproxy.webapi.exceptionmappers.DaSScoExceptionMapper;
 import dk.northtech.dasscofileproxy.webapi.exceptionmappers.IllegalArguementExceptionMapper;
@@ -18,6 +19,7 @@ public class JerseyApplicationConfig extends ResourceConfig {
     register(SFTPApi.class);
     register(RolesAllowedDynamicFeature.class);
     register(ClientAbortInterceptor.class);
+    register(CacheRoutingFilter.class);
     register(IllegalArguementExceptionMapper.class);
     register(BadRequestExceptionMapper.class);
     register(DaSScoExceptionMapper.class);
@@ -31,5 +33,7 @@ public class JerseyApplicationConfig extends ResourceConfig {
     register(AssetFiles.class);
     register(LargeFiles.class);
     register(Files.class);
+    register(CachePins.class);
+    register(InternalCache.class);
   }
 }
@@ -4,9 +4,9 @@ import org.jdbi.v3.core.mapper.reflect.JdbiConstructor;
 
 import java.time.Instant;
 
-public record CacheInfo(String path, Instant creationDatetime, Instant expiration_datetime, FileSyncStatus syncStatus, boolean deleteAfterSync, long sizeBytes, long fileCacheId, long fileId) {
+public record CacheInfo(String path, Instant creationDatetime, Instant expiration_datetime, FileSyncStatus syncStatus, boolean deleteAfterSync, long sizeBytes, long fileCacheId, long fileId, boolean pinned) {
     @JdbiConstructor
-    public CacheInfo(String path, Instant creationDatetime, Instant expiration_datetime, FileSyncStatus syncStatus, boolean deleteAfterSync, long sizeBytes, long fileCacheId, long fileId) {
+    public CacheInfo(String path, Instant creationDatetime, Instant expiration_datetime, FileSyncStatus syncStatus, boolean deleteAfterSync, long sizeBytes, long fileCacheId, long fileId, boolean pinned) {
         this.path = path;
         this.creationDatetime = creationDatetime;
         this.expiration_datetime = expiration_datetime;
@@ -15,9 +15,18 @@ public record CacheInfo(String path, Instant creationDatetime, Instant expiratio
         this.sizeBytes = sizeBytes;
         this.fileCacheId = fileCacheId;
         this.fileId = fileId;
+        this.pinned = pinned;
+    }
+
+    public CacheInfo(String path, Instant creationDatetime, Instant expiration_datetime, FileSyncStatus syncStatus, boolean deleteAfterSync, long sizeBytes, long fileCacheId, long fileId) {
+        this(path, creationDatetime, expiration_datetime, syncStatus, deleteAfterSync, sizeBytes, fileCacheId, fileId, false);
     }
 
     public CacheInfo(String path, Instant expiration_datetime, long fileId) {
-        this(path, null, expiration_datetime, null, false, 0, 0, fileId);
+        this(path, expiration_datetime, fileId, false);
+    }
+
+    public CacheInfo(String path, Instant expiration_datetime, long fileId, boolean pinned) {
+        this(path, null, expiration_datetime, null, false, 0, 0, fileId, pinned);
     }
 }
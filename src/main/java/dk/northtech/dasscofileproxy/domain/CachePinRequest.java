@@ -0,0 +1,14 @@
+package dk.northtech.dasscofileproxy.domain;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.List;
+
+public record CachePinRequest(
+        @Schema(description = "Assets whose files should be pinned", example = "[\"ti-a01-202305241657\"]")
+        List<String> asset_guids,
+        @Schema(description = "Institution of the collection to pin, used together with collection", example = "NNAD")
+        String institution,
+        @Schema(description = "Collection whose files should be pinned, used together with institution", example = "test-collection")
+        String collection) {
+}
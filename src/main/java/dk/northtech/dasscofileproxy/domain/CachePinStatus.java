@@ -0,0 +1,14 @@
+package dk.northtech.dasscofileproxy.domain;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+public record CachePinStatus(
+        @Schema(description = "The number of files that are pinned in the cache", example = "120")
+        int pinned_files,
+        @Schema(description = "The total size of the pinned files", example = "1048576000")
+        long pinned_bytes,
+        @Schema(description = "The disk space reserved for pinned files", example = "2097152000")
+        long budget_bytes,
+        @Schema(description = "The number of pinned files that are waiting to be fetched from ERDA", example = "12")
+        int prefetch_pending) {
+}
@@ -0,0 +1,18 @@
+package dk.northtech.dasscofileproxy.domain;
+
+import org.jdbi.v3.core.mapper.reflect.JdbiConstructor;
+
+/**
+ * A file that is known to be on ERDA with the given size and CRC. The local modification time is that of the local copy
+ * the entry was recorded from, so an unchanged local file is recognized without reading it. An entry that is not
+ * confirmed is an upload that was started, ERDA may only have the first part of the file.
+ */
+public record UploadJournalEntry(String remotePath, long sizeBytes, long crc, Long localModified, boolean confirmed) {
+    @JdbiConstructor
+    public UploadJournalEntry {
+    }
+
+    public UploadJournalEntry(String remotePath, long sizeBytes, long crc, Long localModified) {
+        this(remotePath, sizeBytes, crc, localModified, true);
+    }
+}
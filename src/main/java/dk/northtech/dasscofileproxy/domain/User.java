@@ -2,6 +2,7 @@ package dk.northtech.dasscofileproxy.domain;
 
 import io.swagger.v3.oas.annotations.media.Schema;
 
+import java.time.Instant;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -10,6 +11,7 @@ public class User {
     public String username;
     public String token;
     public String keycloakId;
+    public Instant tokenExpiresAt;
     @Schema(description = "Role/s for the user", example = "ADMIN")
     public Set<String> roles = new HashSet<>();
 
@@ -0,0 +1,28 @@
+package dk.northtech.dasscofileproxy.repository;
+
+import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.customizer.BindList;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
+import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+
+import java.util.List;
+
+public interface BlobRepository {
+    @SqlUpdate("""
+            INSERT INTO blob(hash, size_bytes, ref_count, creation_datetime)
+            VALUES (:hash, :sizeBytes, 1, now())
+            ON CONFLICT (hash) DO UPDATE SET ref_count = blob.ref_count + 1
+            """)
+    void addReference(@Bind String hash, @Bind long sizeBytes);
+
+    // The file system is the source of truth, the reference counts are corrected from the link counts of the blobs.
+    @SqlBatch("""
+            INSERT INTO blob(hash, size_bytes, ref_count, creation_datetime)
+            VALUES (:hash, :sizeBytes, :refCount, now())
+            ON CONFLICT (hash) DO UPDATE SET ref_count = excluded.ref_count
+            """)
+    void setReferenceCounts(@Bind("hash") List<String> hashes, @Bind("sizeBytes") List<Long> sizes, @Bind("refCount") List<Integer> refCounts);
+
+    @SqlUpdate("DELETE FROM blob WHERE hash IN (<hashes>)")
+    void deleteBlobs(@BindList List<String> hashes);
+}
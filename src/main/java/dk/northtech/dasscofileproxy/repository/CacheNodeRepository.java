@@ -0,0 +1,47 @@
+package dk.northtech.dasscofileproxy.repository;
+
+import org.jdbi.v3.sqlobject.config.KeyColumn;
+import org.jdbi.v3.sqlobject.config.ValueColumn;
+import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.statement.SqlQuery;
+import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+public interface CacheNodeRepository {
+
+    @SqlUpdate("""
+            INSERT INTO cache_node(node_id, url, heartbeat_datetime)
+            VALUES (:nodeId, :url, now())
+            ON CONFLICT (node_id) DO UPDATE SET url = excluded.url, heartbeat_datetime = excluded.heartbeat_datetime
+            """)
+    void heartbeat(@Bind String nodeId, @Bind String url);
+
+    @SqlQuery("SELECT node_id, url FROM cache_node WHERE heartbeat_datetime > :aliveSince")
+    @KeyColumn("node_id")
+    @ValueColumn("url")
+    Map<String, String> getAliveNodes(@Bind Instant aliveSince);
+
+    @SqlUpdate("UPDATE cache_node SET public_url = :publicUrl WHERE node_id = :nodeId")
+    void setPublicUrl(@Bind String nodeId, @Bind String publicUrl);
+
+    @SqlQuery("SELECT node_id, public_url FROM cache_node WHERE heartbeat_datetime > :aliveSince AND public_url IS NOT NULL")
+    @KeyColumn("node_id")
+    @ValueColumn("public_url")
+    Map<String, String> getAlivePublicUrls(@Bind Instant aliveSince);
+
+    // The other live instances that have the file in their cache, the most recently seen first.
+    @SqlQuery("""
+            SELECT cn.url
+            FROM file_cache fc
+            INNER JOIN file f ON f.file_id = fc.file_id
+            INNER JOIN cache_node cn ON cn.node_id = fc.node_id
+            WHERE f.path = :path
+            AND fc.node_id <> :nodeId
+            AND cn.heartbeat_datetime > :aliveSince
+            ORDER BY cn.heartbeat_datetime DESC
+            """)
+    List<String> getPeerUrlsWithFile(@Bind String path, @Bind String nodeId, @Bind Instant aliveSince);
+}
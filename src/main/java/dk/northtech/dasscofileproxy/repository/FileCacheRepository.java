@@ -4,6 +4,7 @@ import dk.northtech.dasscofileproxy.domain.CacheInfo;
 import org.jdbi.v3.sqlobject.customizer.Bind;
 import org.jdbi.v3.sqlobject.customizer.BindList;
 import org.jdbi.v3.sqlobject.customizer.BindMethods;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
 import org.jdbi.v3.sqlobject.statement.SqlQuery;
 import org.jdbi.v3.sqlobject.statement.SqlUpdate;
 
@@ -11,6 +12,7 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 
+// Each instance has its own cache on its own disk, so the entries are scoped by the node id of the instance.
 public interface FileCacheRepository {
 
     @SqlQuery("""
@@ -22,43 +24,121 @@ public interface FileCacheRepository {
             , f.size_bytes
             , f.sync_status
             , f.delete_after_sync
+            , fc.pinned
             FROM file_cache fc
     LEFT JOIN file f ON f.file_id = fc.file_id 
     WHERE f.path = :path
+    AND fc.node_id = :nodeId
     """)
-    Optional<CacheInfo> getFileCacheByPath(@Bind String path);
+    Optional<CacheInfo> getFileCacheByPath(@Bind String path, @Bind String nodeId);
 
     @SqlUpdate("""
-            INSERT INTO file_cache(creation_datetime, expiration_datetime, file_id)
-            VALUES (now(), :expiration_datetime, :fileId)
+            INSERT INTO file_cache(creation_datetime, expiration_datetime, file_id, pinned, node_id)
+            VALUES (now(), :expiration_datetime, :fileId, :pinned, :nodeId)
             """)
-    void insertCache(@BindMethods CacheInfo cacheInfo);
+    void insertCache(@BindMethods CacheInfo cacheInfo, @Bind String nodeId);
 
+    @SqlBatch("""
+            INSERT INTO file_cache(creation_datetime, expiration_datetime, file_id, pinned, node_id)
+            VALUES (now(), :expiration_datetime, :fileId, :pinned, :nodeId)
+            """)
+    void insertCaches(@BindMethods List<CacheInfo> cacheInfos, @Bind String nodeId);
+
+    @SqlQuery("""
+            SELECT fc.file_cache_id
+                , fc.file_id
+                , fc.expiration_datetime
+                , fc.creation_datetime
+                , f.path
+                , f.size_bytes
+                , f.sync_status
+                , f.delete_after_sync
+            , fc.pinned
+            FROM file_cache fc
+            INNER JOIN file f ON f.file_id = fc.file_id
+            WHERE fc.file_id IN (<fileIds>)
+            AND fc.node_id = :nodeId
+            """)
+    List<CacheInfo> getFileCachesByFileIds(@BindList List<Long> fileIds, @Bind String nodeId);
+
+    // Removes the entries of every node, for files that are deleted.
     @SqlUpdate("delete from file_cache where file_id in (<fileIds>)")
     void deleteFileCacheByFileIds(@BindList List<Long> fileIds);
 
+    @SqlUpdate("delete from file_cache where file_id in (<fileIds>) AND node_id = :nodeId")
+    void deleteFileCacheByFileIds(@BindList List<Long> fileIds, @Bind String nodeId);
+
     @SqlUpdate("""
             UPDATE file_cache f SET expiration_datetime = :expirationDate 
             WHERE f.file_cache_id IN (<ids>)
             """)
     void refreshCacheEntries(@BindList List<Long> ids, @Bind Instant expirationDate);
 
+    @SqlUpdate("DELETE FROM file_cache WHERE file_cache_id IN (<ids>)")
+    void deleteFileCacheByIds(@BindList List<Long> ids);
+
+    @SqlQuery("""
+            SELECT fc.file_cache_id
+                , fc.file_id
+                , fc.expiration_datetime
+                , fc.creation_datetime
+                , f.path
+                , f.size_bytes
+                , f.sync_status
+                , f.delete_after_sync
+            , fc.pinned
+            FROM file_cache fc
+            INNER JOIN file f ON f.file_id = fc.file_id
+            WHERE fc.node_id = :nodeId
+            ORDER BY fc.expiration_datetime
+            """)
+    List<CacheInfo> getAllFileCaches(@Bind String nodeId);
+
     @SqlQuery("""
-            DELETE FROM public.file_cache fic
-            USING (
-            	SELECT subq.file_cache_id, subq.path FROM (
-            		SELECT fc.*
-            		, f.path
-             		, f.size_bytes
-             		, sum(f.size_bytes) OVER (ORDER BY expiration_datetime DESC) AS cummulative_size
-            		FROM public.file_cache fc 
-            		    INNER JOIN public.file f
-            		ON f.file_id  = fc.file_id
-            	) subq  -- If cache is bigger than specified limit, additional entries should also be evicted.
-            	WHERE subq.expiration_datetime < now() OR cummulative_size > :maxMemoryBytes
-            	) cache_id_path	
-            WHERE fic.file_cache_id = cache_id_path.file_cache_id
-            RETURNING cache_id_path.path
-                        """)
-    List<String> evict(long maxMemoryBytes);
+            SELECT fc.file_cache_id
+                , fc.file_id
+                , fc.expiration_datetime
+                , fc.creation_datetime
+                , f.path
+                , f.size_bytes
+                , f.sync_status
+                , f.delete_after_sync
+                , fc.pinned
+            FROM file_cache fc
+            INNER JOIN file f ON f.file_id = fc.file_id
+            WHERE fc.pinned = TRUE
+            AND fc.node_id = :nodeId
+            """)
+    List<CacheInfo> getPinnedFileCaches(@Bind String nodeId);
+
+    @SqlUpdate("""
+            UPDATE file_cache SET pinned = :pinned, expiration_datetime = :expirationDate
+            WHERE file_id IN (<fileIds>)
+            AND node_id = :nodeId
+            """)
+    void setPinned(@BindList List<Long> fileIds, @Bind boolean pinned, @Bind Instant expirationDate, @Bind String nodeId);
+
+    @SqlQuery("""
+            SELECT coalesce(sum(f.size_bytes), 0)
+            FROM file f
+            WHERE f.file_id IN (SELECT fc.file_id FROM file_cache fc WHERE fc.pinned = TRUE AND fc.node_id = :nodeId)
+            """)
+    long getPinnedBytes(@Bind String nodeId);
+
+    // Pinned entries are never expired, they stay in the cache until they are unpinned.
+    // The size of the cache is bounded in CacheFileService, this only removes entries that have not been used for a while.
+    @SqlQuery("""
+            DELETE FROM public.file_cache fc
+            USING public.file f
+            WHERE f.file_id = fc.file_id
+            AND fc.expiration_datetime < now()
+            AND fc.pinned = FALSE
+            AND fc.node_id = :nodeId
+            RETURNING f.path
+            """)
+    List<String> evictExpired(@Bind String nodeId);
+
+    // Held until the end of the transaction. Returns false if another instance holds the lock.
+    @SqlQuery("SELECT pg_try_advisory_xact_lock(hashtext(:lockName))")
+    boolean tryLock(@Bind String lockName);
 }
@@ -4,6 +4,7 @@ import dk.northtech.dasscofileproxy.domain.DasscoFile;
 import org.jdbi.v3.sqlobject.customizer.Bind;
 import org.jdbi.v3.sqlobject.customizer.BindList;
 import org.jdbi.v3.sqlobject.customizer.BindMethods;
+import org.jdbi.v3.sqlobject.customizer.FetchSize;
 import org.jdbi.v3.sqlobject.statement.GetGeneratedKeys;
 import org.jdbi.v3.sqlobject.statement.SqlQuery;
 import org.jdbi.v3.sqlobject.statement.SqlUpdate;
@@ -11,6 +12,7 @@ import org.jdbi.v3.sqlobject.statement.SqlUpdate;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface FileRepository {
     static final String INSERT = """
@@ -33,6 +35,13 @@ public interface FileRepository {
     @SqlQuery("SELECT * FROM file WHERE path = :path AND delete_after_sync = FALSE ")
     DasscoFile getFilesByAssetPath(@Bind String path);
 
+    @SqlQuery("SELECT * FROM file WHERE path IN (<paths>)")
+    List<DasscoFile> getFilesByAssetPaths(@BindList List<String> paths);
+
+    // Paths start with /institution/collection/
+    @SqlQuery("SELECT * FROM file WHERE starts_with(path, '/' || :institution || '/' || :collection || '/') AND sync_status = 'SYNCHRONIZED' AND delete_after_sync = FALSE")
+    List<DasscoFile> getSyncFilesByCollection(@Bind String institution, @Bind String collection);
+
     @SqlQuery("SELECT * FROM file WHERE asset_guid = :assetGuid AND sync_status = 'SYNCHRONIZED' and (has_thumbnail is true or size_bytes <= 1000000) order by has_thumbnail DESC LIMIT 1")
     Optional<DasscoFile> getFileThumbnailByAssetGuid(String assetGuid);
 
@@ -67,6 +76,13 @@ public interface FileRepository {
     @SqlUpdate("UPDATE file SET sync_status = 'SYNCHRONIZED' WHERE asset_guid = :assetGuid AND sync_status = 'NEW_FILE'")
     void setSynchronizedStatus(@Bind String assetGuid);
 
+    @SqlQuery("SELECT count(*) FROM file WHERE sync_status = 'SYNCHRONIZED'")
+    long countSynchronizedFiles();
+
+    @SqlQuery("SELECT * FROM file WHERE sync_status = 'SYNCHRONIZED'")
+    @FetchSize(10000)
+    void forEachSynchronizedFile(Consumer<DasscoFile> consumer);
+
     @SqlQuery("SELECT coalesce(sum(size_bytes), 0) AS totalAllocated FROM file WHERE asset_guid IN (<asset_guids>) AND delete_after_sync = FALSE")
     long getTotalAllocatedByAsset(@BindList Set<String> asset_guids);
 
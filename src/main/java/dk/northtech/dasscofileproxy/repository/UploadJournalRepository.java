@@ -0,0 +1,29 @@
+package dk.northtech.dasscofileproxy.repository;
+
+import dk.northtech.dasscofileproxy.domain.UploadJournalEntry;
+import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.customizer.BindList;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
+import org.jdbi.v3.sqlobject.statement.SqlQuery;
+import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+
+import java.util.List;
+
+public interface UploadJournalRepository {
+    @SqlQuery("SELECT remote_path, size_bytes, crc, local_modified, confirmed FROM file_upload_journal WHERE starts_with(remote_path, :prefix)")
+    List<UploadJournalEntry> getEntries(@Bind String prefix);
+
+    @SqlBatch("""
+            INSERT INTO file_upload_journal(remote_path, size_bytes, crc, local_modified, confirmed, upload_datetime)
+            VALUES (:remotePath, :sizeBytes, :crc, :localModified, :confirmed, now())
+            ON CONFLICT (remote_path) DO UPDATE SET size_bytes = excluded.size_bytes, crc = excluded.crc,
+                local_modified = excluded.local_modified, confirmed = excluded.confirmed, upload_datetime = excluded.upload_datetime
+            """)
+    void record(@Bind("remotePath") List<String> remotePaths, @Bind("sizeBytes") List<Long> sizes, @Bind("crc") List<Long> crcs, @Bind("localModified") List<Long> localModified, @Bind("confirmed") List<Boolean> confirmed);
+
+    @SqlUpdate("UPDATE file_upload_journal SET confirmed = true, upload_datetime = now() WHERE remote_path IN (<remotePaths>)")
+    void confirm(@BindList List<String> remotePaths);
+
+    @SqlUpdate("DELETE FROM file_upload_journal WHERE remote_path IN (<remotePaths>)")
+    void delete(@BindList List<String> remotePaths);
+}
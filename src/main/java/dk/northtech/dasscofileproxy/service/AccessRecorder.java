@@ -0,0 +1,188 @@
+package dk.northtech.dasscofileproxy.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Records which cache entries have been read, so their expiration can be extended in the database. Reads are recorded
+ * in small ring buffers, striped by thread so readers rarely touch the same memory, and the buffers are drained into a
+ * set of ids when they fill up or when the ids are flushed. Like Caffeine's read buffer, a read is dropped rather than
+ * waiting when its buffer is full or contended, as the entry is likely read again soon.
+ */
+public class AccessRecorder {
+    static final int BUFFER_SIZE = 128;
+    private final Stripe[] stripes;
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public AccessRecorder() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    AccessRecorder(int minStripes) {
+        int stripeCount = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records a read of the entry with the given id. Never blocks.
+     */
+    public void record(long id) {
+        recorded.increment();
+        Stripe stripe = stripes[(int) mix(Thread.currentThread().threadId()) & (stripes.length - 1)];
+        int result = stripe.offer(id);
+        if (result == Stripe.FULL) {
+            // Empty the buffers if no one else is doing it, and try once more.
+            if (drainLock.tryLock()) {
+                try {
+                    drainBuffers();
+                } finally {
+                    drainLock.unlock();
+                }
+                result = stripe.offer(id);
+            }
+        }
+        if (result != Stripe.SUCCESS) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Hands the recorded ids to the sink in batches of at most batchSize, each id once. Returns the number of ids.
+     */
+    public int flush(int batchSize, Consumer<List<Long>> sink) {
+        drainLock.lock();
+        try {
+            drainBuffers();
+        } finally {
+            drainLock.unlock();
+        }
+        int flushed = 0;
+        List<Long> batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+        Iterator<Long> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            iterator.remove();
+            if (batch.size() >= batchSize) {
+                sink.accept(batch);
+                flushed += batch.size();
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            sink.accept(batch);
+            flushed += batch.size();
+        }
+        return flushed;
+    }
+
+    private void drainBuffers() {
+        for (Stripe stripe : stripes) {
+            stripe.drainTo(id -> {
+                if (!pending.add(id)) {
+                    coalesced.increment();
+                }
+            });
+        }
+    }
+
+    public boolean isEmpty() {
+        if (!pending.isEmpty()) {
+            return false;
+        }
+        for (Stripe stripe : stripes) {
+            if (!stripe.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of reads recorded.
+     */
+    public long recordedCount() {
+        return recorded.sum();
+    }
+
+    /**
+     * The number of reads that were dropped because their buffer was full or contended.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * The number of reads of an entry that had already been read since the last flush.
+     */
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        return x ^ (x >>> 33);
+    }
+
+    /**
+     * A bounded ring buffer with many writers and a single reader, the reader holds the drain lock. Slots hold id + 1,
+     * so that 0 marks a slot whose writer has claimed it but not yet written it.
+     */
+    private static class Stripe {
+        static final int SUCCESS = 0;
+        static final int FULL = 1;
+        static final int CONTENDED = 2;
+        private final AtomicLongArray buffer = new AtomicLongArray(BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private final AtomicLong readCounter = new AtomicLong();
+
+        int offer(long id) {
+            long head = readCounter.get();
+            long tail = writeCounter.get();
+            if (tail - head >= BUFFER_SIZE) {
+                return FULL;
+            }
+            if (!writeCounter.compareAndSet(tail, tail + 1)) {
+                return CONTENDED;
+            }
+            buffer.lazySet((int) (tail & (BUFFER_SIZE - 1)), id + 1);
+            return SUCCESS;
+        }
+
+        void drainTo(LongConsumer consumer) {
+            long head = readCounter.get();
+            long tail = writeCounter.get();
+            while (head < tail) {
+                int index = (int) (head & (BUFFER_SIZE - 1));
+                long value = buffer.get(index);
+                if (value == 0) {
+                    // The writer has not finished, the rest is drained next time.
+                    break;
+                }
+                buffer.lazySet(index, 0);
+                consumer.accept(value - 1);
+                head++;
+            }
+            readCounter.lazySet(head);
+        }
+
+        boolean isEmpty() {
+            return writeCounter.get() == readCounter.get();
+        }
+    }
+}
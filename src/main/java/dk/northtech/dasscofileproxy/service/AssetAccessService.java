@@ -0,0 +1,113 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import dk.northtech.dasscofileproxy.assets.AssetServiceProperties;
+import dk.northtech.dasscofileproxy.configuration.CacheConfig;
+import dk.northtech.dasscofileproxy.domain.User;
+import dk.northtech.dasscofileproxy.domain.exceptions.DasscoNotFoundException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Instant;
+
+/**
+ * Asks the asset service whether a user may read an asset. Decisions, including denials, are cached for a short while
+ * per token, so a page of thumbnails for the same user only costs one request per asset. Concurrent lookups of the same
+ * decision share one request.
+ */
+@Service
+public class AssetAccessService {
+    private static final Logger logger = LoggerFactory.getLogger(AssetAccessService.class);
+    private final AssetServiceProperties assetServiceProperties;
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final Cache<AccessKey, AccessDecision> decisions;
+
+    public enum AccessDecision {
+        ALLOWED, DENIED, ASSET_NOT_FOUND
+    }
+
+    // The token expiry is part of the key, so a decision never outlives the token it was made for.
+    record AccessKey(String subject, Instant tokenExpiresAt, String assetGuid) {
+        static AccessKey of(User user, String assetGuid) {
+            return new AccessKey(subject(user), user.tokenExpiresAt, assetGuid);
+        }
+
+        /**
+         * The subject of the token, or the token itself if it has no subject. The user mapper turns a missing subject
+         * into "null", which must not be shared by every such token. Requests without a token are all asked for as
+         * the same anonymous caller.
+         */
+        static String subject(User user) {
+            if (user.keycloakId != null && !user.keycloakId.isBlank() && !"null".equals(user.keycloakId)) {
+                return "sub:" + user.keycloakId;
+            }
+            if (user.token != null) {
+                return "token:" + user.token;
+            }
+            return "anonymous";
+        }
+    }
+
+    @Inject
+    public AssetAccessService(AssetServiceProperties assetServiceProperties, CacheConfig cacheConfig, MeterRegistry meterRegistry) {
+        this.assetServiceProperties = assetServiceProperties;
+        this.decisions = Caffeine.newBuilder()
+                .expireAfterWrite(cacheConfig.readAccessTtl())
+                .maximumSize(100000)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, decisions, "asset_read_access");
+    }
+
+    /**
+     * Returns whether the user may read the asset. Errors from the asset service are not cached.
+     */
+    public AccessDecision getReadAccess(User user, String assetGuid) {
+        return decisions.get(AccessKey.of(user, assetGuid), key -> requestReadAccess(user.token, assetGuid));
+    }
+
+    public boolean canRead(User user, String assetGuid) {
+        AccessDecision decision = getReadAccess(user, assetGuid);
+        if (decision == AccessDecision.ASSET_NOT_FOUND) {
+            throw new DasscoNotFoundException("Asset " + assetGuid + " does not exist");
+        }
+        return decision == AccessDecision.ALLOWED;
+    }
+
+    AccessDecision requestReadAccess(String token, String assetGuid) {
+        HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .uri(URI.create(assetServiceProperties.rootUrl() + "/api/v1/assets/readaccess?assetGuid=" + assetGuid));
+        if (token != null) {
+            requestBuilder.header("Authorization", "Bearer " + token);
+        }
+        try {
+            HttpResponse<String> send = httpClient.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofString());
+            if (send.statusCode() > 199 && send.statusCode() < 300) {
+                return AccessDecision.ALLOWED;
+            }
+            if (send.statusCode() == 401 || send.statusCode() == 403) {
+                return AccessDecision.DENIED;
+            }
+            if (send.statusCode() == 404) {
+                return AccessDecision.ASSET_NOT_FOUND;
+            }
+            throw new RuntimeException("Error occurred when querying user access to asset, response code: " + send.statusCode());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to check user access to asset", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to check user access to asset", e);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.collect.Lists;
+import dk.northtech.dasscofileproxy.configuration.ShareConfig;
+import dk.northtech.dasscofileproxy.repository.BlobRepository;
+import jakarta.inject.Inject;
+import org.jdbi.v3.core.Jdbi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Stores the content of files once, keyed by their SHA-256. Cache files with the same content become hard links to one
+ * blob under mountFolder/blobs. A blob is only created once a second file with the same content is cached, so unique
+ * files take no extra links. The blobs are made read-only, as writing to one of the links would change all of them,
+ * so only files that are replaced rather than written in place may be deduplicated. Files in shares are never linked,
+ * see {@link #copy(Path, Path)}.
+ * <p>
+ * The number of links to each blob is kept in the blob table. Links are removed by deleting the file like any other
+ * file and reporting it to {@link #unlinked(Path)}, which removes the blob with the last link so the bytes are freed
+ * with the file. Blobs whose links were removed otherwise, e.g. before a restart, are removed by {@link #collectGarbage()}.
+ */
+@Service
+public class BlobStore {
+    private static final Logger logger = LoggerFactory.getLogger(BlobStore.class);
+    private static final int BATCH_SIZE = 1000;
+    private static final int MAX_CANDIDATES = 50_000;
+    private final Path root;
+    private final Jdbi jdbi;
+    // The first file seen with each content, which becomes the blob if a second file has the same content.
+    private final Cache<String, Path> candidates = Caffeine.newBuilder().maximumSize(MAX_CANDIDATES).build();
+    // The content of the files linked to a blob, so the blob can be removed when the last of them is.
+    private final Map<Path, String> linkedFiles = new ConcurrentHashMap<>();
+
+    @Inject
+    public BlobStore(ShareConfig shareConfig, Jdbi jdbi) {
+        this(Path.of(shareConfig.mountFolder(), "blobs"), jdbi);
+    }
+
+    BlobStore(Path root, Jdbi jdbi) {
+        this.root = root;
+        this.jdbi = jdbi;
+    }
+
+    /**
+     * Replaces the file with a link to the blob of its content. There is no blob for the first file with some content,
+     * it is remembered instead, and the blob is created from it when a second file with the same content arrives.
+     * Returns true if the file was replaced by a blob, i.e. disk space was saved. The file is left as it is if it cannot
+     * be linked, e.g. because it is on another file system than the blobs.
+     */
+    public boolean deduplicate(Path file, String sha256) {
+        Path blob = blobPath(sha256);
+        try {
+            long size = Files.size(file);
+            if (!Files.isRegularFile(blob)) {
+                Path first = candidates.asMap().putIfAbsent(sha256, file);
+                if (first == null || first.equals(file) || !hasContent(first, size, sha256)) {
+                    candidates.put(sha256, file);
+                    return false;
+                }
+                Files.createDirectories(blob.getParent());
+                try {
+                    Files.createLink(blob, first);
+                    makeReadOnly(blob);
+                    linked(first, sha256, size);
+                } catch (FileAlreadyExistsException e) {
+                    // Another file with the same content was stored at the same time.
+                }
+                candidates.invalidate(sha256);
+            }
+            if (Files.size(blob) != size || Files.isSameFile(blob, file)) {
+                return false;
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".dedup");
+            Files.deleteIfExists(temp);
+            Files.createLink(temp, blob);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            linked(file, sha256, size);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Could not deduplicate {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Hashes the file and deduplicates it.
+     */
+    public boolean deduplicate(Path file) {
+        try {
+            return deduplicate(file, sha256(file));
+        } catch (IOException e) {
+            logger.warn("Failed to hash {}", file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Tells the store that a cache file was deleted or replaced. If the file was linked to a blob and was its last link,
+     * the blob is removed, so the space is freed when the file is rather than at the next garbage collection.
+     */
+    public void unlinked(Path file) {
+        String sha256 = linkedFiles.remove(file);
+        if (sha256 == null) {
+            return;
+        }
+        Path blob = blobPath(sha256);
+        try {
+            // The blob itself is one of the links.
+            if (Files.isRegularFile(blob) && linkCount(blob) <= 1) {
+                Files.deleteIfExists(blob);
+                deleteBlob(sha256);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Could not remove blob {}: {}", sha256, e.getMessage());
+        }
+    }
+
+    /**
+     * Copies a file into a share, e.g. a cached file that is linked to a blob. Shares get writable copies rather than
+     * links, as the users of a share may edit the files or change their permissions, which would change the blob and
+     * every other link to it.
+     */
+    public void copy(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".copy");
+        Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+        // The copy gets the permissions of the source, which are read-only for a blob
+        makeWritable(temp);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static String sha256(Path file) throws IOException {
+        MessageDigest digest = CacheFill.newSha256();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void linked(Path file, String sha256, long size) {
+        linkedFiles.put(file, sha256);
+        addReference(sha256, size);
+    }
+
+    /**
+     * Checks that a remembered file still has the content, as it may have been deleted or replaced since.
+     */
+    private static boolean hasContent(Path file, long size, String sha256) throws IOException {
+        return Files.isRegularFile(file) && Files.size(file) == size && sha256.equals(sha256(file));
+    }
+
+    Path blobPath(String sha256) {
+        return root.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(sha256);
+    }
+
+    /**
+     * Removes the blobs that have no links left and corrects the reference counts from the link counts.
+     */
+    @Scheduled(cron = "0 50 * * * *") // at min 50
+    public void collectGarbage() {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        List<String> unreferenced = new ArrayList<>();
+        List<String> referenced = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        List<Integer> refCounts = new ArrayList<>();
+        try (Stream<Path> blobs = Files.walk(root)) {
+            for (Path blob : (Iterable<Path>) blobs.filter(Files::isRegularFile)::iterator) {
+                // The blob itself is one of the links.
+                int refCount = linkCount(blob) - 1;
+                if (refCount <= 0) {
+                    Files.deleteIfExists(blob);
+                    unreferenced.add(blob.getFileName().toString());
+                } else {
+                    referenced.add(blob.getFileName().toString());
+                    sizes.add(Files.size(blob));
+                    refCounts.add(refCount);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Failed to collect unreferenced blobs", e);
+        }
+        updateReferenceCounts(unreferenced, referenced, sizes, refCounts);
+        logger.info("Removed {} unreferenced blobs, {} blobs are in use", unreferenced.size(), referenced.size());
+    }
+
+    static int linkCount(Path path) throws IOException {
+        return ((Number) Files.getAttribute(path, "unix:nlink")).intValue();
+    }
+
+    void addReference(String sha256, long size) {
+        try {
+            jdbi.onDemand(BlobRepository.class).addReference(sha256, size);
+        } catch (RuntimeException e) {
+            // The file is linked either way, the count is corrected by the next garbage collection.
+            logger.warn("Failed to count the reference to blob {}", sha256, e);
+        }
+    }
+
+    void deleteBlob(String sha256) {
+        try {
+            jdbi.onDemand(BlobRepository.class).deleteBlobs(List.of(sha256));
+        } catch (RuntimeException e) {
+            // The blob is gone either way, the row is removed by the next garbage collection.
+            logger.warn("Failed to delete blob {}", sha256, e);
+        }
+    }
+
+    void updateReferenceCounts(List<String> unreferenced, List<String> referenced, List<Long> sizes, List<Integer> refCounts) {
+        BlobRepository blobRepository = jdbi.onDemand(BlobRepository.class);
+        for (List<String> batch : Lists.partition(unreferenced, BATCH_SIZE)) {
+            blobRepository.deleteBlobs(batch);
+        }
+        if (!referenced.isEmpty()) {
+            blobRepository.setReferenceCounts(referenced, sizes, refCounts);
+        }
+    }
+
+    /**
+     * Checks the permissions rather than {@link Files#isWritable(Path)}, which is true for everything when running as root.
+     */
+    static boolean isReadOnly(Path path) {
+        try {
+            return !Files.getPosixFilePermissions(path).contains(PosixFilePermission.OWNER_WRITE);
+        } catch (IOException | UnsupportedOperationException e) {
+            return !path.toFile().canWrite();
+        }
+    }
+
+    private static void makeWritable(Path file) {
+        try {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+            permissions.add(PosixFilePermission.OWNER_WRITE);
+            Files.setPosixFilePermissions(file, permissions);
+        } catch (IOException | UnsupportedOperationException e) {
+            file.toFile().setWritable(true);
+        }
+    }
+
+    private static void makeReadOnly(Path blob) {
+        try {
+            Files.setPosixFilePermissions(blob, PosixFilePermissions.fromString("r--r--r--"));
+        } catch (IOException | UnsupportedOperationException e) {
+            blob.toFile().setReadOnly();
+        }
+    }
+}
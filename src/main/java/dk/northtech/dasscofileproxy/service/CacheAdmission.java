@@ -0,0 +1,97 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decides whether a file that is not cached is worth caching. Files up to the size threshold are always cached. Larger
+ * files are only cached once they have been requested a number of times recently, so a one-off download of a huge file
+ * is streamed from ERDA instead of replacing the files that are actually reused.
+ * <p>
+ * The requests are counted in a count-min sketch, which needs a fixed amount of memory however many files are
+ * requested and may only overestimate a count. All counts are halved after a number of requests, so files that were
+ * popular long ago have to be requested again to be cached.
+ */
+class CacheAdmission {
+    static final int DEPTH = 4;
+    // Enough to tell apart the large files requested in the last few hundred thousand requests
+    static final int DEFAULT_WIDTH = 1 << 16;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private final long sizeThreshold;
+    private final int minFrequency;
+    private final int width;
+    private final int[][] counts;
+    private final int sampleSize;
+    private int requests = 0;
+    private final Counter admitted;
+    private final Counter rejected;
+
+    CacheAdmission(long sizeThreshold, int minFrequency, int width, MeterRegistry meterRegistry) {
+        this.sizeThreshold = sizeThreshold;
+        this.minFrequency = minFrequency;
+        this.width = width;
+        this.counts = new int[DEPTH][width];
+        this.sampleSize = 10 * width;
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : new SimpleMeterRegistry();
+        this.admitted = Counter.builder("cache.admission").tag("result", "admitted")
+                .description("Cache misses that were cached").register(registry);
+        this.rejected = Counter.builder("cache.admission").tag("result", "rejected")
+                .description("Cache misses that were streamed from ERDA without caching them").register(registry);
+    }
+
+    /**
+     * Records a request for the file and returns whether the file should be cached. Requests that continue a download,
+     * e.g. a range that does not start at the beginning of the file, are not counted as new requests.
+     */
+    boolean admit(String path, long sizeBytes, boolean newRequest) {
+        boolean admit = sizeBytes <= sizeThreshold
+                || (newRequest ? increment(path) : frequency(path)) >= minFrequency;
+        (admit ? admitted : rejected).increment();
+        return admit;
+    }
+
+    /**
+     * The estimated number of recent requests for the path.
+     */
+    synchronized int frequency(String path) {
+        long hash = HASH.hashString(path, StandardCharsets.UTF_8).asLong();
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counts[row][index(hash, row)]);
+        }
+        return min;
+    }
+
+    private synchronized int increment(String path) {
+        long hash = HASH.hashString(path, StandardCharsets.UTF_8).asLong();
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(hash, row);
+            min = Math.min(min, ++counts[row][index]);
+        }
+        if (++requests >= sampleSize) {
+            age();
+        }
+        return min;
+    }
+
+    private void age() {
+        for (int[] row : counts) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        requests /= 2;
+    }
+
+    private int index(long hash, int row) {
+        // Derives the hash of each row from the two halves of one hash, see Kirsch and Mitzenmacher.
+        int combined = (int) hash + row * (int) (hash >>> 32);
+        return Math.floorMod(combined, width);
+    }
+}
@@ -1,13 +1,22 @@
 package dk.northtech.dasscofileproxy.service;
 
 import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.google.common.net.UrlEscapers;
 import dk.northtech.dasscofileproxy.assets.AssetServiceProperties;
+import dk.northtech.dasscofileproxy.configuration.CacheAdmissionConfig;
+import dk.northtech.dasscofileproxy.configuration.CacheConfig;
+import dk.northtech.dasscofileproxy.configuration.CacheDiskConfig;
+import dk.northtech.dasscofileproxy.configuration.CacheMemoryTierConfig;
+import dk.northtech.dasscofileproxy.configuration.CacheNodeConfig;
 import dk.northtech.dasscofileproxy.configuration.StorageConfig;
 import dk.northtech.dasscofileproxy.configuration.ShareConfig;
 import dk.northtech.dasscofileproxy.domain.CacheInfo;
+import dk.northtech.dasscofileproxy.domain.CachePinRequest;
+import dk.northtech.dasscofileproxy.domain.CachePinStatus;
 import dk.northtech.dasscofileproxy.domain.DasscoFile;
 import dk.northtech.dasscofileproxy.domain.FileSyncStatus;
 import dk.northtech.dasscofileproxy.domain.User;
@@ -16,8 +25,13 @@ import dk.northtech.dasscofileproxy.domain.exceptions.DasscoNotFoundException;
 import dk.northtech.dasscofileproxy.domain.exceptions.DasscoUnauthorizedException;
 import dk.northtech.dasscofileproxy.repository.FileCacheRepository;
 import dk.northtech.dasscofileproxy.repository.FileRepository;
+import dk.northtech.dasscofileproxy.webapi.RangeRequestHandler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
 import jakarta.inject.Inject;
-import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.StreamingOutput;
 import joptsimple.internal.Strings;
@@ -25,16 +39,12 @@ import org.apache.commons.io.IOUtils;
 import org.jdbi.v3.core.Jdbi;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -42,7 +52,14 @@ import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 @Service
 public class CacheFileService {
@@ -51,32 +68,83 @@ public class CacheFileService {
     private final FileService fileService;
     private final ShareConfig shareConfig;
     private final StorageConfig storageConfig;
+    private final CacheConfig cacheConfig;
+    private final CacheDiskConfig cacheDiskConfig;
+    private final SynchronizedFileFilter synchronizedFileFilter;
+    private final AssetAccessService assetAccessService;
+    private final BlobStore blobStore;
+    private final CacheInvalidationBus invalidationBus;
+    private final PeerCacheClient peerCacheClient;
+    private final ErdaHttpGateway erdaHttpGateway;
     private final Jdbi jdbi;
+    private final String nodeId;
     private final Cache<String, String> ticketCache;
-    private final Object[] cachePopulationLocks = new Object[256];
-
-    private Set<Long> idsToRefresh = new HashSet<>();
+    private final ConcurrentHashMap<String, CacheFill> inflightFills = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PartialCacheFile> partialFiles = new ConcurrentHashMap<>();
+    private final ExecutorService cacheFillExecutor = Executors.newCachedThreadPool();
+    private final ForkJoinPool reconcilePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    // Pinned files are kept out of cachedFiles, so they are never evicted to make room for other files.
+    private final ConcurrentHashMap<String, CacheInfo> pinnedFiles = new ConcurrentHashMap<>();
+    private final Set<String> pendingPrefetches = ConcurrentHashMap.newKeySet();
+    private final ExecutorService prefetchExecutor;
+
+    private final AccessRecorder accessRecorder = new AccessRecorder();
+    private final MemoryTier memoryTier;
+    private final CacheAdmission admission;
+    private final Counter crcMismatches;
 
     @Inject
-    public CacheFileService(AssetServiceProperties assetServiceProperties, FileService fileService, ShareConfig shareConfig, StorageConfig storageConfig, Jdbi jdbi) {
+    public CacheFileService(AssetServiceProperties assetServiceProperties, FileService fileService, ShareConfig shareConfig, StorageConfig storageConfig, CacheConfig cacheConfig, CacheDiskConfig cacheDiskConfig, CacheMemoryTierConfig memoryTierConfig, CacheNodeConfig nodeConfig, CacheAdmissionConfig admissionConfig, SynchronizedFileFilter synchronizedFileFilter, AssetAccessService assetAccessService, BlobStore blobStore, CacheInvalidationBus invalidationBus, PeerCacheClient peerCacheClient, ErdaHttpGateway erdaHttpGateway, Jdbi jdbi, MeterRegistry meterRegistry) {
         this.assetServiceProperties = assetServiceProperties;
         this.fileService = fileService;
         this.shareConfig = shareConfig;
         this.storageConfig = storageConfig;
+        this.cacheConfig = cacheConfig;
+        this.cacheDiskConfig = cacheDiskConfig;
+        this.synchronizedFileFilter = synchronizedFileFilter;
+        this.assetAccessService = assetAccessService;
+        this.blobStore = blobStore;
+        this.invalidationBus = invalidationBus;
+        this.peerCacheClient = peerCacheClient;
+        this.erdaHttpGateway = erdaHttpGateway;
         this.jdbi = jdbi;
-        cachedFiles = Caffeine.newBuilder()
-                .maximumSize(100000)
-                .build(x -> jdbi.withHandle(h -> {
+        this.nodeId = nodeConfig.nodeId();
+        cachedFiles = new CachePartitions(cacheBudgetBytes(), CachePartitions.parseQuotas(cacheDiskConfig.partitionQuotas()),
+                cacheDiskConfig.partitionDefaultDiskspace() * 1000000L,
+                x -> jdbi.withHandle(h -> {
                     FileCacheRepository attach = h.attach(FileCacheRepository.class);
-                    return attach.getFileCacheByPath(x).orElse(null);
-                }));
+                    CacheInfo cacheInfo = attach.getFileCacheByPath(x, nodeId).orElse(null);
+                    if (cacheInfo != null && cacheInfo.pinned()) {
+                        pinnedFiles.put(x, cacheInfo);
+                        return null;
+                    }
+                    return cacheInfo;
+                }),
+                this::onEvicted, meterRegistry);
+        this.memoryTier = new MemoryTier(memoryTierConfig.memoryTierSize().toBytes(), memoryTierConfig.memoryTierMaxFileSize().toBytes(), meterRegistry);
+        this.admission = new CacheAdmission(admissionConfig.admissionSizeThreshold().toBytes(), admissionConfig.admissionMinFrequency(),
+                CacheAdmission.DEFAULT_WIDTH, meterRegistry);
+        this.prefetchExecutor = Executors.newFixedThreadPool(Math.max(cacheDiskConfig.prefetchConcurrency(), 1));
+
+        FunctionCounter.builder("cache.access.recorder", accessRecorder, AccessRecorder::recordedCount)
+                .tag("result", "recorded").register(meterRegistry);
+        FunctionCounter.builder("cache.access.recorder", accessRecorder, AccessRecorder::coalescedCount)
+                .tag("result", "coalesced").register(meterRegistry);
+        FunctionCounter.builder("cache.access.recorder", accessRecorder, AccessRecorder::droppedCount)
+                .tag("result", "dropped").register(meterRegistry);
+        Gauge.builder("cache.pinned.bytes", pinnedFiles, pinned -> pinned.values().stream().mapToLong(CacheInfo::sizeBytes).sum())
+                .baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("cache.prefetch.pending", pendingPrefetches, Set::size).register(meterRegistry);
+        this.crcMismatches = Counter.builder("cache.fill.crc.mismatch")
+                .description("Files downloaded from ERDA that did not match the CRC they were uploaded with")
+                .register(meterRegistry);
+
+        // Evicting touches the disk and the database, so it is kept off the thread that listens for invalidations.
+        invalidationBus.subscribe(paths -> cacheFillExecutor.execute(() -> evictInvalidated(paths)));
 
         this.ticketCache = Caffeine.newBuilder()
                 .expireAfterWrite(shareConfig.ticketCacheExpire())
                 .maximumSize(100000).build();
-        for (int i = 0; i < cachePopulationLocks.length; i++) {
-            cachePopulationLocks[i] = new Object();
-        }
     }
 
     public String createTicket(User user, String assetGuid) {
@@ -113,194 +181,448 @@ public class CacheFileService {
         }
     }
 
-    LoadingCache<String, CacheInfo> cachedFiles;
+    final CachePartitions cachedFiles;
+    private final Queue<Long> pendingEvictions = new ConcurrentLinkedQueue<>();
+    static final int EVICTION_BATCH_SIZE = 500;
+
+    /**
+     * Creates the index of the files in a partition of the cache, see {@link CachePartitions}. The index is bounded by the total size of the files, and Caffeine
+     * picks the files to evict by how often and how recently they are used (W-TinyLFU), so a burst of files that are
+     * read once, e.g. by a bundle, does not push the popular files out. Eviction runs on the thread that adds the file,
+     * so the cache never grows past the budget.
+     */
+    static LoadingCache<String, CacheInfo> newCachedFilesIndex(long maxBytes, CacheLoader<String, CacheInfo> loader, BiConsumer<String, CacheInfo> onEvicted) {
+        return Caffeine.newBuilder()
+                .maximumWeight(Math.max(maxBytes / WEIGHT_UNIT_BYTES, 1))
+                .weigher((String path, CacheInfo cacheInfo) -> weight(cacheInfo.sizeBytes()))
+                .evictionListener((String path, CacheInfo cacheInfo, RemovalCause cause) -> {
+                    if (path != null && cacheInfo != null) {
+                        onEvicted.accept(path, cacheInfo);
+                    }
+                })
+                .executor(Runnable::run)
+                .recordStats()
+                .build(loader);
+    }
+
+    // Caffeine weights are ints, so files are weighed in KiB to allow files and caches larger than 2 GB.
+    static final long WEIGHT_UNIT_BYTES = 1024;
+
+    static int weight(long sizeBytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (sizeBytes + WEIGHT_UNIT_BYTES - 1) / WEIGHT_UNIT_BYTES));
+    }
+
+    private long cacheBudgetBytes() {
+        // Leave 10% of the cache disk space for downloads in progress, and the pinned and partial budgets for pinned
+        // files and files cached block by block.
+        return (long) (.90 * (shareConfig.cacheDiskspace() * 1000000L)) - pinnedBudgetBytes() - partialBudgetBytes();
+    }
+
+    private long partialBudgetBytes() {
+        return cacheDiskConfig.partialDiskspace() * 1000000L;
+    }
+
+    private long pinnedBudgetBytes() {
+        return cacheDiskConfig.pinnedDiskspace() * 1000000L;
+    }
+
+    private CacheInfo getCacheInfo(String assetPath) {
+        CacheInfo pinned = pinnedFiles.get(assetPath);
+        if (pinned != null) {
+            return pinned;
+        }
+        // Loading a pinned entry puts it in pinnedFiles instead of cachedFiles.
+        CacheInfo cacheInfo = cachedFiles.get(assetPath);
+        return cacheInfo != null ? cacheInfo : pinnedFiles.get(assetPath);
+    }
+
+    private void onEvicted(String path, CacheInfo cacheInfo) {
+        memoryTier.invalidate(path);
+        logger.info("Evicting {}", shareConfig.cacheFolder() + path);
+        deleteCacheFile(path);
+        pendingEvictions.add(cacheInfo.fileCacheId());
+        if (pendingEvictions.size() >= EVICTION_BATCH_SIZE) {
+            cacheFillExecutor.execute(this::flushEvictions);
+        }
+    }
+
+    /**
+     * Deletes a file from the cache folder, and the blob it was linked to if no other file links to it any more.
+     */
+    private void deleteCacheFile(String path) {
+        fileService.deleteFile(shareConfig.cacheFolder() + path);
+        blobStore.unlinked(Path.of(shareConfig.cacheFolder() + path));
+    }
+
+    /**
+     * Deletes the file_cache rows of evicted files in batches.
+     */
+    @Scheduled(fixedDelay = 10000)
+    public void flushEvictions() {
+        List<Long> batch = new ArrayList<>();
+        Long fileCacheId;
+        while ((fileCacheId = pendingEvictions.poll()) != null) {
+            batch.add(fileCacheId);
+            if (batch.size() >= EVICTION_BATCH_SIZE) {
+                deleteEvictedRows(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleteEvictedRows(batch);
+        }
+    }
+
+    private void deleteEvictedRows(List<Long> fileCacheIds) {
+        try {
+            jdbi.onDemand(FileCacheRepository.class).deleteFileCacheByIds(fileCacheIds);
+        } catch (Exception e) {
+            logger.error("Failed to delete {} evicted cache entries, retrying later", fileCacheIds.size(), e);
+            pendingEvictions.addAll(fileCacheIds);
+        }
+    }
 
     /**
-     * Record containing cached file information for range request support.
+     * Record containing cached file information for range request support. If the file is not completely on disk yet,
+     * source streams the content, e.g. from the running download or from the partially cached blocks. Small files that
+     * are in the memory tier have their content.
      */
-    public record CachedFileInfo(File file, String filename) {
+    public record CachedFileInfo(File file, String filename, long length, RangeRequestHandler.ContentSource source, byte[] content) {
+        public CachedFileInfo(File file, String filename) {
+            this(file, filename, file.length(), null, null);
+        }
+
+        public CachedFileInfo(File file, String filename, long length, RangeRequestHandler.ContentSource source) {
+            this(file, filename, length, source, null);
+        }
+
+        /**
+         * A small file that is served from memory.
+         */
+        public CachedFileInfo(File file, String filename, byte[] content) {
+            this(file, filename, content.length, null, content);
+        }
+
+        public InputStream openStream() throws IOException {
+            if (content != null) {
+                return new ByteArrayInputStream(content);
+            }
+            return source != null ? source.open(0) : new FileInputStream(file);
+        }
     }
 
     /**
      * Gets a cached file with its File handle for range request support.
      * This method caches the file from ERDA if not already cached, then returns the File object
      * which can be used with RandomAccessFile for efficient range requests.
+     * If the file is being downloaded, the returned info contains the running download so the caller can start
+     * streaming before the download completes.
      */
     public Optional<CachedFileInfo> getCachedFile(String institution, String collection, String assetGuid, String filePath, User user) {
+        return getCachedFile(institution, collection, assetGuid, filePath, user, null);
+    }
+
+    /**
+     * As {@link #getCachedFile(String, String, String, String, User)}, but a large file that is requested with a Range
+     * header is cached block by block, so only the requested blocks are fetched from ERDA.
+     */
+    public Optional<CachedFileInfo> getCachedFile(String institution, String collection, String assetGuid, String filePath, User user, String rangeHeader) {
         logger.info("validating access for cached file download");
         if (!validateAccess(user, assetGuid)) {
             throw new DasscoUnauthorizedException("User does not have access");
         }
         logger.info("finished validating access");
 
-        String path = Strings.join(new String[]{shareConfig.cacheFolder(), institution, collection, assetGuid, filePath}, "/");
-        try {
-            String assetPath = "/" + Strings.join(new String[]{institution, collection, assetGuid, filePath}, "/");
-            CacheInfo cacheInfo = cachedFiles.get(assetPath);
+        String assetPath = "/" + Strings.join(new String[]{institution, collection, assetGuid, filePath}, "/");
+        return getOrFillCachedFile(assetPath, "File not found for institution: %s, collection: %s, assetGuid: %s, path: %s".formatted(institution, collection, assetGuid, filePath), rangeHeader);
+    }
+
+    public Optional<CachedFileInfo> getCachedFileWithoutUser(String filePath) {
+        return getCachedFileWithoutUser(filePath, null);
+    }
 
+    public Optional<CachedFileInfo> getCachedFileWithoutUser(String filePath, String rangeHeader) {
+        return getOrFillCachedFile(filePath, "File not found for path: %s".formatted(filePath), rangeHeader);
+    }
+
+    /**
+     * Returns the cached file for the given asset path, fetching it from ERDA if necessary. Only one download per path
+     * runs at a time; concurrent requests for a path that is being downloaded share the running download.
+     * Range requests for large files are served from a partial cache file unless the running download has already
+     * reached the start of the range. Large files that are rarely requested are streamed from ERDA without caching them,
+     * see {@link CacheAdmission}.
+     */
+    private Optional<CachedFileInfo> getOrFillCachedFile(String assetPath, String notFoundMessage, String rangeHeader) {
+        String path = shareConfig.cacheFolder() + assetPath;
+        if (synchronizedFileFilter.isKnownAbsentPath(assetPath)) {
+            throw new DasscoNotFoundException(notFoundMessage);
+        }
+        try {
+            CacheInfo cacheInfo = getCacheInfo(assetPath);
             File cachedFile = new File(path);
 
             // Check if already in cache and file exists
             if (cacheInfo != null && cachedFile.exists() && cachedFile.isFile() && cachedFile.canRead()) {
-                idsToRefresh.add(cacheInfo.fileCacheId());
+                accessRecorder.record(cacheInfo.fileCacheId());
+                byte[] content = memoryTier.get(assetPath, cachedFile);
+                if (content != null) {
+                    return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName(), content));
+                }
                 return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName()));
             }
 
-            // Invalidate if cache entry exists but file doesn't
-            if (cacheInfo != null) {
+            // Invalidate if cache entry exists but file doesn't. A pinned entry stays and the file is fetched again.
+            if (cacheInfo != null && !cacheInfo.pinned()) {
                 cachedFiles.invalidate(cacheInfo.path());
             }
 
-            Object lock = cachePopulationLockFor(path);
-            synchronized (lock) {
-                cacheInfo = cachedFiles.get(assetPath);
-                if (cacheInfo != null && cachedFile.exists() && cachedFile.isFile() && cachedFile.canRead()) {
-                    idsToRefresh.add(cacheInfo.fileCacheId());
-                    return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName()));
-                }
-
-                FileRepository fileRepository = jdbi.onDemand(FileRepository.class);
-                DasscoFile filesByAssetPath = fileRepository.getFilesByAssetPath(assetPath);
-                if (filesByAssetPath == null) {
-                    throw new DasscoNotFoundException("File not found for institution: %s, collection: %s, assetGuid: %s, path: %s".formatted(institution, collection, assetGuid, filePath));
-                }
-                if (filesByAssetPath.syncStatus() != FileSyncStatus.SYNCHRONIZED || filesByAssetPath.deleteAfterSync()) {
-                    throw new DasscoIllegalActionException("File is being edited");
-                }
-
-                logger.info("File didn't exist in cache, fetching from ERDA for resumable download");
-                String erdaLocation = UrlEscapers.urlFragmentEscaper().escape(Strings.join(new String[]{storageConfig.http(), institution, collection, assetGuid, filePath}, "/"));
+            CacheFill fill = inflightFills.get(assetPath);
+            if (fill != null && (rangeHeader == null || rangeStart(rangeHeader, fill.expectedSize()) <= fill.written())) {
+                return fromFill(fill, cachedFile);
+            }
+            PartialCacheFile partialCacheFile = partialFiles.get(assetPath);
+            if (partialCacheFile != null && rangeHeader != null) {
+                return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName(), partialCacheFile.size(), partialCacheFile::openStream));
+            }
 
-                try (InputStream inputStream = fetchFromERDA(erdaLocation)) {
-                    if (inputStream == null) {
-                        return Optional.empty();
+            FileRepository fileRepository = jdbi.onDemand(FileRepository.class);
+            DasscoFile filesByAssetPath = fileRepository.getFilesByAssetPath(assetPath);
+            if (filesByAssetPath == null) {
+                synchronizedFileFilter.recordAbsentPath(assetPath);
+                throw new DasscoNotFoundException(notFoundMessage);
+            }
+            if (filesByAssetPath.syncStatus() != FileSyncStatus.SYNCHRONIZED || filesByAssetPath.deleteAfterSync()) {
+                throw new DasscoIllegalActionException("File is being edited");
+            }
+            // A range that does not start at the beginning continues a download that has already been counted.
+            boolean newRequest = rangeHeader == null || rangeStart(rangeHeader, filesByAssetPath.sizeBytes()) == 0;
+            boolean pinned = cacheInfo != null && cacheInfo.pinned();
+            if (!pinned && !admission.admit(assetPath, filesByAssetPath.sizeBytes(), newRequest)) {
+                logger.info("Streaming {} from ERDA without caching it", assetPath);
+                String erdaLocation = erdaUrl(assetPath);
+                return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName(), filesByAssetPath.sizeBytes(), offset -> {
+                    InputStream fromErda = fetchRangeFromERDA(erdaLocation, offset, -1);
+                    if (fromErda == null) {
+                        throw new FileNotFoundException("ERDA did not return " + assetPath);
                     }
-                    logger.info("got stream from ERDA");
-                    copyToCacheAtomically(inputStream, Path.of(path));
-                }
-
-                cacheFile(filesByAssetPath);
-
-                if (cachedFile.exists() && cachedFile.isFile() && cachedFile.canRead()) {
-                    return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName()));
+                    return fromErda;
+                }));
+            }
+            if (rangeHeader != null && filesByAssetPath.sizeBytes() > PartialCacheFile.DEFAULT_BLOCK_SIZE) {
+                partialCacheFile = partialFileFor(assetPath, filesByAssetPath);
+                // Without room for another partial file the whole file is downloaded instead.
+                if (partialCacheFile != null) {
+                    return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName(), partialCacheFile.size(), partialCacheFile::openStream));
                 }
-
-                return Optional.empty();
             }
+            if (fill == null) {
+                fill = startFill(assetPath, filesByAssetPath);
+            }
+            if (fill == null) {
+                // Another request completed the download in the meantime.
+                return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName()));
+            }
+            return fromFill(fill, cachedFile);
         } catch (DasscoUnauthorizedException | DasscoNotFoundException | DasscoIllegalActionException e) {
             throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         } catch (Exception e) {
             logger.error("error fetching cached file", e);
             throw new RuntimeException(e);
         }
     }
 
-    public Optional<CachedFileInfo> getCachedFileWithoutUser(String filePath) {
-        String path = Strings.join(new String[]{shareConfig.cacheFolder(), filePath}, "");
+    private Optional<CachedFileInfo> fromFill(CacheFill fill, File cachedFile) throws IOException, InterruptedException {
         try {
-            CacheInfo cacheInfo = cachedFiles.get(filePath);
-            File cachedFile = new File(path);
+            fill.awaitStarted();
+        } catch (FileNotFoundException e) {
+            return Optional.empty();
+        }
+        if (fill.expectedSize() <= 0) {
+            // Without a known size we cannot send a Content-Length before the download completes.
+            fill.awaitCompletion();
+        }
+        if (fill.isDone()) {
+            return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName()));
+        }
+        return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName(), fill.expectedSize(), fill::openStream));
+    }
 
-            // Check if already in cache and file exists
-            if (cacheInfo != null && cachedFile.exists() && cachedFile.isFile() && cachedFile.canRead()) {
-                idsToRefresh.add(cacheInfo.fileCacheId());
-                return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName()));
-            }
+    private static long rangeStart(String rangeHeader, long length) {
+        return RangeRequestHandler.parseRangeHeader(rangeHeader, length).map(RangeRequestHandler.RangeInfo::start).orElse(0L);
+    }
 
-            // Invalidate if cache entry exists but file doesn't
-            if (cacheInfo != null) {
-                cachedFiles.invalidate(cacheInfo.path());
+    /**
+     * Returns the partial file of the path, creating it if it fits in cache.partialDiskspace after discarding idle
+     * partial files, see {@link PartialCacheFile#toDiscard}. Returns null if there is no room.
+     */
+    private PartialCacheFile partialFileFor(String assetPath, DasscoFile dasscoFile) {
+        PartialCacheFile existing = partialFiles.get(assetPath);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (partialFiles) {
+            existing = partialFiles.get(assetPath);
+            if (existing != null) {
+                return existing;
             }
+            if (!makeRoomForPartialFile(dasscoFile.sizeBytes())) {
+                logger.info("No room to cache {} block by block", assetPath);
+                return null;
+            }
+            String erdaLocation = erdaUrl(assetPath);
+            try {
+                PartialCacheFile created = new PartialCacheFile(Path.of(shareConfig.cacheFolder() + assetPath), dasscoFile.sizeBytes(), dasscoFile.crc(),
+                        PartialCacheFile.DEFAULT_BLOCK_SIZE,
+                        (start, end) -> fetchRangeFromERDA(erdaLocation, start, end),
+                        () -> {
+                            cacheFile(dasscoFile);
+                            partialFiles.remove(assetPath);
+                        },
+                        () -> {
+                            // The blocks were discarded, the next range request starts over.
+                            crcMismatches.increment();
+                            partialFiles.remove(assetPath);
+                        });
+                partialFiles.put(assetPath, created);
+                return created;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
 
-            Object lock = cachePopulationLockFor(path);
-            synchronized (lock) {
-                cacheInfo = cachedFiles.get(filePath);
-                if (cacheInfo != null && cachedFile.exists() && cachedFile.isFile() && cachedFile.canRead()) {
-                    idsToRefresh.add(cacheInfo.fileCacheId());
-                    return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName()));
-                }
-
-                FileRepository fileRepository = jdbi.onDemand(FileRepository.class);
-                DasscoFile filesByAssetPath = fileRepository.getFilesByAssetPath(filePath);
-                if (filesByAssetPath == null) {
-                    throw new DasscoNotFoundException("File not found for path: %s".formatted(filePath));
-                }
-                if (filesByAssetPath.syncStatus() != FileSyncStatus.SYNCHRONIZED || filesByAssetPath.deleteAfterSync()) {
-                    throw new DasscoIllegalActionException("File is being edited");
-                }
+    // Called with the lock on partialFiles held.
+    private boolean makeRoomForPartialFile(long sizeBytes) {
+        List<String> discard = PartialCacheFile.toDiscard(partialFiles, sizeBytes, partialBudgetBytes());
+        if (discard == null) {
+            return false;
+        }
+        for (String assetPath : discard) {
+            logger.info("Discarding the blocks of {} to make room", assetPath);
+            discardPartialFile(assetPath);
+        }
+        return true;
+    }
 
-                logger.info("File didn't exist in cache, fetching from ERDA for resumable download");
-                String erdaLocation = UrlEscapers.urlFragmentEscaper().escape(Strings.join(new String[]{storageConfig.http(), filePath}, ""));
+    /**
+     * Takes over the blocks a partial file kept on disk from before a restart, if there is room for it.
+     */
+    private void resumePartialFile(DasscoFile dasscoFile) {
+        if (partialFileFor(dasscoFile.path(), dasscoFile) == null) {
+            try {
+                PartialCacheFile.deleteFiles(Path.of(shareConfig.cacheFolder() + dasscoFile.path()));
+            } catch (IOException e) {
+                logger.warn("Failed to delete partial cache file for {}", dasscoFile.path());
+            }
+        }
+    }
 
-                try (InputStream inputStream = fetchFromERDA(erdaLocation)) {
-                    if (inputStream == null) {
-                        return Optional.empty();
-                    }
-                    logger.info("got stream from ERDA");
-                    copyToCacheAtomically(inputStream, Path.of(path));
-                }
+    private void discardPartialFile(String assetPath) {
+        PartialCacheFile partialCacheFile = partialFiles.remove(assetPath);
+        if (partialCacheFile != null && !partialCacheFile.isComplete()) {
+            try {
+                partialCacheFile.delete();
+            } catch (IOException e) {
+                logger.warn("Failed to delete partial cache file for {}", assetPath);
+            }
+        }
+    }
 
-                cacheFile(filesByAssetPath);
+    private String erdaUrl(String assetPath) {
+        return UrlEscapers.urlFragmentEscaper().escape(storageConfig.http() + assetPath);
+    }
 
-                if (cachedFile.exists() && cachedFile.isFile() && cachedFile.canRead()) {
-                    return Optional.of(new CachedFileInfo(cachedFile, cachedFile.getName()));
+    /**
+     * Starts downloading the file into the cache unless a download of it is already running, in which case the running
+     * download is returned. Returns null if the file was cached while the download was being set up.
+     */
+    private CacheFill startFill(String assetPath, DasscoFile dasscoFile) {
+        Path targetPath = Path.of(shareConfig.cacheFolder() + assetPath);
+        CacheFill fill = new CacheFill(targetPath, dasscoFile.sizeBytes(), dasscoFile.crc());
+        CacheFill existing = inflightFills.putIfAbsent(assetPath, fill);
+        if (existing != null) {
+            return existing;
+        }
+        File cachedFile = targetPath.toFile();
+        if ((cachedFiles.getIfPresent(assetPath) != null || pinnedFiles.containsKey(assetPath)) && cachedFile.isFile() && cachedFile.canRead()) {
+            inflightFills.remove(assetPath, fill);
+            return null;
+        }
+        logger.info("File didn't exist in cache, fetching from ERDA");
+        String erdaLocation = erdaUrl(assetPath);
+        // Another instance is only asked on the first attempt, retries and downloads that fail verification go to ERDA.
+        AtomicBoolean askPeers = new AtomicBoolean(peerCacheClient.isEnabled());
+        CacheFill.ResumableSource source = offset -> {
+            if (askPeers.getAndSet(false)) {
+                InputStream fromPeer = peerCacheClient.fetch(assetPath, offset);
+                if (fromPeer != null) {
+                    return fromPeer;
                 }
-
-                return Optional.empty();
             }
-        } catch (DasscoUnauthorizedException | DasscoNotFoundException | DasscoIllegalActionException e) {
-            throw e;
-        } catch (Exception e) {
-            logger.error("error fetching cached file", e);
-            throw new RuntimeException(e);
-        }
+            return fetchRangeFromERDA(erdaLocation, offset, -1);
+        };
+        cacheFillExecutor.execute(() -> {
+            try {
+                fill.fill(source, cacheConfig.fillMaxAttempts(), cacheConfig.fillRetryBackoff());
+                crcMismatches.increment(fill.crcMismatches());
+                if (fill.isDone()) {
+                    memoryTier.invalidate(assetPath);
+                    // The fill replaced any earlier version of the file, which may have been the last link to its blob.
+                    blobStore.unlinked(targetPath);
+                    // Files are only replaced in the cache, never written in place, so they can share their blob.
+                    blobStore.deduplicate(targetPath, fill.sha256());
+                    cacheFile(dasscoFile);
+                    // The complete file replaces any blocks cached by range requests.
+                    discardPartialFile(assetPath);
+                }
+            } catch (Exception e) {
+                fill.fail(e);
+            } finally {
+                inflightFills.remove(assetPath, fill);
+            }
+        });
+        return fill;
     }
 
-
     public Optional<FileService.FileResult> getFile(String institution, String collection, String assetGuid, String filePath, User user) {
         logger.info("validating access");
         if (!validateAccess(user, assetGuid)) {
             throw new DasscoUnauthorizedException("User does not have access");
         }
         logger.info("finished validating access");
-        //Check cache first
-        String path = Strings.join(new String[]{shareConfig.cacheFolder(), institution, collection, assetGuid, filePath}, "/");
+        String assetPath = "/" + Strings.join(new String[]{institution, collection, assetGuid, filePath}, "/");
         try {
-            String assetPath = "/" + Strings.join(new String[]{institution, collection, assetGuid, filePath}, "/");
-            CacheInfo cacheInfo = cachedFiles.get(assetPath);
-            if (cacheInfo != null) {
-                Optional<FileService.FileResult> file = fileService.getFile(path);
-                // If the file does not exist, another node has likely deleted it.
-                if (file.isPresent()) {
-                    idsToRefresh.add(cacheInfo.fileCacheId());
-                    return file;
-                }
-                cachedFiles.invalidate(cacheInfo.path());
-            }
-            FileRepository fileRepository = jdbi.onDemand(FileRepository.class);
-            DasscoFile filesByAssetPath = fileRepository.getFilesByAssetPath(assetPath);
-            if (filesByAssetPath == null) {
-                throw new DasscoNotFoundException("File not found for institution: %s, collection: %s, assetGuid: %s, path: %s".formatted(institution, collection, assetGuid, filePath));
-            }
-            if (filesByAssetPath.syncStatus() != FileSyncStatus.SYNCHRONIZED || filesByAssetPath.deleteAfterSync()) {
-                throw new DasscoIllegalActionException("File is being edited");
-            }
-            logger.info("File didnt exist in cache, fetching from ERDA");
-            String erdaLocation = UrlEscapers.urlFragmentEscaper().escape(Strings.join(new String[]{storageConfig.http(), institution, collection, assetGuid, filePath}, "/"));
-//            erdaLocation = UriUtils.encodePath(erdaLocation, "UTF-8");
-            try (InputStream inputStream = fetchFromERDA(erdaLocation)) {
-                logger.info("got stream");
-                new File(path).mkdirs();
-                Files.copy(inputStream, Path.of(path), StandardCopyOption.REPLACE_EXISTING);
+            Optional<CachedFileInfo> cachedFileInfo = getOrFillCachedFile(assetPath, "File not found for institution: %s, collection: %s, assetGuid: %s, path: %s".formatted(institution, collection, assetGuid, filePath), null);
+            if (cachedFileInfo.isEmpty()) {
+                return Optional.empty();
             }
-            cacheFile(filesByAssetPath);
-            return fileService.getFile(path);
+            return Optional.of(new FileService.FileResult(cachedFileInfo.get().openStream(), cachedFileInfo.get().filename(), null));
         } catch (Exception e) {
             logger.error("error", e);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Returns the file if it is completely in the cache of this instance, without fetching it. Used to serve the other
+     * instances, which must not make this instance download from ERDA on their behalf.
+     */
+    public Optional<File> getLocallyCachedFile(String assetPath) {
+        CacheInfo cacheInfo = pinnedFiles.get(assetPath);
+        if (cacheInfo == null) {
+            cacheInfo = cachedFiles.getIfPresent(assetPath);
+        }
+        File cachedFile = new File(shareConfig.cacheFolder() + assetPath);
+        if (cacheInfo == null || !cachedFile.isFile() || inflightFills.containsKey(assetPath)) {
+            return Optional.empty();
+        }
+        accessRecorder.record(cacheInfo.fileCacheId());
+        return Optional.of(cachedFile);
+    }
+
     public Optional<FileService.FileResult> tryGetFile(
             String institution,
             String collection,
@@ -331,45 +653,18 @@ public class CacheFileService {
                 ));
             }
 
-            DasscoFile meta = null;
-            try {
-                FileRepository repo = jdbi.onDemand(FileRepository.class);
-                meta = repo.getFilesByAssetPath(assetPath);
-            } catch (Exception e) {
-                logger.warn("Metadata lookup failed for {}: {}", assetPath, e.getMessage());
-            }
-
-            if (meta == null) {
-                logger.warn("No metadata found for path {} — cannot fetch file", assetPath);
-                return Optional.empty();
-            }
-
-            if (meta.syncStatus() != FileSyncStatus.SYNCHRONIZED || meta.deleteAfterSync()) {
-                logger.warn("File {} not synchronized or flagged for deletion. Skipping.", assetPath);
-                return Optional.empty();
-            }
-
-            // 5. Attempt to fetch from ERDA and write to cache
+            // Fetch from ERDA through the cache, sharing the download if it is already running
             try {
-                String erdaUrl = UrlEscapers.urlFragmentEscaper().escape(Strings.join(new String[]{storageConfig.http(), institution, collection, assetGuid, normalizedFilePath}, "/"));
-                logger.debug("Fetching asset from ERDA: {}", erdaUrl);
-
-                try (InputStream remote = fetchFromERDA(erdaUrl)) {
-                    if (remote == null) {
-                        logger.warn("fetchFromERDA returned null InputStream for {}", erdaUrl);
-                        return Optional.empty();
-                    }
-
-                    cachedFile.getParentFile().mkdirs();
-                    Files.copy(remote, cachedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                    cacheFile(meta);
-                    logger.debug("Cached file written to {}", cachePath);
+                Optional<CachedFileInfo> cachedFileInfo = getOrFillCachedFile(assetPath, "No metadata found for path %s".formatted(assetPath), null);
+                if (cachedFileInfo.isEmpty()) {
+                    logger.warn("ERDA did not return {}", assetPath);
+                    return Optional.empty();
                 }
 
                 String mime = Files.probeContentType(cachedFile.toPath());
                 if (mime == null) mime = "application/octet-stream";
                 return Optional.of(new FileService.FileResult(
-                        new FileInputStream(cachedFile),
+                        cachedFileInfo.get().openStream(),
                         cachedFile.getName(),
                         mime
                 ));
@@ -427,63 +722,361 @@ public class CacheFileService {
         }
     }
 
+    /**
+     * Returns the cache file of the path if it is cached and has the given size, e.g. to copy a parent asset into a
+     * share without downloading it from ERDA.
+     */
+    public Optional<Path> getCachedCopy(String assetPath, long sizeBytes) {
+        if (cachedFiles.getIfPresent(assetPath) == null && !pinnedFiles.containsKey(assetPath)) {
+            return Optional.empty();
+        }
+        Path cachedFile = Path.of(shareConfig.cacheFolder() + assetPath);
+        try {
+            if (Files.isRegularFile(cachedFile) && Files.size(cachedFile) == sizeBytes) {
+                return Optional.of(cachedFile);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read the size of {}", cachedFile);
+        }
+        return Optional.empty();
+    }
+
     public void cacheFile(DasscoFile dasscoFile) {
+        if (pinnedFiles.containsKey(dasscoFile.path())) {
+            // The entry was created when the file was pinned.
+            return;
+        }
         FileCacheRepository fileCacheRepository = jdbi.onDemand(FileCacheRepository.class);
         CacheInfo cacheInfo = new CacheInfo(dasscoFile.path(), Instant.now().plus(1, ChronoUnit.DAYS), dasscoFile.fileId());
-        fileCacheRepository.insertCache(cacheInfo);
-        Optional<CacheInfo> fileCacheByPath = fileCacheRepository.getFileCacheByPath(dasscoFile.path());
+        fileCacheRepository.insertCache(cacheInfo, nodeId);
+        Optional<CacheInfo> fileCacheByPath = fileCacheRepository.getFileCacheByPath(dasscoFile.path(), nodeId);
         cachedFiles.put(dasscoFile.path(), fileCacheByPath.orElseThrow(() -> new RuntimeException("Some thing went wrong :^(")));
     }
 
-    private void copyToCacheAtomically(InputStream inputStream, Path targetPath) throws IOException {
-        Path parent = targetPath.getParent();
-        if (parent != null) {
-            Files.createDirectories(parent);
+    /**
+     * Puts the files of a share that has just been synchronized into the cache, so the files do not have to be
+     * downloaded from ERDA again. Each file is hard linked from the share into the cache folder, or copied if the share
+     * is on another file system, and the cache entries are inserted in one batch. Files that do not match their size in
+     * the database, or that are being downloaded, are left out.
+     */
+    public void promoteToCache(String shareFolder, List<DasscoFile> dasscoFiles) {
+        List<DasscoFile> promoted = new ArrayList<>();
+        for (DasscoFile dasscoFile : dasscoFiles) {
+            // Paths are /institution/collection/assetGuid/path within the asset
+            String[] pathElements = dasscoFile.path().split("/", 5);
+            if (dasscoFile.deleteAfterSync() || pathElements.length < 5 || inflightFills.containsKey(dasscoFile.path())) {
+                continue;
+            }
+            Path source = Path.of(shareFolder, pathElements[4]);
+            Path target = Path.of(shareConfig.cacheFolder() + dasscoFile.path());
+            try {
+                if (!Files.isRegularFile(source) || Files.size(source) != dasscoFile.sizeBytes()) {
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                Path temp = target.resolveSibling(target.getFileName() + ".promote");
+                Files.deleteIfExists(temp);
+                try {
+                    Files.createLink(temp, source);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(source, temp);
+                }
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                blobStore.unlinked(target);
+                memoryTier.invalidate(dasscoFile.path());
+                discardPartialFile(dasscoFile.path());
+                promoted.add(dasscoFile);
+            } catch (IOException e) {
+                logger.warn("Failed to promote {} to the cache", source, e);
+            }
+        }
+        if (promoted.isEmpty()) {
+            return;
+        }
+        // The entries of pinned files stay, they already point at the promoted file.
+        promoted.removeIf(f -> pinnedFiles.containsKey(f.path()));
+        if (promoted.isEmpty()) {
+            return;
+        }
+        List<Long> fileIds = promoted.stream().map(DasscoFile::fileId).toList();
+        Instant expiration = Instant.now().plus(1, ChronoUnit.DAYS);
+        List<CacheInfo> cacheInfos = jdbi.inTransaction(h -> {
+            FileCacheRepository fileCacheRepository = h.attach(FileCacheRepository.class);
+            fileCacheRepository.deleteFileCacheByFileIds(fileIds, nodeId);
+            fileCacheRepository.insertCaches(promoted.stream().map(f -> new CacheInfo(f.path(), expiration, f.fileId())).toList(), nodeId);
+            return fileCacheRepository.getFileCachesByFileIds(fileIds, nodeId);
+        });
+        // The promoted files count towards the cache budget like any other file, and may evict others.
+        for (CacheInfo cacheInfo : cacheInfos) {
+            cachedFiles.put(cacheInfo.path(), cacheInfo);
         }
+        logger.info("Promoted {} synchronized files to the cache", cacheInfos.size());
+    }
 
-        Path tempPath = parent == null
-                ? Files.createTempFile(targetPath.getFileName().toString(), ".tmp")
-                : Files.createTempFile(parent, targetPath.getFileName().toString(), ".tmp");
-        boolean moved = false;
-        try {
-            Files.copy(inputStream, tempPath, StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * Reconciles the cache folder with the file_cache table in the background, so startup is not delayed. See
+     * {@link CacheReconciler}.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void reconcileCache() {
+        reconcilePool.execute(() -> {
             try {
-                Files.move(tempPath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-            } catch (AtomicMoveNotSupportedException e) {
-                Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                new CacheReconciler(Path.of(shareConfig.cacheFolder()), jdbi, nodeId, reconcilePool,
+                        path -> inflightFills.containsKey(path) || partialFiles.containsKey(path),
+                        this::warm, this::resumePartialFile)
+                        .reconcile();
+                prefetchMissingPinnedFiles();
+            } catch (Exception e) {
+                logger.error("Failed to reconcile the cache", e);
+            }
+        });
+    }
+
+    private void warm(CacheInfo cacheInfo) {
+        if (cacheInfo.pinned()) {
+            pinnedFiles.putIfAbsent(cacheInfo.path(), cacheInfo);
+        } else {
+            cachedFiles.putIfAbsent(cacheInfo.path(), cacheInfo);
+        }
+    }
+
+    /**
+     * Pins the files of the given assets, or of a whole collection, in the cache. Pinned files are not evicted and do
+     * not expire, they use a separate budget so they cannot push other files out of the cache. Files that are not in
+     * the cache yet are fetched from ERDA in the background.
+     */
+    public synchronized CachePinStatus pin(CachePinRequest cachePinRequest) {
+        List<DasscoFile> dasscoFiles = filesToPin(cachePinRequest);
+        List<Long> fileIds = dasscoFiles.stream().map(DasscoFile::fileId).toList();
+        if (fileIds.isEmpty()) {
+            return getPinStatus();
+        }
+        List<CacheInfo> pinned = jdbi.inTransaction(h -> {
+            FileCacheRepository fileCacheRepository = h.attach(FileCacheRepository.class);
+            Set<Long> alreadyPinned = new HashSet<>();
+            Set<Long> cached = new HashSet<>();
+            for (CacheInfo cacheInfo : fileCacheRepository.getFileCachesByFileIds(fileIds, nodeId)) {
+                (cacheInfo.pinned() ? alreadyPinned : cached).add(cacheInfo.fileId());
+            }
+            long addedBytes = dasscoFiles.stream().filter(f -> !alreadyPinned.contains(f.fileId())).mapToLong(DasscoFile::sizeBytes).sum();
+            if (fileCacheRepository.getPinnedBytes(nodeId) + addedBytes > pinnedBudgetBytes()) {
+                throw new DasscoIllegalActionException("Pinning %d bytes would exceed the pinned cache budget of %d bytes".formatted(addedBytes, pinnedBudgetBytes()));
+            }
+            if (!cached.isEmpty()) {
+                fileCacheRepository.setPinned(new ArrayList<>(cached), true, Instant.now().plus(1, ChronoUnit.DAYS), nodeId);
+            }
+            fileCacheRepository.insertCaches(dasscoFiles.stream()
+                    .filter(f -> !alreadyPinned.contains(f.fileId()) && !cached.contains(f.fileId()))
+                    .map(f -> new CacheInfo(f.path(), Instant.now().plus(1, ChronoUnit.DAYS), f.fileId(), true))
+                    .toList(), nodeId);
+            return fileCacheRepository.getFileCachesByFileIds(fileIds, nodeId);
+        });
+        for (CacheInfo cacheInfo : pinned) {
+            pinnedFiles.put(cacheInfo.path(), cacheInfo);
+            // Removing the entry directly does not count as an eviction, so the file stays on disk.
+            cachedFiles.remove(cacheInfo.path());
+            if (!new File(shareConfig.cacheFolder() + cacheInfo.path()).isFile()) {
+                prefetch(cacheInfo.path());
+            }
+        }
+        logger.info("Pinned {} files in the cache", pinned.size());
+        return getPinStatus();
+    }
+
+    /**
+     * Unpins the files of the given assets or collection. Files that are on disk go back to the normal cache, where
+     * they may be evicted like any other file.
+     */
+    public synchronized CachePinStatus unpin(CachePinRequest cachePinRequest) {
+        List<Long> fileIds = filesToPin(cachePinRequest).stream().map(DasscoFile::fileId).toList();
+        if (fileIds.isEmpty()) {
+            return getPinStatus();
+        }
+        List<CacheInfo> unpinned = jdbi.inTransaction(h -> {
+            FileCacheRepository fileCacheRepository = h.attach(FileCacheRepository.class);
+            fileCacheRepository.setPinned(fileIds, false, Instant.now().plus(1, ChronoUnit.DAYS), nodeId);
+            List<CacheInfo> cacheInfos = fileCacheRepository.getFileCachesByFileIds(fileIds, nodeId);
+            List<Long> notOnDisk = cacheInfos.stream()
+                    .filter(c -> !new File(shareConfig.cacheFolder() + c.path()).isFile())
+                    .map(CacheInfo::fileCacheId)
+                    .toList();
+            if (!notOnDisk.isEmpty()) {
+                fileCacheRepository.deleteFileCacheByIds(notOnDisk);
+            }
+            return cacheInfos.stream().filter(c -> !notOnDisk.contains(c.fileCacheId())).toList();
+        });
+        for (CacheInfo cacheInfo : unpinned) {
+            pinnedFiles.remove(cacheInfo.path());
+            cachedFiles.put(cacheInfo.path(), cacheInfo);
+        }
+        logger.info("Unpinned {} files in the cache", fileIds.size());
+        return getPinStatus();
+    }
+
+    public CachePinStatus getPinStatus() {
+        return new CachePinStatus(pinnedFiles.size(), pinnedFiles.values().stream().mapToLong(CacheInfo::sizeBytes).sum(),
+                pinnedBudgetBytes(), pendingPrefetches.size());
+    }
+
+    private List<DasscoFile> filesToPin(CachePinRequest cachePinRequest) {
+        FileRepository fileRepository = jdbi.onDemand(FileRepository.class);
+        List<DasscoFile> dasscoFiles = new ArrayList<>();
+        if (cachePinRequest.asset_guids() != null && !cachePinRequest.asset_guids().isEmpty()) {
+            dasscoFiles.addAll(fileRepository.getSyncFilesByAssetGuids(new HashSet<>(cachePinRequest.asset_guids())));
+        }
+        if (cachePinRequest.institution() != null && cachePinRequest.collection() != null) {
+            dasscoFiles.addAll(fileRepository.getSyncFilesByCollection(cachePinRequest.institution(), cachePinRequest.collection()));
+        }
+        Map<Long, DasscoFile> byId = new LinkedHashMap<>();
+        for (DasscoFile dasscoFile : dasscoFiles) {
+            if (!dasscoFile.deleteAfterSync()) {
+                byId.put(dasscoFile.fileId(), dasscoFile);
             }
-            moved = true;
-        } finally {
-            if (!moved) {
-                Files.deleteIfExists(tempPath);
+        }
+        return new ArrayList<>(byId.values());
+    }
+
+    private void prefetchMissingPinnedFiles() {
+        for (String path : pinnedFiles.keySet()) {
+            if (!new File(shareConfig.cacheFolder() + path).isFile()) {
+                prefetch(path);
             }
         }
     }
 
-    private Object cachePopulationLockFor(String path) {
-        return cachePopulationLocks[Math.floorMod(path.hashCode(), cachePopulationLocks.length)];
+    /**
+     * Fetches a pinned file from ERDA in the background, at most cache.prefetchConcurrency files at a time.
+     */
+    private void prefetch(String assetPath) {
+        if (!pendingPrefetches.add(assetPath)) {
+            return;
+        }
+        prefetchExecutor.execute(() -> {
+            try {
+                if (!pinnedFiles.containsKey(assetPath)) {
+                    return;
+                }
+                DasscoFile dasscoFile = jdbi.onDemand(FileRepository.class).getFilesByAssetPath(assetPath);
+                if (dasscoFile == null || dasscoFile.syncStatus() != FileSyncStatus.SYNCHRONIZED) {
+                    return;
+                }
+                CacheFill fill = startFill(assetPath, dasscoFile);
+                if (fill != null) {
+                    fill.awaitCompletion();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.warn("Failed to prefetch pinned file {}", assetPath, e);
+            } finally {
+                pendingPrefetches.remove(assetPath);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushEvictions();
+        cacheFillExecutor.shutdownNow();
+        prefetchExecutor.shutdownNow();
+        reconcilePool.shutdownNow();
     }
 
     public void invalidateFileFromCache(String path) {
         this.cachedFiles.invalidate(path);
+        memoryTier.invalidate(path);
+        discardPartialFile(path);
+        if (pinnedFiles.containsKey(path)) {
+            // A pinned file stays pinned, so the new version is fetched right away.
+            deleteCacheFile(path);
+            prefetch(path);
+        }
+        invalidationBus.publish(List.of(path));
+    }
+
+    /**
+     * Tells the other instances that the files of the asset have changed. This instance has the new files already, as
+     * they are promoted to the cache when the asset is synchronized.
+     */
+    public void invalidateAsset(String institution, String collection, String assetGuid) {
+        invalidationBus.publish(List.of("/" + institution + "/" + collection + "/" + assetGuid + "/"));
     }
 
-    // WARNING WARNING WARNING
-    // If we are going to run in more than one instance we should create a lock in the db so only one instance runs the eviction code.
-    // We can use SELECT FOR UPDATE.
+    /**
+     * Evicts the files that another instance has changed. A path ending with a slash evicts every cached file below it.
+     */
+    void evictInvalidated(List<String> paths) {
+        for (String path : paths) {
+            if (!path.endsWith("/")) {
+                evict(path);
+                continue;
+            }
+            Path folder = Path.of(shareConfig.cacheFolder() + path);
+            if (!Files.isDirectory(folder)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(folder)) {
+                files.filter(Files::isRegularFile)
+                        .filter(f -> CacheFill.parsePartialPath(f).isEmpty())
+                        .map(f -> path + folder.relativize(f).toString().replace("\\", "/"))
+                        .toList()
+                        .forEach(this::evict);
+            } catch (IOException | UncheckedIOException e) {
+                logger.warn("Failed to evict the invalidated files in {}", folder, e);
+            }
+        }
+        logger.info("Evicted {} paths invalidated by another instance", paths.size());
+    }
+
+    /**
+     * Removes the file from the cache, on disk and in file_cache, so the next read fetches it from ERDA again. A file
+     * that is being downloaded is left alone, the download fetches the new version.
+     */
+    private void evict(String path) {
+        if (inflightFills.containsKey(path)) {
+            return;
+        }
+        memoryTier.invalidate(path);
+        discardPartialFile(path);
+        if (pinnedFiles.containsKey(path)) {
+            deleteCacheFile(path);
+            prefetch(path);
+            return;
+        }
+        CacheInfo cacheInfo = cachedFiles.getIfPresent(path);
+        if (cacheInfo != null) {
+            cachedFiles.remove(path);
+        } else {
+            cacheInfo = jdbi.onDemand(FileCacheRepository.class).getFileCacheByPath(path, nodeId).orElse(null);
+        }
+        if (cacheInfo != null) {
+            onEvicted(path, cacheInfo);
+        } else {
+            deleteCacheFile(path);
+        }
+    }
+
+    /**
+     * Removes the expired files of this instance. Each instance only evicts its own entries, as the files are on its own
+     * disk, and an advisory lock keeps two instances that are started with the same node id, e.g. during a rolling
+     * deployment, from evicting the same entries.
+     */
     @Scheduled(cron = "0 15,45 * * * *") // at min 15 and 45
     public void removedExpiredCaches() {
         jdbi.inTransaction(h -> {
-            logger.info("Running cache eviction code");
+            logger.info("Running cache expiration code");
             FileCacheRepository fileCacheRepository = h.attach(FileCacheRepository.class);
-            // If more than 90% of available space is used, we evict based on disk usage as well as expiration date.
-            long maxBytes = (long) (.90 * (shareConfig.cacheDiskspace() * 1000000L));
-            List<String> pathsToDelete = fileCacheRepository.evict(maxBytes);
+            if (!fileCacheRepository.tryLock("file_cache.evict:" + nodeId)) {
+                logger.info("Cache expiration is already running for node {}", nodeId);
+                return List.of();
+            }
+            // The size of the cache is kept within budget by cachedFiles, here we only remove files that have expired.
+            List<String> pathsToDelete = fileCacheRepository.evictExpired(nodeId);
             for (String s : pathsToDelete) {
                 this.cachedFiles.invalidate(s);
-                String locationOnDisk = shareConfig.cacheFolder() + s;
-                logger.info("Evicting {}", locationOnDisk);
-                boolean b = fileService.deleteFile(locationOnDisk);
+                memoryTier.invalidate(s);
+                logger.info("Evicting {}", shareConfig.cacheFolder() + s);
+                deleteCacheFile(s);
             }
 
             return pathsToDelete;
@@ -493,85 +1086,41 @@ public class CacheFileService {
     @Scheduled(cron = "0 0,30 * * * *") // at min 0 and 30
     public void refreshCache() {
         logger.info("Running cache refresh code");
-        if (idsToRefresh.isEmpty()) {
+        if (accessRecorder.isEmpty()) {
             return;
         }
         Instant newExpirationDate = Instant.now().plus(1, ChronoUnit.HOURS);
-        List<Long> idsToUpdate;
-        synchronized (this) {
-            idsToUpdate = new ArrayList<>(idsToRefresh);
-            idsToRefresh.clear();
-        }
-        logger.info("Refreshing {} cache entries", idsToUpdate.size());
-        List<Long> batch = new ArrayList<>();
-        FileCacheRepository fcr = jdbi.onDemand(FileCacheRepository.class);
-
-        for (Long l : idsToUpdate) {
-            batch.add(l);
-            if (batch.size() > 1000) {
-                fcr.refreshCacheEntries(batch, newExpirationDate);
-                batch.clear();
+        Integer refreshed = jdbi.inTransaction(h -> {
+            FileCacheRepository fcr = h.attach(FileCacheRepository.class);
+            // Only one instance with this node id refreshes its entries at a time.
+            if (!fcr.tryLock("file_cache.refresh:" + nodeId)) {
+                logger.info("Cache refresh is already running for node {}", nodeId);
+                return 0;
             }
-        }
-        if (!batch.isEmpty()) {
-            fcr.refreshCacheEntries(batch, newExpirationDate);
-        }
+            return accessRecorder.flush(1000, batch -> fcr.refreshCacheEntries(batch, newExpirationDate));
+        });
+        logger.info("Refreshed {} cache entries, {} reads were coalesced and {} dropped since start", refreshed, accessRecorder.coalescedCount(), accessRecorder.droppedCount());
     }
 
     public InputStream fetchFromERDA(String erdaUrl) {
-        HttpClient httpClient = HttpClient.newBuilder().build();
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    //                .header("Authorization", "Bearer " + user.token)
-                    .uri(new URI(erdaUrl))
-                    .GET()
-                    .build();
-            new StreamingOutput() {
-                @Override
-                public void write(OutputStream output) throws IOException, WebApplicationException {
-                }
-            };
-            HttpResponse<InputStream> send = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
-            if (send.statusCode() > 199 && send.statusCode() < 300) {
-                return send.body();
-            }
-        } catch (Exception e) {
+            return erdaHttpGateway.get(erdaUrl, 0, -1);
+        } catch (IOException e) {
             logger.error("error", e);
             throw new RuntimeException(e);
         }
-        //Caching
-        return null;
     }
 
-    public boolean validateAccess(User user, String assetGuid) {
-        // Retrieve service token
-//        var token = this.keycloakService.getAdminToken();
-
-        try (HttpClient httpClient = HttpClient.newBuilder().build();) {
-            HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
-                    .POST(HttpRequest.BodyPublishers.noBody())
-                    .uri(new URI(this.assetServiceProperties.rootUrl() + "/api/v1/assets/readaccess?assetGuid=" + assetGuid));
-            if (user.token != null) {
-                requestBuilder.header("Authorization", "Bearer " + user.token);
-            }
+    /**
+     * Fetches the bytes from start to end (both inclusive) of a file in ERDA, or from start to the end of the file if
+     * end is negative. Returns null if ERDA does not have the file and throws if ERDA fails, so the caller can retry.
+     */
+    public InputStream fetchRangeFromERDA(String erdaUrl, long start, long end) throws IOException {
+        return erdaHttpGateway.get(erdaUrl, start, end);
+    }
 
-            HttpRequest request = requestBuilder.build();
-            HttpResponse<String> send = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            if (send.statusCode() > 199 && send.statusCode() < 300) {
-                return true;
-            }
-            if (send.statusCode() == 401 || send.statusCode() == 403) {
-                return false;
-            }
-            if (send.statusCode() == 404) {
-                throw new DasscoNotFoundException("Asset " + assetGuid + " does not exist");
-            } else {
-                throw new RuntimeException("Error occurred when querying user access to asset, response code: " + send.statusCode());
-            }
-        } catch (IOException | URISyntaxException | InterruptedException e) {
-            System.out.println(e.getClass());
-            throw new RuntimeException("Failed to check user access to asset", e);
-        }
+    public boolean validateAccess(User user, String assetGuid) {
+        return assetAccessService.canRead(user, assetGuid);
     }
 
     public void saveFilesTempFolder(List<String> paths, User user, String guid) {
@@ -0,0 +1,475 @@
+package dk.northtech.dasscofileproxy.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A single download of a file from ERDA into the cache. The bytes are written to a partial file next to the cache file
+ * and the partial file is moved into place when the download completes. While the download is running, any number of
+ * readers can stream the part of the file that has been written so far, blocking until more bytes arrive.
+ * <p>
+ * The partial file is named after the expected size and CRC of the file. If the connection to ERDA drops, the download
+ * is resumed from the last written byte, and a partial file left by an earlier failed download or a restart is resumed
+ * instead of downloading the file again.
+ * <p>
+ * The CRC32 and SHA-256 of the file are computed while it is written. A file whose CRC does not match the CRC it was
+ * uploaded with is never published, it is downloaded again from the start, and readers of the bad bytes fail. Readers
+ * get the last byte only once the CRC has matched. The
+ * SHA-256 is used to deduplicate the file in the {@link BlobStore} without reading it again.
+ */
+public class CacheFill {
+    private static final Logger logger = LoggerFactory.getLogger(CacheFill.class);
+    static final String PARTIAL_SUFFIX = ".download";
+    private static final Pattern PARTIAL_NAME = Pattern.compile("(.+)\\.(\\d+)-([0-9a-f]+)" + Pattern.quote(PARTIAL_SUFFIX));
+    private final Path targetPath;
+    private final Path partialPath;
+    private final long expectedSize;
+    private final long expectedCrc;
+    private final Object monitor = new Object();
+    private final MessageDigest digest = newSha256();
+    private final CRC32 crc32 = new CRC32();
+    private volatile String sha256;
+    private volatile int crcMismatches = 0;
+    // Incremented when the partial file is discarded, so readers of the discarded bytes can fail.
+    private volatile int generation = 0;
+
+    private volatile long written = 0;
+    private volatile boolean started = false;
+    private volatile boolean done = false;
+    private volatile IOException failure;
+
+    /**
+     * Opens the file in ERDA from the given offset. Returns null if ERDA does not have the file.
+     */
+    @FunctionalInterface
+    public interface ResumableSource {
+        InputStream open(long offset) throws IOException;
+    }
+
+    /**
+     * A partial file found on disk, with the cache file, size and CRC it belongs to.
+     */
+    public record PartialDownload(Path partialPath, Path targetPath, long expectedSize, long crc) {
+    }
+
+    public CacheFill(Path targetPath, long expectedSize) {
+        this(targetPath, expectedSize, 0);
+    }
+
+    /**
+     * @param crc the CRC32 the file was uploaded with, the downloaded file is verified against it unless it is 0
+     */
+    public CacheFill(Path targetPath, long expectedSize, long crc) {
+        this.targetPath = targetPath;
+        this.expectedSize = expectedSize;
+        this.expectedCrc = crc;
+        this.partialPath = partialPath(targetPath, expectedSize, crc);
+    }
+
+    static Path partialPath(Path targetPath, long expectedSize, long crc) {
+        return targetPath.resolveSibling(targetPath.getFileName() + "." + Math.max(expectedSize, 0) + "-" + Long.toHexString(crc) + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Returns the partial download the path belongs to, or empty if the path is not a partial file.
+     */
+    public static Optional<PartialDownload> parsePartialPath(Path path) {
+        Matcher matcher = PARTIAL_NAME.matcher(path.getFileName().toString());
+        if (!matcher.matches()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new PartialDownload(path, path.resolveSibling(matcher.group(1)),
+                    Long.parseLong(matcher.group(2)), Long.parseUnsignedLong(matcher.group(3), 16)));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    public Path targetPath() {
+        return targetPath;
+    }
+
+    public Path partialPath() {
+        return partialPath;
+    }
+
+    public long expectedSize() {
+        return expectedSize;
+    }
+
+    public long written() {
+        return written;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * The number of times the downloaded file did not match its CRC.
+     */
+    public int crcMismatches() {
+        return crcMismatches;
+    }
+
+    /**
+     * The hex encoded SHA-256 of the file, or null until the fill is done.
+     */
+    public String sha256() {
+        return sha256;
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies the source into the partial file and publishes the file to the target path. The source is read once, so
+     * the download is not retried. A null source means that ERDA did not return the file, this fails the fill.
+     */
+    public void fill(InputStream source) {
+        if (source == null) {
+            fail(new FileNotFoundException("ERDA did not return " + targetPath.getFileName()));
+            return;
+        }
+        fill(offset -> {
+            source.skipNBytes(offset);
+            return source;
+        }, 1, Duration.ZERO);
+        closeQuietly(source);
+    }
+
+    /**
+     * Downloads the file into the partial file and publishes the file to the target path. Bytes already in the partial
+     * file are kept, and if the source fails the download is resumed from the last written byte, up to maxAttempts
+     * times with exponential backoff. The partial file is kept when the fill fails, so a later fill can resume it.
+     * If the CRC of the complete file does not match, the partial file is discarded and the file is downloaded again,
+     * counting as an attempt.
+     */
+    public void fill(ResumableSource source, int maxAttempts, Duration retryBackoff) {
+        try {
+            Files.createDirectories(partialPath.getParent());
+            long existing = Files.exists(partialPath) ? Files.size(partialPath) : 0;
+            if (expectedSize > 0 && existing > expectedSize) {
+                Files.delete(partialPath);
+                existing = 0;
+            }
+            if (existing > 0) {
+                logger.info("Resuming download of {} from byte {}", targetPath, existing);
+                // The checksums of the resumed bytes are not kept across restarts, so they are read again.
+                try (InputStream in = Files.newInputStream(partialPath)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                        crc32.update(buffer, 0, read);
+                    }
+                }
+            }
+            written = existing;
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        int attempt = 1;
+        while (true) {
+            while (expectedSize <= 0 || written < expectedSize) {
+                try {
+                    if (copyFrom(source)) {
+                        break;
+                    }
+                    fail(new FileNotFoundException("ERDA did not return " + targetPath.getFileName()));
+                    return;
+                } catch (IOException e) {
+                    if (expectedSize > 0 && written > expectedSize) {
+                        discard(new IOException("Expected %d bytes from ERDA but got %d".formatted(expectedSize, written)));
+                        return;
+                    }
+                    if (attempt >= maxAttempts) {
+                        fail(e);
+                        return;
+                    }
+                    long backoffMillis = retryBackoff.toMillis() << Math.min(attempt - 1, 16);
+                    logger.warn("Download of {} failed after {} bytes, retrying in {} ms (attempt {}/{}): {}",
+                            targetPath, written, backoffMillis, attempt, maxAttempts, e.getMessage());
+                    try {
+                        Thread.sleep(backoffMillis);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        fail(new InterruptedIOException("Interrupted while waiting to resume download"));
+                        return;
+                    }
+                    attempt++;
+                }
+            }
+            if (expectedCrc == 0 || crc32.getValue() == expectedCrc) {
+                break;
+            }
+            crcMismatches++;
+            IOException mismatch = new IOException("CRC of %s from ERDA is %d but the file was uploaded with %d"
+                    .formatted(targetPath.getFileName(), crc32.getValue(), expectedCrc));
+            if (attempt >= maxAttempts) {
+                discard(mismatch);
+                return;
+            }
+            logger.warn("{}, downloading it again (attempt {}/{})", mismatch.getMessage(), attempt, maxAttempts);
+            try {
+                restart();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            attempt++;
+        }
+        sha256 = HexFormat.of().formatHex(digest.digest());
+        try {
+            try {
+                Files.move(partialPath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partialPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        synchronized (monitor) {
+            done = true;
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Appends the source from the current offset to the partial file. Returns false if ERDA does not have the file and
+     * throws if the stream ends before the expected size.
+     */
+    private boolean copyFrom(ResumableSource source) throws IOException {
+        try (InputStream in = source.open(written)) {
+            if (in == null) {
+                return false;
+            }
+            // A write that failed halfway may have left bytes that were not counted, they are downloaded again.
+            if (Files.exists(partialPath) && Files.size(partialPath) > written) {
+                try (FileChannel channel = FileChannel.open(partialPath, StandardOpenOption.WRITE)) {
+                    channel.truncate(written);
+                }
+            }
+            try (OutputStream out = new FileOutputStream(partialPath.toFile(), true)) {
+                // Readers open the partial file, so it must exist before they are let in.
+                markStarted();
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    // Readers use the partial file directly, so the bytes must be handed to the OS before they are announced.
+                    out.flush();
+                    digest.update(buffer, 0, read);
+                    crc32.update(buffer, 0, read);
+                    synchronized (monitor) {
+                        written += read;
+                        monitor.notifyAll();
+                    }
+                }
+            }
+        }
+        if (expectedSize > 0 && written != expectedSize) {
+            throw new IOException("Expected %d bytes from ERDA but got %d".formatted(expectedSize, written));
+        }
+        return true;
+    }
+
+    /**
+     * Discards the downloaded bytes so the file can be downloaded again from the start. Readers that have read any of
+     * the discarded bytes fail.
+     */
+    private void restart() throws IOException {
+        synchronized (monitor) {
+            generation++;
+            written = 0;
+            monitor.notifyAll();
+        }
+        Files.deleteIfExists(partialPath);
+        digest.reset();
+        crc32.reset();
+    }
+
+    /**
+     * Fails the fill. The partial file is kept so that the download can be resumed later.
+     */
+    public void fail(Exception e) {
+        logger.warn("Cache fill of {} failed: {}", targetPath, e.getMessage());
+        synchronized (monitor) {
+            failure = e instanceof IOException ioException ? ioException : new IOException(e);
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Fails the fill and deletes the partial file, because its content cannot be trusted.
+     */
+    private void discard(Exception e) {
+        fail(e);
+        try {
+            Files.deleteIfExists(partialPath);
+        } catch (IOException ex) {
+            logger.warn("Failed to delete partial file {}", partialPath);
+        }
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            // Nothing to do, the fill has already failed
+        }
+    }
+
+    private void markStarted() {
+        synchronized (monitor) {
+            started = true;
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until ERDA has answered, i.e. the first bytes can be streamed or the fill has failed.
+     */
+    public void awaitStarted() throws IOException, InterruptedException {
+        synchronized (monitor) {
+            while (!started && !done && failure == null) {
+                monitor.wait();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    public void awaitCompletion() throws IOException, InterruptedException {
+        synchronized (monitor) {
+            while (!done && failure == null) {
+                monitor.wait();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Opens a stream of the file starting at the given offset. Reads block until the bytes have been downloaded and
+     * fail if the download fails.
+     */
+    public InputStream openStream(long offset) throws IOException {
+        // Read before the file is opened, so a restart while opening fails the reader rather than mixing the downloads.
+        int openedGeneration = generation;
+        RandomAccessFile raf;
+        if (done) {
+            raf = new RandomAccessFile(targetPath.toFile(), "r");
+        } else {
+            try {
+                raf = new RandomAccessFile(partialPath.toFile(), "r");
+            } catch (FileNotFoundException e) {
+                // The fill completed and moved the partial file between the check and the open.
+                if (!done) {
+                    throw e;
+                }
+                raf = new RandomAccessFile(targetPath.toFile(), "r");
+            }
+        }
+        raf.seek(offset);
+        return new GrowingFileInputStream(raf, offset, openedGeneration);
+    }
+
+    /**
+     * The number of bytes that readers may read. The last byte of a file with a CRC is held back until the CRC has been
+     * verified, so a reader that stops after the expected size, like a response with a Content-Length, cannot complete
+     * with bytes that turn out to be corrupt.
+     */
+    private long readable() {
+        if (done || expectedCrc == 0 || expectedSize <= 0) {
+            return written;
+        }
+        return Math.min(written, expectedSize - 1);
+    }
+
+    private class GrowingFileInputStream extends InputStream {
+        private final RandomAccessFile raf;
+        private final int generation;
+        private long position;
+
+        GrowingFileInputStream(RandomAccessFile raf, long position, int generation) {
+            this.raf = raf;
+            this.position = position;
+            this.generation = generation;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = awaitAvailable();
+            if (available <= 0) {
+                return -1;
+            }
+            int read = raf.read(b, off, (int) Math.min(len, available));
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        private long awaitAvailable() throws IOException {
+            synchronized (monitor) {
+                while (readable() <= position && !done && failure == null && generation == CacheFill.this.generation) {
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for ERDA");
+                    }
+                }
+                if (generation != CacheFill.this.generation) {
+                    throw new IOException("The download of %s did not match its CRC and was discarded".formatted(targetPath.getFileName()));
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return readable() - position;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
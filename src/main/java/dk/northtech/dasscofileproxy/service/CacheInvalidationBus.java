@@ -0,0 +1,245 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariConfig;
+import dk.northtech.dasscofileproxy.configuration.CacheNodeConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import org.jdbi.v3.core.Jdbi;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tells the other instances which cached files have changed, over a Postgres NOTIFY channel. Paths that are published
+ * within cache.invalidationBatchWindow of each other are sent together, in as few notifications as the payload limit of
+ * Postgres allows, so synchronizing an asset with many files does not send a notification per file. A path that ends
+ * with a slash stands for every file below it, e.g. all files of an asset.
+ * <p>
+ * Every instance listens on the channel on its own connection, outside the connection pool, and hands the paths
+ * published by the other instances to the subscribers. The listener reconnects if the connection is lost, invalidations
+ * sent in the meantime are missed and the files expire as usual.
+ */
+@Service
+public class CacheInvalidationBus {
+    private static final Logger logger = LoggerFactory.getLogger(CacheInvalidationBus.class);
+    static final String CHANNEL = "file_cache_invalidation";
+    // Postgres rejects payloads of 8000 bytes or more.
+    static final int MAX_PAYLOAD_BYTES = 7900;
+    private static final Duration RECONNECT_DELAY = Duration.ofSeconds(5);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    record Invalidation(String node, List<String> paths) {
+    }
+
+    private final String nodeId;
+    private final Duration batchWindow;
+    private final HikariConfig hikariConfig;
+    private final Jdbi jdbi;
+    private final Set<String> pending = new LinkedHashSet<>();
+    private boolean flushScheduled = false;
+    private final List<Consumer<List<String>>> subscribers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-invalidation-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean listening = false;
+    private Thread listener;
+    private final Counter publishedPaths;
+    private final Counter sentNotifications;
+    private final Counter receivedPaths;
+
+    @Inject
+    public CacheInvalidationBus(CacheNodeConfig nodeConfig, HikariConfig hikariConfig, Jdbi jdbi, MeterRegistry meterRegistry) {
+        this(nodeConfig.nodeId(), nodeConfig.invalidationBatchWindow(), hikariConfig, jdbi, meterRegistry);
+    }
+
+    CacheInvalidationBus(String nodeId, Duration batchWindow, HikariConfig hikariConfig, Jdbi jdbi, MeterRegistry meterRegistry) {
+        this.nodeId = nodeId;
+        this.batchWindow = batchWindow;
+        this.hikariConfig = hikariConfig;
+        this.jdbi = jdbi;
+        this.publishedPaths = Counter.builder("cache.invalidation.published").register(meterRegistry);
+        this.sentNotifications = Counter.builder("cache.invalidation.notifications").register(meterRegistry);
+        this.receivedPaths = Counter.builder("cache.invalidation.received").register(meterRegistry);
+    }
+
+    /**
+     * Registers a consumer of the paths invalidated by the other instances.
+     */
+    public void subscribe(Consumer<List<String>> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Sends the paths to the other instances when the current batch window closes.
+     */
+    public void publish(Collection<String> paths) {
+        synchronized (pending) {
+            pending.addAll(paths);
+            if (!flushScheduled && !pending.isEmpty()) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, batchWindow.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    void flush() {
+        List<String> paths;
+        synchronized (pending) {
+            paths = new ArrayList<>(pending);
+            pending.clear();
+            flushScheduled = false;
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+        publishedPaths.increment(paths.size());
+        for (String payload : payloads(nodeId, paths)) {
+            try {
+                notify(payload);
+                sentNotifications.increment();
+            } catch (RuntimeException e) {
+                logger.warn("Failed to publish cache invalidations, the other instances serve their copies until they expire", e);
+                return;
+            }
+        }
+    }
+
+    void notify(String payload) {
+        jdbi.useHandle(h -> h.execute("SELECT pg_notify(?, ?)", CHANNEL, payload));
+    }
+
+    /**
+     * Packs the paths into as few payloads as possible, each below the payload limit of Postgres.
+     */
+    static List<String> payloads(String nodeId, List<String> paths) {
+        int emptyBytes = utf8Length(toJson(new Invalidation(nodeId, List.of())));
+        List<String> payloads = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        int batchBytes = emptyBytes;
+        for (String path : paths) {
+            // The quoted path and the comma before it
+            int pathBytes = utf8Length(toJson(path)) + 1;
+            if (!batch.isEmpty() && batchBytes + pathBytes > MAX_PAYLOAD_BYTES) {
+                payloads.add(toJson(new Invalidation(nodeId, batch)));
+                batch = new ArrayList<>();
+                batchBytes = emptyBytes;
+            }
+            batch.add(path);
+            batchBytes += pathBytes;
+        }
+        if (!batch.isEmpty()) {
+            payloads.add(toJson(new Invalidation(nodeId, batch)));
+        }
+        return payloads;
+    }
+
+    private static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hands the paths of a notification to the subscribers, unless this instance sent it.
+     */
+    void receive(String payload) {
+        Invalidation invalidation;
+        try {
+            invalidation = objectMapper.readValue(payload, Invalidation.class);
+        } catch (JsonProcessingException e) {
+            logger.warn("Ignoring malformed cache invalidation: {}", payload);
+            return;
+        }
+        if (nodeId.equals(invalidation.node()) || invalidation.paths() == null || invalidation.paths().isEmpty()) {
+            return;
+        }
+        receivedPaths.increment(invalidation.paths().size());
+        for (Consumer<List<String>> subscriber : subscribers) {
+            try {
+                subscriber.accept(invalidation.paths());
+            } catch (RuntimeException e) {
+                logger.error("Failed to invalidate {} cached paths", invalidation.paths().size(), e);
+            }
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void startListening() {
+        if (listening) {
+            return;
+        }
+        listening = true;
+        listener = new Thread(this::listen, "cache-invalidation-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private void listen() {
+        while (listening) {
+            try (Connection connection = DriverManager.getConnection(hikariConfig.getJdbcUrl(), hikariConfig.getUsername(), hikariConfig.getPassword());
+                 Statement statement = connection.createStatement()) {
+                statement.execute("LISTEN " + CHANNEL);
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                logger.info("Listening for cache invalidations from other instances");
+                while (listening) {
+                    PGNotification[] notifications = pgConnection.getNotifications(1000);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            receive(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!listening) {
+                    return;
+                }
+                logger.warn("Lost the connection for cache invalidations, reconnecting in {} s: {}", RECONNECT_DELAY.toSeconds(), e.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_DELAY.toMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+        flusher.shutdownNow();
+        listening = false;
+        if (listener != null) {
+            listener.interrupt();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Policy;
+import dk.northtech.dasscofileproxy.domain.CacheInfo;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The index of the files in the cache, split into a partition per institution and collection so a collection that
+ * reads a lot of files, e.g. for a bundle export, can only evict its own files. Each partition has its own quota and
+ * its own W-TinyLFU eviction. A partition may grow past its quota into space that the other partitions do not use, and
+ * gives the borrowed space back when the other partitions need it.
+ */
+class CachePartitions {
+    private static final Logger logger = LoggerFactory.getLogger(CachePartitions.class);
+    static final String DEFAULT_PARTITION = "default";
+
+    static class Partition {
+        final String name;
+        final long quotaWeight;
+        final LoadingCache<String, CacheInfo> index;
+
+        Partition(String name, long quotaWeight, LoadingCache<String, CacheInfo> index) {
+            this.name = name;
+            this.quotaWeight = quotaWeight;
+            this.index = index;
+        }
+
+        long weightedSize() {
+            return eviction().weightedSize().orElse(0);
+        }
+
+        void setMaximum(long maximum) {
+            eviction().setMaximum(Math.max(maximum, 1));
+        }
+
+        private Policy.Eviction<String, CacheInfo> eviction() {
+            return index.policy().eviction().orElseThrow();
+        }
+    }
+
+    private final long maxWeight;
+    private final Map<String, Long> quotaBytes;
+    private final long defaultQuotaBytes;
+    private final CacheLoader<String, CacheInfo> loader;
+    private final BiConsumer<String, CacheInfo> onEvicted;
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytes          the size of the whole cache
+     * @param quotaBytes        quotas by "institution/collection", or by "institution" for each of its collections
+     * @param defaultQuotaBytes the quota of collections without a configured quota
+     */
+    CachePartitions(long maxBytes, Map<String, Long> quotaBytes, long defaultQuotaBytes, CacheLoader<String, CacheInfo> loader, BiConsumer<String, CacheInfo> onEvicted, MeterRegistry meterRegistry) {
+        this.maxWeight = Math.max(maxBytes / CacheFileService.WEIGHT_UNIT_BYTES, 1);
+        this.quotaBytes = quotaBytes;
+        this.defaultQuotaBytes = defaultQuotaBytes;
+        this.loader = loader;
+        this.onEvicted = onEvicted;
+        this.meterRegistry = meterRegistry;
+        long configured = quotaBytes.values().stream().mapToLong(Long::longValue).sum();
+        if (configured > maxBytes) {
+            logger.warn("The cache partition quotas add up to {} bytes, more than the {} bytes of the cache", configured, maxBytes);
+        }
+    }
+
+    /**
+     * Parses quotas in MB like "NNAD/botany=500,NHMD=200".
+     */
+    static Map<String, Long> parseQuotas(String quotas) {
+        Map<String, Long> parsed = new HashMap<>();
+        if (quotas == null || quotas.isBlank()) {
+            return parsed;
+        }
+        for (String quota : quotas.split(",")) {
+            String[] nameAndSize = quota.split("=");
+            if (nameAndSize.length != 2) {
+                throw new IllegalArgumentException("Invalid cache partition quota: " + quota);
+            }
+            parsed.put(nameAndSize[0].trim(), Long.parseLong(nameAndSize[1].trim()) * 1000000L);
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the partition of a path like /institution/collection/assetGuid/file.
+     */
+    static String partitionName(String path) {
+        String[] pathElements = path.split("/", 4);
+        if (pathElements.length < 4 || pathElements[1].isEmpty() || pathElements[2].isEmpty()) {
+            return DEFAULT_PARTITION;
+        }
+        return pathElements[1] + "/" + pathElements[2];
+    }
+
+    long quotaBytes(String partitionName) {
+        Long quota = quotaBytes.get(partitionName);
+        if (quota == null) {
+            quota = quotaBytes.get(partitionName.split("/")[0]);
+        }
+        return quota != null ? quota : defaultQuotaBytes;
+    }
+
+    CacheInfo get(String path) {
+        Partition partition = partitionFor(path);
+        // getIfPresent records the hit, which the hit ratio of the partition is computed from
+        CacheInfo cacheInfo = partition.index.getIfPresent(path);
+        if (cacheInfo != null) {
+            return cacheInfo;
+        }
+        cacheInfo = partition.index.get(path);
+        if (cacheInfo != null) {
+            // A loaded entry takes free space like a put, so the partitions that also grew into it must give it back
+            rebalance();
+        }
+        return cacheInfo;
+    }
+
+    CacheInfo getIfPresent(String path) {
+        Partition partition = partitions.get(partitionName(path));
+        return partition != null ? partition.index.getIfPresent(path) : null;
+    }
+
+    void put(String path, CacheInfo cacheInfo) {
+        partitionFor(path).index.put(path, cacheInfo);
+        rebalance();
+    }
+
+    void putIfAbsent(String path, CacheInfo cacheInfo) {
+        if (partitionFor(path).index.asMap().putIfAbsent(path, cacheInfo) == null) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Removes the entry without evicting it, so the file is left on disk.
+     */
+    void remove(String path) {
+        Partition partition = partitions.get(partitionName(path));
+        if (partition != null) {
+            partition.index.asMap().remove(path);
+        }
+    }
+
+    void invalidate(String path) {
+        remove(path);
+    }
+
+    Collection<Partition> partitions() {
+        return partitions.values();
+    }
+
+    private Partition partitionFor(String path) {
+        Partition partition = partitions.get(partitionName(path));
+        if (partition != null) {
+            return partition;
+        }
+        return partitions.computeIfAbsent(partitionName(path), this::createPartition);
+    }
+
+    private Partition createPartition(String name) {
+        long quotaWeight = Math.max(quotaBytes(name) / CacheFileService.WEIGHT_UNIT_BYTES, 1);
+        long free = Math.max(maxWeight - totalWeightedSize(), 0);
+        LoadingCache<String, CacheInfo> index = CacheFileService.newCachedFilesIndex(Math.max(quotaWeight, free) * CacheFileService.WEIGHT_UNIT_BYTES, loader, onEvicted);
+        Partition partition = new Partition(name, quotaWeight, index);
+        if (meterRegistry != null) {
+            Tags tags = Tags.of("partition", name);
+            CaffeineCacheMetrics.monitor(meterRegistry, index, "file_cache", tags);
+            Gauge.builder("cache.partition.used", partition, p -> p.weightedSize() * CacheFileService.WEIGHT_UNIT_BYTES)
+                    .tags(tags).baseUnit("bytes").register(meterRegistry);
+            Gauge.builder("cache.partition.quota", partition, p -> p.quotaWeight * CacheFileService.WEIGHT_UNIT_BYTES)
+                    .tags(tags).baseUnit("bytes").register(meterRegistry);
+            Gauge.builder("cache.partition.hit.ratio", index, i -> i.stats().hitRate())
+                    .tags(tags).register(meterRegistry);
+        }
+        return partition;
+    }
+
+    private long totalWeightedSize() {
+        return partitions.values().stream().mapToLong(Partition::weightedSize).sum();
+    }
+
+    /**
+     * Lets the partitions grow into the space that is not used, and shrinks the partitions that have borrowed space
+     * when the cache is full. A partition that has borrowed space evicts its own files first, the borrowed space is
+     * only taken back when a partition below its quota needs it.
+     */
+    synchronized void rebalance() {
+        long over = totalWeightedSize() - maxWeight;
+        if (over > 0) {
+            List<Partition> borrowers = partitions.values().stream()
+                    .filter(p -> p.weightedSize() > p.quotaWeight)
+                    .sorted(Comparator.comparingLong((Partition p) -> p.weightedSize() - p.quotaWeight).reversed())
+                    .toList();
+            for (Partition borrower : borrowers) {
+                if (over <= 0) {
+                    break;
+                }
+                long size = borrower.weightedSize();
+                long reclaimed = Math.min(over, size - borrower.quotaWeight);
+                borrower.setMaximum(size - reclaimed);
+                over -= reclaimed;
+            }
+            if (over > 0) {
+                // The quotas do not fit in the cache, so every partition gives up its share of what is left.
+                long total = totalWeightedSize();
+                for (Partition partition : partitions.values()) {
+                    long size = partition.weightedSize();
+                    partition.setMaximum(size - (long) Math.ceil((double) over * size / total));
+                }
+                return;
+            }
+        }
+        long free = Math.max(maxWeight - totalWeightedSize(), 0);
+        for (Partition partition : partitions.values()) {
+            partition.setMaximum(Math.max(partition.quotaWeight, partition.weightedSize() + free));
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.google.common.collect.Lists;
+import dk.northtech.dasscofileproxy.domain.CacheInfo;
+import dk.northtech.dasscofileproxy.domain.DasscoFile;
+import dk.northtech.dasscofileproxy.domain.FileSyncStatus;
+import dk.northtech.dasscofileproxy.repository.FileCacheRepository;
+import dk.northtech.dasscofileproxy.repository.FileRepository;
+import org.jdbi.v3.core.Jdbi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Brings the cache folder and the file_cache table back in line after a crash or when a node is replaced. The cache
+ * folder is scanned in parallel, and each file on disk is matched with its cache entry and file by path and size:
+ * <ul>
+ *     <li>Files with a matching cache entry are loaded into the cache index.</li>
+ *     <li>Files without a cache entry are adopted if they match a synchronized file, otherwise they are deleted.</li>
+ *     <li>Cache entries without a file on disk, or with a file of the wrong size, are deleted. Pinned entries are
+ *     kept and loaded into the index, so the file is fetched again.</li>
+ *     <li>Partial downloads are kept if they can be resumed, otherwise they are deleted. Files cached block by block
+ *     are handed back to the cache, which decides whether there is room for them.</li>
+ * </ul>
+ * Files and entries created after the reconciliation started are left alone, as they belong to requests running
+ * alongside it.
+ */
+class CacheReconciler {
+    private static final Logger logger = LoggerFactory.getLogger(CacheReconciler.class);
+    private static final int BATCH_SIZE = 1000;
+    private final Path cacheFolder;
+    private final Jdbi jdbi;
+    private final String nodeId;
+    private final ForkJoinPool pool;
+    private final Predicate<String> inUse;
+    private final Consumer<CacheInfo> warm;
+    private final Consumer<DasscoFile> resumePartialFile;
+
+    record Result(int warmed, int adopted, int orphansDeleted, int staleEntriesDeleted, int partialsKept) {
+    }
+
+    /**
+     * What to do with the files on disk and the cache entries.
+     */
+    record Plan(List<CacheInfo> warm, List<DasscoFile> adopt, List<String> deleteFiles, List<Long> deleteEntries, int partialsKept,
+                Collection<DasscoFile> partialFiles) {
+    }
+
+    CacheReconciler(Path cacheFolder, Jdbi jdbi, String nodeId, ForkJoinPool pool, Predicate<String> inUse, Consumer<CacheInfo> warm,
+                    Consumer<DasscoFile> resumePartialFile) {
+        this.cacheFolder = cacheFolder;
+        this.jdbi = jdbi;
+        this.nodeId = nodeId;
+        this.pool = pool;
+        this.inUse = inUse;
+        this.warm = warm;
+        this.resumePartialFile = resumePartialFile;
+    }
+
+    Result reconcile() {
+        Instant started = Instant.now();
+        if (!Files.isDirectory(cacheFolder)) {
+            return new Result(0, 0, 0, 0, 0);
+        }
+        Map<String, Long> filesOnDisk = scan(cacheFolder, pool, started);
+        List<CacheInfo> entries = jdbi.onDemand(FileCacheRepository.class).getAllFileCaches(nodeId).stream()
+                .filter(entry -> entry.creationDatetime() == null || entry.creationDatetime().isBefore(started))
+                .toList();
+        Set<String> knownPaths = new HashSet<>();
+        for (String path : filesOnDisk.keySet()) {
+            knownPaths.add(targetPath(path));
+        }
+        Map<String, DasscoFile> synchronizedFiles = getSynchronizedFiles(knownPaths);
+
+        Plan plan = plan(filesOnDisk, entries, synchronizedFiles);
+        plan.warm().forEach(warm);
+        plan.partialFiles().forEach(resumePartialFile);
+        List<Long> adoptedEntries = adopt(plan.adopt());
+        int orphansDeleted = deleteFiles(plan.deleteFiles());
+        deleteEntries(plan.deleteEntries());
+        logger.info("Reconciled cache in {} ms: {} files loaded, {} adopted, {} deleted, {} stale entries deleted, {} partial downloads kept",
+                ChronoUnit.MILLIS.between(started, Instant.now()), plan.warm().size(), adoptedEntries.size(), orphansDeleted, plan.deleteEntries().size(), plan.partialsKept());
+        return new Result(plan.warm().size(), adoptedEntries.size(), orphansDeleted, plan.deleteEntries().size(), plan.partialsKept());
+    }
+
+    /**
+     * Decides what to do with each file on disk and each cache entry. Paths are relative to the cache folder and start
+     * with a slash, like the paths in the file table.
+     */
+    static Plan plan(Map<String, Long> filesOnDisk, List<CacheInfo> entries, Map<String, DasscoFile> synchronizedFiles) {
+        Map<String, List<CacheInfo>> entriesByPath = new HashMap<>();
+        for (CacheInfo entry : entries) {
+            entriesByPath.computeIfAbsent(entry.path(), p -> new ArrayList<>()).add(entry);
+        }
+        List<CacheInfo> warm = new ArrayList<>();
+        List<DasscoFile> adopt = new ArrayList<>();
+        List<String> deleteFiles = new ArrayList<>();
+        List<Long> deleteEntries = new ArrayList<>();
+        int partialsKept = 0;
+        Map<String, DasscoFile> partialFiles = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> fileOnDisk : filesOnDisk.entrySet()) {
+            String path = fileOnDisk.getKey();
+            long size = fileOnDisk.getValue();
+            Optional<CacheFill.PartialDownload> partialDownload = CacheFill.parsePartialPath(Path.of(path));
+            if (partialDownload.isPresent()) {
+                DasscoFile dasscoFile = synchronizedFiles.get(targetPath(path));
+                boolean resumable = dasscoFile != null
+                        && dasscoFile.sizeBytes() == partialDownload.get().expectedSize()
+                        && dasscoFile.crc() == partialDownload.get().crc()
+                        && !filesOnDisk.containsKey(dasscoFile.path());
+                if (resumable) {
+                    partialsKept++;
+                } else {
+                    deleteFiles.add(path);
+                }
+                continue;
+            }
+            if (path.endsWith(PartialCacheFile.DATA_SUFFIX) || path.endsWith(PartialCacheFile.BITMAP_SUFFIX)) {
+                // The bitmap records the size, so a partial file is only kept if the file still exists.
+                String target = targetPath(path);
+                if (synchronizedFiles.containsKey(target) && !filesOnDisk.containsKey(target)) {
+                    partialsKept++;
+                    partialFiles.put(target, synchronizedFiles.get(target));
+                } else {
+                    deleteFiles.add(path);
+                }
+                continue;
+            }
+            List<CacheInfo> entriesForPath = entriesByPath.remove(path);
+            DasscoFile dasscoFile = synchronizedFiles.get(path);
+            boolean matches = dasscoFile != null && dasscoFile.sizeBytes() == size;
+            if (entriesForPath == null) {
+                if (matches) {
+                    adopt.add(dasscoFile);
+                } else {
+                    deleteFiles.add(path);
+                }
+                continue;
+            }
+            // Keep the newest entry, a path should only have one.
+            entriesForPath.sort(Comparator.comparing(CacheInfo::expiration_datetime, Comparator.nullsFirst(Comparator.naturalOrder())).reversed());
+            CacheInfo newest = entriesForPath.getFirst();
+            if (matches && newest.sizeBytes() == size) {
+                warm.add(newest);
+                entriesForPath.stream().skip(1).map(CacheInfo::fileCacheId).forEach(deleteEntries::add);
+            } else {
+                deleteFiles.add(path);
+                keepPinned(entriesForPath, warm, deleteEntries);
+            }
+        }
+        // What is left are entries without a file on disk.
+        entriesByPath.values().forEach(stale -> keepPinned(stale, warm, deleteEntries));
+        return new Plan(warm, adopt, deleteFiles, deleteEntries, partialsKept, partialFiles.values());
+    }
+
+    // Keeps the newest pinned entry of a file that is not on disk, the other entries are deleted.
+    private static void keepPinned(List<CacheInfo> entriesForPath, List<CacheInfo> warm, List<Long> deleteEntries) {
+        Optional<CacheInfo> pinned = entriesForPath.stream().filter(CacheInfo::pinned)
+                .max(Comparator.comparing(CacheInfo::expiration_datetime, Comparator.nullsFirst(Comparator.naturalOrder())));
+        pinned.ifPresent(warm::add);
+        entriesForPath.stream().filter(entry -> pinned.isEmpty() || entry != pinned.get())
+                .map(CacheInfo::fileCacheId).forEach(deleteEntries::add);
+    }
+
+    /**
+     * Returns the path of the cache file that a partial download or partial file belongs to.
+     */
+    static String targetPath(String path) {
+        Optional<CacheFill.PartialDownload> partialDownload = CacheFill.parsePartialPath(Path.of(path));
+        if (partialDownload.isPresent()) {
+            return partialDownload.get().targetPath().toString().replace(File.separatorChar, '/');
+        }
+        for (String suffix : List.of(PartialCacheFile.DATA_SUFFIX, PartialCacheFile.BITMAP_SUFFIX)) {
+            if (path.endsWith(suffix)) {
+                return path.substring(0, path.length() - suffix.length());
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Lists the files under the root with their sizes, one fork-join task per directory. Files modified after the given
+     * time are left out.
+     */
+    static Map<String, Long> scan(Path root, ForkJoinPool pool, Instant modifiedBefore) {
+        Map<String, Long> files = new ConcurrentHashMap<>();
+        pool.invoke(new ScanDirectory(root, root, modifiedBefore, files));
+        return files;
+    }
+
+    private static class ScanDirectory extends RecursiveAction {
+        private final Path root;
+        private final Path directory;
+        private final Instant modifiedBefore;
+        private final Map<String, Long> files;
+
+        ScanDirectory(Path root, Path directory, Instant modifiedBefore, Map<String, Long> files) {
+            this.root = root;
+            this.directory = directory;
+            this.modifiedBefore = modifiedBefore;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanDirectory> subdirectories = new ArrayList<>();
+            try (Stream<Path> children = Files.list(directory)) {
+                for (Path child : (Iterable<Path>) children::iterator) {
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new ScanDirectory(root, child, modifiedBefore, files));
+                    } else if (attributes.isRegularFile() && attributes.lastModifiedTime().toInstant().isBefore(modifiedBefore)) {
+                        files.put("/" + root.relativize(child).toString().replace(File.separatorChar, '/'), attributes.size());
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to scan cache folder {}", directory, e);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    private Map<String, DasscoFile> getSynchronizedFiles(Set<String> paths) {
+        Map<String, DasscoFile> synchronizedFiles = new HashMap<>();
+        FileRepository fileRepository = jdbi.onDemand(FileRepository.class);
+        for (List<String> batch : Lists.partition(new ArrayList<>(paths), BATCH_SIZE)) {
+            for (DasscoFile dasscoFile : fileRepository.getFilesByAssetPaths(batch)) {
+                if (dasscoFile.syncStatus() == FileSyncStatus.SYNCHRONIZED && !dasscoFile.deleteAfterSync()) {
+                    synchronizedFiles.put(dasscoFile.path(), dasscoFile);
+                }
+            }
+        }
+        return synchronizedFiles;
+    }
+
+    private List<Long> adopt(List<DasscoFile> orphans) {
+        List<DasscoFile> adoptable = orphans.stream().filter(f -> !inUse.test(f.path())).toList();
+        List<Long> fileIds = adoptable.stream().map(DasscoFile::fileId).toList();
+        if (fileIds.isEmpty()) {
+            return fileIds;
+        }
+        Instant expiration = Instant.now().plus(1, ChronoUnit.DAYS);
+        for (List<DasscoFile> batch : Lists.partition(adoptable, BATCH_SIZE)) {
+            List<CacheInfo> adopted = jdbi.inTransaction(h -> {
+                FileCacheRepository fileCacheRepository = h.attach(FileCacheRepository.class);
+                List<Long> batchIds = batch.stream().map(DasscoFile::fileId).toList();
+                fileCacheRepository.insertCaches(batch.stream().map(f -> new CacheInfo(f.path(), expiration, f.fileId())).toList(), nodeId);
+                return fileCacheRepository.getFileCachesByFileIds(batchIds, nodeId);
+            });
+            adopted.forEach(warm);
+        }
+        return fileIds;
+    }
+
+    private int deleteFiles(List<String> paths) {
+        int deleted = 0;
+        for (String path : paths) {
+            if (inUse.test(targetPath(path))) {
+                continue;
+            }
+            try {
+                if (Files.deleteIfExists(Path.of(cacheFolder.toString(), path))) {
+                    deleted++;
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to delete {} from the cache", path);
+            }
+        }
+        return deleted;
+    }
+
+    private void deleteEntries(List<Long> fileCacheIds) {
+        FileCacheRepository fileCacheRepository = jdbi.onDemand(FileCacheRepository.class);
+        for (List<Long> batch : Lists.partition(fileCacheIds, BATCH_SIZE)) {
+            fileCacheRepository.deleteFileCacheByIds(batch);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package dk.northtech.dasscofileproxy.service;
+
+import dk.northtech.dasscofileproxy.configuration.CacheNodeConfig;
+import dk.northtech.dasscofileproxy.configuration.CacheRoutingConfig;
+import dk.northtech.dasscofileproxy.repository.CacheNodeRepository;
+import jakarta.inject.Inject;
+import org.jdbi.v3.core.Jdbi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Decides which instance owns an asset, so that the files of each asset are only cached by one instance and the caches
+ * of the instances add up instead of holding the same popular files. The owners are picked on a consistent hash ring
+ * of the instances, keyed by asset guid, so an instance joining or leaving only moves the assets it owns.
+ * <p>
+ * The instances are read from the heartbeats in cache_node, limited to those in cache.routingNodes if it is set, so an
+ * instance that stops is taken off the ring either way. This instance is always on the ring, and routing is off unless
+ * cache.routing is redirect or proxy and cache.nodeUrl is set.
+ * <p>
+ * cache.nodeUrl is only reachable by the other instances, so clients are redirected to the cache.publicUrl of the
+ * owner, which each instance publishes in cache_node. Requests for an owner without a public URL are proxied.
+ */
+@Service
+public class CacheRouter {
+    private static final Logger logger = LoggerFactory.getLogger(CacheRouter.class);
+    private static final Duration HEARTBEAT_TIMEOUT = PeerCacheClient.HEARTBEAT_TIMEOUT;
+
+    public enum Mode {
+        OFF, REDIRECT, PROXY
+    }
+
+    /**
+     * @param publicUrl the URL clients can be redirected to, or null if the owner has none
+     */
+    public record Owner(String nodeId, String url, String publicUrl) {
+    }
+
+    private final String nodeId;
+    private final String nodeUrl;
+    private final String publicUrl;
+    private final Mode mode;
+    private final Map<String, String> configuredNodes;
+    private final Duration timeout;
+    private final Jdbi jdbi;
+    private volatile ConsistentHashRing ring;
+    private volatile Map<String, String> publicUrls = Map.of();
+
+    @Inject
+    public CacheRouter(CacheNodeConfig nodeConfig, CacheRoutingConfig routingConfig, Jdbi jdbi) {
+        this.nodeId = nodeConfig.nodeId();
+        this.nodeUrl = nodeConfig.nodeUrl();
+        this.publicUrl = routingConfig.publicUrl();
+        this.mode = parseMode(routingConfig.routing(), nodeUrl);
+        this.configuredNodes = parseNodes(routingConfig.routingNodes());
+        this.timeout = nodeConfig.peerTimeout();
+        this.jdbi = jdbi;
+        this.ring = new ConsistentHashRing(ringNodes(configuredNodes));
+    }
+
+    static Mode parseMode(String routing, String nodeUrl) {
+        Mode mode = routing == null || routing.isBlank() ? Mode.OFF : Mode.valueOf(routing.trim().toUpperCase(Locale.ROOT));
+        if (mode != Mode.OFF && (nodeUrl == null || nodeUrl.isBlank())) {
+            logger.warn("cache.routing is {} but cache.nodeUrl is not set, requests are not routed", mode);
+            return Mode.OFF;
+        }
+        return mode;
+    }
+
+    /**
+     * Parses nodes like "node-a=http://file-proxy-1:8080/file_proxy/api,node-b=http://file-proxy-2:8080/file_proxy/api".
+     */
+    static Map<String, String> parseNodes(String nodes) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        if (nodes == null || nodes.isBlank()) {
+            return parsed;
+        }
+        for (String node : nodes.split(",")) {
+            String[] idAndUrl = node.split("=", 2);
+            if (idAndUrl.length != 2) {
+                throw new IllegalArgumentException("Invalid cache routing node: " + node);
+            }
+            parsed.put(idAndUrl[0].trim(), idAndUrl[1].trim());
+        }
+        return parsed;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public Duration timeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the instance that owns the asset, or empty if this instance owns it or routing is off.
+     */
+    public Optional<Owner> ownerOf(String assetGuid) {
+        if (mode == Mode.OFF || assetGuid == null) {
+            return Optional.empty();
+        }
+        ConsistentHashRing.Node owner = ring.owner(assetGuid);
+        if (owner == null || owner.nodeId().equals(nodeId)) {
+            return Optional.empty();
+        }
+        return Optional.of(new Owner(owner.nodeId(), owner.url(), publicUrls.get(owner.nodeId())));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelay = 30000, initialDelay = 30000)
+    public void refresh() {
+        if (mode == Mode.OFF) {
+            return;
+        }
+        try {
+            CacheNodeRepository cacheNodeRepository = jdbi.onDemand(CacheNodeRepository.class);
+            if (publicUrl != null && !publicUrl.isBlank()) {
+                cacheNodeRepository.setPublicUrl(nodeId, publicUrl);
+            }
+            Instant aliveSince = Instant.now().minus(HEARTBEAT_TIMEOUT);
+            Map<String, String> aliveNodes = liveNodes(configuredNodes, cacheNodeRepository.getAliveNodes(aliveSince));
+            publicUrls = cacheNodeRepository.getAlivePublicUrls(aliveSince);
+            ConsistentHashRing refreshed = new ConsistentHashRing(ringNodes(aliveNodes));
+            if (refreshed.size() != ring.size()) {
+                logger.info("Routing cached files over {} instances", refreshed.size());
+            }
+            ring = refreshed;
+        } catch (Exception e) {
+            logger.warn("Failed to read the instances from cache_node, keeping the current routing", e);
+        }
+    }
+
+    /**
+     * The configured nodes that are alive, with their configured URLs, or all the alive nodes if none are configured.
+     */
+    static Map<String, String> liveNodes(Map<String, String> configuredNodes, Map<String, String> aliveNodes) {
+        if (configuredNodes.isEmpty()) {
+            return aliveNodes;
+        }
+        Map<String, String> live = new LinkedHashMap<>(configuredNodes);
+        live.keySet().retainAll(aliveNodes.keySet());
+        return live;
+    }
+
+    private List<ConsistentHashRing.Node> ringNodes(Map<String, String> nodes) {
+        Map<String, String> withSelf = new TreeMap<>(nodes);
+        if (nodeUrl != null && !nodeUrl.isBlank()) {
+            withSelf.put(nodeId, nodeUrl);
+        }
+        return withSelf.entrySet().stream().map(e -> new ConsistentHashRing.Node(e.getKey(), e.getValue())).toList();
+    }
+}
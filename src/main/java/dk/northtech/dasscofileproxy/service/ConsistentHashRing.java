@@ -0,0 +1,50 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys to nodes so that each key has one owner, and adding or removing a node only moves the keys of that node.
+ * Each node is placed on the ring many times, so the keys are spread evenly even with few nodes.
+ */
+class ConsistentHashRing {
+    static final int VIRTUAL_NODES = 128;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    record Node(String nodeId, String url) {
+    }
+
+    private final TreeMap<Long, Node> ring = new TreeMap<>();
+
+    ConsistentHashRing(Collection<Node> nodes) {
+        for (Node node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node.nodeId() + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * The node that owns the key, or null if the ring is empty.
+     */
+    Node owner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, Node> entry = ring.ceilingEntry(hash(key));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    int size() {
+        return ring.size() / VIRTUAL_NODES;
+    }
+
+    private static long hash(String key) {
+        return HASH.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -2,23 +2,41 @@ package dk.northtech.dasscofileproxy.service;
 
 import com.jcraft.jsch.*;
 import dk.northtech.dasscofileproxy.configuration.StorageConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class ERDAClient implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(ERDAClient.class);
     private Session session;
     private final StorageConfig storageConfig;
     private ErdaDataSource creator;
-
+    private final Supplier<ChannelSftp> channelOpener;
+    private final MeterRegistry meterRegistry;
+    // The remote directories known to exist, for as long as the session lives or until an upload finds one missing.
+    private final Set<String> knownDirectories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A client outside the pool, e.g. for a single download. Its metrics are not published.
+     */
     public ERDAClient(StorageConfig storageConfig) {
         this.storageConfig = storageConfig;
+        this.channelOpener = this::openChannel;
+        this.meterRegistry = new SimpleMeterRegistry();
         try {
             JSch jSch = new JSch();
             // Add the private key file for authentication
@@ -40,9 +58,11 @@ public class ERDAClient implements AutoCloseable {
         }
     }
 
-    public ERDAClient(StorageConfig storageConfig, ErdaDataSource erdaDataSource) {
+    public ERDAClient(StorageConfig storageConfig, ErdaDataSource erdaDataSource, MeterRegistry meterRegistry) {
         this.storageConfig = storageConfig;
         this.creator = erdaDataSource;
+        this.channelOpener = this::openChannel;
+        this.meterRegistry = meterRegistry;
         try {
             JSch jSch = new JSch();
             // Add the private key file for authentication
@@ -64,7 +84,17 @@ public class ERDAClient implements AutoCloseable {
         }
     }
 
+    /**
+     * A client that gets its channels from the opener instead of a session with ERDA, for tests.
+     */
+    ERDAClient(StorageConfig storageConfig, Supplier<ChannelSftp> channelOpener, MeterRegistry meterRegistry) {
+        this.storageConfig = storageConfig;
+        this.channelOpener = channelOpener;
+        this.meterRegistry = meterRegistry;
+    }
+
     public void restore() {
+        knownDirectories.clear();
         try {
             JSch jSch = new JSch();
             // Add the private key file for authentication
@@ -91,6 +121,10 @@ public class ERDAClient implements AutoCloseable {
     }
 
     public ChannelSftp startChannelSftp() {
+        return channelOpener.get();
+    }
+
+    private ChannelSftp openChannel() {
         ChannelSftp channel = null;
         try {
             channel = (ChannelSftp) session.openChannel("sftp");
@@ -105,7 +139,7 @@ public class ERDAClient implements AutoCloseable {
     public void close() throws Exception {
         if (this.creator != null) {
             creator.recycle(this);
-        } else {
+        } else if (session != null) {
             session.disconnect();
         }
 
@@ -128,22 +162,190 @@ public class ERDAClient implements AutoCloseable {
         return fileList;
     }
 
-    public Set<String> putFilesOnRemotePathBulk(List<File> files, String localMountFolder, String remotePath) {
-        ChannelSftp channel = startChannelSftp();
-        try {
-            HashSet<String> uploadedFiles = new HashSet<>();
-            for (File file : files) {
-                String[] split = file.toPath().toString().replace("\\", "/").split(localMountFolder);
-                String fullRemotePath = remotePath + (split.length == 2 ? split[1]:split[0]);
+    /**
+     * The remote paths of the files that were uploaded, and the error of each file that was not.
+     */
+    public record BulkUploadResult(Set<String> uploadedFiles, Map<String, Exception> failedFiles) {
+    }
+
+    /**
+     * Uploads the files over up to storage.uploadChannels SFTP channels on this connection, so an asset with many files
+     * is not bound by the round trips of one channel. The largest files are started first, so one large file does not
+     * end up alone at the end. A file only counts as uploaded once ERDA reports the same size as the local file. A file
+     * that fails is reported in the result and the remaining files are still uploaded.
+     */
+    public BulkUploadResult putFilesOnRemotePathBulk(List<File> files, String localMountFolder, String remotePath) {
+        return putFilesOnRemotePathBulk(files, Set.of(), localMountFolder, remotePath);
+    }
+
+    /**
+     * As {@link #putFilesOnRemotePathBulk(List, String, String)}, continuing the interrupted uploads of the resumable
+     * files from the size ERDA has of them instead of sending them again.
+     */
+    public BulkUploadResult putFilesOnRemotePathBulk(List<File> files, Set<File> resumable, String localMountFolder, String remotePath) {
+        List<File> largestFirst = files.stream()
+                .sorted(Comparator.comparingLong(File::length).reversed())
+                .toList();
+        Set<String> uploadedFiles = ConcurrentHashMap.newKeySet();
+        Map<File, Exception> failures = inParallel(largestFirst, storageConfig.uploadChannels(), (channel, file) -> {
+            String fullRemotePath = remotePathOf(file, localMountFolder, remotePath);
+            if (resumable.contains(file)) {
+                resume(channel, file, fullRemotePath);
+            } else {
                 logger.info("moving from localPath {}, to remotePath {}", file.getPath(), fullRemotePath);
                 channel.put(file.getPath(), fullRemotePath);
-                uploadedFiles.add(fullRemotePath);
+                checkSize(channel, file, fullRemotePath);
+            }
+            uploadedFiles.add(fullRemotePath);
+        });
+        Map<String, Exception> failedFiles = new HashMap<>();
+        failures.forEach((file, e) -> {
+            String fullRemotePath = remotePathOf(file, localMountFolder, remotePath);
+            failedFiles.put(fullRemotePath, e);
+            if (e instanceof SftpException sftpException && sftpException.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                // The directory was removed on ERDA since it was looked up, so it is looked up again by the next attempt
+                knownDirectories.removeAll(directoriesOf(List.of(Path.of(fullRemotePath))));
+            }
+        });
+        return new BulkUploadResult(uploadedFiles, failedFiles);
+    }
+
+    private static void checkSize(ChannelSftp channel, File file, String fullRemotePath) throws SftpException {
+        long remoteSize = channel.stat(fullRemotePath).getSize();
+        if (remoteSize != file.length()) {
+            throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "ERDA has %d of %d bytes".formatted(remoteSize, file.length()));
+        }
+    }
+
+    // Bytes compared on each side of the point an upload was resumed from, and at the end of the file.
+    static final int SEAM_BYTES = 64 * 1024;
+
+    /**
+     * Appends the rest of the file to the part ERDA has from an interrupted upload. SFTP cannot checksum the remote
+     * file, so the bytes around the point the upload was resumed from and at the end are compared to the local file.
+     * If they differ, the whole file is uploaded again.
+     */
+    private void resume(ChannelSftp channel, File file, String fullRemotePath) throws SftpException {
+        long offset = channel.stat(fullRemotePath).getSize();
+        if (offset <= 0 || offset >= file.length()) {
+            channel.put(file.getPath(), fullRemotePath);
+            checkSize(channel, file, fullRemotePath);
+            return;
+        }
+        logger.info("Resuming upload of {} to {} from byte {} of {}", file.getPath(), fullRemotePath, offset, file.length());
+        channel.put(file.getPath(), fullRemotePath, ChannelSftp.RESUME);
+        checkSize(channel, file, fullRemotePath);
+        long seamStart = Math.max(0, offset - SEAM_BYTES);
+        long tailStart = Math.max(seamStart, file.length() - SEAM_BYTES);
+        if (!sameBytes(channel, file, fullRemotePath, seamStart, (int) Math.min(2L * SEAM_BYTES, file.length() - seamStart))
+                || !sameBytes(channel, file, fullRemotePath, tailStart, (int) (file.length() - tailStart))) {
+            logger.warn("Resumed upload of {} does not match the local file, uploading it again", fullRemotePath);
+            channel.put(file.getPath(), fullRemotePath, ChannelSftp.OVERWRITE);
+            checkSize(channel, file, fullRemotePath);
+        }
+    }
+
+    private static boolean sameBytes(ChannelSftp channel, File file, String fullRemotePath, long position, int length) throws SftpException {
+        try (InputStream remote = channel.get(fullRemotePath, null, position);
+             RandomAccessFile local = new RandomAccessFile(file, "r")) {
+            byte[] localBytes = new byte[length];
+            local.seek(position);
+            local.readFully(localBytes);
+            return Arrays.equals(remote.readNBytes(length), localBytes);
+        } catch (IOException e) {
+            throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Failed to compare %s to the local file".formatted(fullRemotePath), e);
+        }
+    }
+
+    public static String remotePathOf(File file, String localMountFolder, String remotePath) {
+        String[] split = file.toPath().toString().replace("\\", "/").split(localMountFolder);
+        return remotePath + (split.length == 2 ? split[1]:split[0]);
+    }
+
+    /**
+     * A remote file and the local path to download it to.
+     */
+    public record Download(String location, String destination) {
+    }
+
+    /**
+     * Downloads the files over up to storage.downloadChannels SFTP channels on this connection. Each file is streamed to
+     * its destination, so the memory used does not depend on the size of the files. Throws after all files have been
+     * attempted if any of them failed.
+     */
+    public void downloadFilesInParallel(List<Download> downloads) {
+        AtomicInteger downloaded = new AtomicInteger();
+        Map<Download, Exception> failures = inParallel(downloads, storageConfig.downloadChannels(), (channel, download) -> {
+            File parentDir = new File(download.destination()).getParentFile();
+            if (parentDir != null && !parentDir.exists()) {
+                parentDir.mkdirs();
+            }
+            channel.get(download.location(), download.destination());
+            logger.info("Downloaded {} to {} ({} of {} files)", download.location(), download.destination(), downloaded.incrementAndGet(), downloads.size());
+        });
+        if (!failures.isEmpty()) {
+            failures.forEach((download, e) -> logger.warn("Failed to download {}: {}", download.location(), e.getMessage()));
+            throw new RuntimeException("Failed to download %d of %d files".formatted(failures.size(), downloads.size()),
+                    failures.values().iterator().next());
+        }
+    }
+
+    @FunctionalInterface
+    interface SftpTransfer<T> {
+        void transfer(ChannelSftp channel, T item) throws SftpException;
+    }
+
+    /**
+     * Transfers the items, in order, over up to maxChannels SFTP channels on this connection. Returns the error of each
+     * item that failed, the other items are still transferred.
+     */
+    <T> Map<T, Exception> inParallel(List<T> items, int maxChannels, SftpTransfer<T> transfer) {
+        Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+        Map<T, Exception> failures = new ConcurrentHashMap<>();
+        if (items.isEmpty()) {
+            return failures;
+        }
+        int channelCount = Math.max(1, Math.min(maxChannels, items.size()));
+        List<ChannelSftp> channels = Collections.synchronizedList(new ArrayList<>());
+        try {
+            for (int i = 0; i < channelCount; i++) {
+                try {
+                    channels.add(startChannelSftp());
+                } catch (RuntimeException e) {
+                    if (channels.isEmpty()) {
+                        throw e;
+                    }
+                    // The server limits the channels per connection, transfer over the ones we got.
+                    logger.warn("Opened {} of {} SFTP channels: {}", channels.size(), channelCount, e.getMessage());
+                    break;
+                }
+            }
+            try (ExecutorService executor = Executors.newFixedThreadPool(channels.size())) {
+                for (ChannelSftp channel : List.copyOf(channels)) {
+                    executor.execute(() -> transferFromQueue(channel, channels, queue, transfer, failures));
+                }
             }
-            return uploadedFiles;
-        } catch (SftpException e) {
-            throw new RuntimeException(e);
         } finally {
-            disconnect(channel);
+            channels.forEach(this::disconnect);
+        }
+        return failures;
+    }
+
+    private <T> void transferFromQueue(ChannelSftp channel, List<ChannelSftp> channels, Queue<T> queue, SftpTransfer<T> transfer,
+                                       Map<T, Exception> failures) {
+        T item;
+        while ((item = queue.poll()) != null) {
+            try {
+                if (channel.isClosed()) {
+                    // A closed channel cannot be reopened, the next items go over a new one.
+                    channel = startChannelSftp();
+                    channels.add(channel);
+                }
+                transfer.transfer(channel, item);
+            } catch (SftpException | RuntimeException e) {
+                logger.warn("Failed to transfer {}: {}", item, e.getMessage());
+                failures.put(item, e);
+            }
         }
     }
 
@@ -161,27 +363,93 @@ public class ERDAClient implements AutoCloseable {
         }
     }
 
+    /**
+     * Creates the directories of the files that do not exist on ERDA yet. The distinct directories of the batch are
+     * visited top-down, and each one is looked up on ERDA at most once per session, so a batch of files in the same
+     * directories costs a round trip per new directory instead of one per directory of every file. The directories
+     * below a directory that was just created are created without looking them up.
+     */
     public void createSubDirsIfNotExists(List<Path> paths) {
+        SortedSet<String> directories = directoriesOf(paths);
+        directories.removeIf(directory -> {
+            boolean known = knownDirectories.contains(directory);
+            if (known) {
+                countDirectory("cached");
+            }
+            return known;
+        });
+        if (directories.isEmpty()) {
+            return;
+        }
         ChannelSftp channelSftp = startChannelSftp();
         try {
-            for (Path path : paths) {
-                //Last element is the file itself
-                int directoryDepth = path.getNameCount() - 1;
-                String remotePath = "";
-                for (int i = 0; i < directoryDepth; i++) {
-                    remotePath += path.getName(i) + "/";
-                    try {
-                        channelSftp.mkdir(remotePath);
-                    } catch (Exception e) {
-                        //OK, the folder already exists
-                    }
+            Set<String> created = new HashSet<>();
+            for (String directory : directories) {
+                if (!created.contains(parentOf(directory)) && exists(channelSftp, directory)) {
+                    countDirectory("existing");
+                } else {
+                    mkdir(channelSftp, directory);
+                    created.add(directory);
+                    countDirectory("created");
                 }
+                knownDirectories.add(directory);
             }
+        } catch (SftpException e) {
+            throw new RuntimeException("Failed to create remote directories", e);
         } finally {
             channelSftp.disconnect();
         }
     }
 
+    /**
+     * The distinct directories of the files and all their parents, ordered so a directory comes before its
+     * subdirectories.
+     */
+    static SortedSet<String> directoriesOf(List<Path> paths) {
+        SortedSet<String> directories = new TreeSet<>();
+        for (Path path : paths) {
+            //Last element is the file itself
+            int directoryDepth = path.getNameCount() - 1;
+            String remotePath = "";
+            for (int i = 0; i < directoryDepth; i++) {
+                remotePath += path.getName(i) + "/";
+                directories.add(remotePath);
+            }
+        }
+        return directories;
+    }
+
+    private static String parentOf(String directory) {
+        int end = directory.lastIndexOf('/', directory.length() - 2);
+        return directory.substring(0, end + 1);
+    }
+
+    private static void mkdir(ChannelSftp channel, String directory) throws SftpException {
+        try {
+            channel.mkdir(directory);
+        } catch (SftpException e) {
+            // Another synchronisation may have created it in the meantime
+            if (!exists(channel, directory)) {
+                throw e;
+            }
+        }
+    }
+
+    private static boolean exists(ChannelSftp channel, String directory) throws SftpException {
+        try {
+            return channel.stat(directory).isDir();
+        } catch (SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void countDirectory(String result) {
+        meterRegistry.counter("erda.sftp.directories", "result", result).increment();
+    }
+
     public void putFileToPath(String localPath, String remotePath) throws JSchException {
         ChannelSftp channel = startChannelSftp();
         try {
@@ -238,6 +506,33 @@ public class ERDAClient implements AutoCloseable {
         }
     }
 
+    /**
+     * As {@link #listAllFiles(String)}, with the size of each file.
+     */
+    public Map<String, Long> listAllFileSizes(String path) {
+        ChannelSftp channel = startChannelSftp();
+        try {
+            return listFolderSizes(new LinkedHashMap<>(), path, channel);
+        } catch (SftpException e) {
+            throw new RuntimeException("Failed to list all files", e);
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    private Map<String, Long> listFolderSizes(Map<String, Long> foundFiles, String path, ChannelSftp channel) throws SftpException {
+        Vector<ChannelSftp.LsEntry> files = channel.ls(path);
+        for (ChannelSftp.LsEntry entry : files) {
+            String entryPath = path.endsWith("/") ? path + entry.getFilename() : path + "/" + entry.getFilename();
+            if (!entry.getAttrs().isDir()) {
+                foundFiles.put(entryPath, entry.getAttrs().getSize());
+            } else if (!entry.getFilename().equals(".") && !entry.getFilename().equals("..")) {
+                listFolderSizes(foundFiles, entryPath, channel);
+            }
+        }
+        return foundFiles;
+    }
+
     public List<String> listFolder(List<String> foundFiles, String path, ChannelSftp channel) throws SftpException {
         Vector<ChannelSftp.LsEntry> files = channel.ls(path);
         for (ChannelSftp.LsEntry entry : files) {
@@ -2,6 +2,7 @@ package dk.northtech.dasscofileproxy.service;
 
 
 import dk.northtech.dasscofileproxy.configuration.StorageConfig;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -13,13 +14,15 @@ import java.util.List;
 
 public class ErdaDataSource extends ResourcePool<ERDAClient> {
     private final StorageConfig storageConfig;
+    private final MeterRegistry meterRegistry;
     private static final Logger logger = LoggerFactory.getLogger(ErdaDataSource.class);
     Instant lastFailure = null;
 
 
-    public ErdaDataSource(Boolean dynamicCreation, StorageConfig storageConfig) {
+    public ErdaDataSource(Boolean dynamicCreation, StorageConfig storageConfig, MeterRegistry meterRegistry) {
         super(storageConfig.erdaConnectionPoolSize(), dynamicCreation);
         this.storageConfig = storageConfig;
+        this.meterRegistry = meterRegistry;
     }
 
     private final Object lock = new Object();
@@ -27,7 +30,7 @@ public class ErdaDataSource extends ResourcePool<ERDAClient> {
 
     @Override
     protected ERDAClient createObject() {
-        return new ERDAClient(storageConfig, this);
+        return new ERDAClient(storageConfig, this, meterRegistry);
     }
 
     @Override
@@ -0,0 +1,347 @@
+package dk.northtech.dasscofileproxy.service;
+
+import dk.northtech.dasscofileproxy.configuration.ErdaHttpConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads files from the HTTPS endpoint of ERDA. All reads share one client, so connections and TLS sessions are reused
+ * instead of being set up for every file, and the number of reads running at once is bounded by
+ * erda-http.maxConcurrentRequests. A read holds its permit until its stream is closed, or until a read of the stream has
+ * waited erda-http.readTimeout for bytes, so a stalled transfer cannot keep its permit forever.
+ * <p>
+ * A read that fails before the response arrives, or that ERDA answers with a server error, is retried with exponential
+ * backoff and full jitter, so the instances do not retry in step. The time to the response, the throughput and the
+ * errors by class are recorded under erda.http.
+ */
+@Service
+public class ErdaHttpGateway {
+    private static final Logger logger = LoggerFactory.getLogger(ErdaHttpGateway.class);
+    private final HttpClient httpClient;
+    private final Duration readTimeout;
+    private final int maxAttempts;
+    private final Duration retryBackoff;
+    private final Semaphore permits;
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary throughput;
+    private final Counter receivedBytes;
+    private final Counter retries;
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "erda-http-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    public ErdaHttpGateway(ErdaHttpConfig erdaHttpConfig, MeterRegistry meterRegistry) {
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(erdaHttpConfig.connectTimeout())
+                .build();
+        this.readTimeout = erdaHttpConfig.readTimeout();
+        this.maxAttempts = Math.max(erdaHttpConfig.maxAttempts(), 1);
+        this.retryBackoff = erdaHttpConfig.retryBackoff();
+        this.permits = new Semaphore(Math.max(erdaHttpConfig.maxConcurrentRequests(), 1), true);
+        this.meterRegistry = meterRegistry;
+        this.throughput = DistributionSummary.builder("erda.http.throughput")
+                .description("Throughput of each read from ERDA")
+                .baseUnit("bytes/s")
+                .register(meterRegistry);
+        this.receivedBytes = Counter.builder("erda.http.received")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.retries = Counter.builder("erda.http.retries").register(meterRegistry);
+    }
+
+    /**
+     * Reads the bytes from start to end (both inclusive) of a file in ERDA, or from start to the end of the file if end
+     * is negative. If ERDA ignores the Range header and returns the whole file, the bytes before start are skipped.
+     * Returns null if ERDA does not have the file, and throws if ERDA still fails after the retries.
+     */
+    public InputStream get(String erdaUrl, long start, long end) throws IOException {
+        HttpRequest.Builder requestBuilder;
+        try {
+            requestBuilder = HttpRequest.newBuilder()
+                    .uri(new URI(erdaUrl))
+                    // Only bounds the wait for the response headers, the body is watched by MeteredStream.
+                    .timeout(readTimeout)
+                    .GET();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (start > 0 || end >= 0) {
+            requestBuilder.header("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+        }
+        HttpRequest request = requestBuilder.build();
+
+        acquirePermit();
+        boolean handedOver = false;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    InputStream body = send(request, start);
+                    handedOver = body != null;
+                    return body;
+                } catch (RetryableException e) {
+                    if (attempt >= maxAttempts) {
+                        throw e.getCause() instanceof IOException io ? io : new IOException(e.getMessage());
+                    }
+                    logger.warn("Reading {} from ERDA failed, attempt {} of {}: {}", erdaUrl, attempt, maxAttempts, e.getMessage());
+                    retries.increment();
+                    sleep(backoff(attempt));
+                }
+            }
+        } finally {
+            if (!handedOver) {
+                permits.release();
+            }
+        }
+    }
+
+    private InputStream send(HttpRequest request, long start) throws IOException, RetryableException {
+        long sent = System.nanoTime();
+        HttpResponse<InputStream> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching from ERDA");
+        } catch (IOException e) {
+            recordError(errorClass(e));
+            throw new RetryableException(e);
+        }
+        int status = response.statusCode();
+        if (status == 200 || status == 206) {
+            recordTimeToFirstByte(sent, "success");
+            if (status == 200 && start > 0) {
+                try {
+                    response.body().skipNBytes(start);
+                } catch (IOException e) {
+                    response.body().close();
+                    throw e;
+                }
+            }
+            return new MeteredStream(response.body(), sent);
+        }
+        response.body().close();
+        if (status == 404) {
+            recordTimeToFirstByte(sent, "not_found");
+            return null;
+        }
+        recordTimeToFirstByte(sent, "error");
+        if (status >= 500 || status == 429) {
+            recordError("server");
+            throw new RetryableException(new IOException("ERDA responded with status " + status));
+        }
+        recordError("client");
+        throw new IOException("ERDA responded with status " + status);
+    }
+
+    private void acquirePermit() throws IOException {
+        try {
+            if (!permits.tryAcquire(readTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                recordError("saturated");
+                throw new IOException("Too many concurrent reads from ERDA");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to read from ERDA");
+        }
+    }
+
+    /**
+     * Full jitter: a random delay up to the exponential backoff of the attempt.
+     */
+    Duration backoff(int attempt) {
+        long maxMillis = retryBackoff.toMillis() << Math.min(attempt - 1, 16);
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(maxMillis + 1));
+    }
+
+    private static void sleep(Duration duration) throws InterruptedIOException {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry ERDA");
+        }
+    }
+
+    static String errorClass(IOException e) {
+        if (e instanceof HttpConnectTimeoutException || e instanceof ConnectException) {
+            return "connect";
+        }
+        if (e instanceof HttpTimeoutException) {
+            return "timeout";
+        }
+        return "io";
+    }
+
+    private void recordTimeToFirstByte(long sent, String outcome) {
+        Timer.builder("erda.http.ttfb")
+                .description("Time from sending a request to ERDA until the response headers arrive")
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(System.nanoTime() - sent, TimeUnit.NANOSECONDS);
+    }
+
+    private void recordError(String errorClass) {
+        Counter.builder("erda.http.errors").tag("class", errorClass).register(meterRegistry).increment();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+    }
+
+    private static class RetryableException extends Exception {
+        RetryableException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Counts the bytes read, and on close records the throughput and releases the permit of the read. The stream is
+     * closed by the watchdog if a read waits for readTimeout without bytes arriving, which fails that read. A stream
+     * that is not being read is left alone, as a slow reader is not a stalled transfer.
+     */
+    private class MeteredStream extends FilterInputStream {
+        private final long started;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // When the read that is waiting for bytes started, 0 between reads.
+        private volatile long waitingSince = 0;
+        private volatile boolean stalled = false;
+        private long read = 0;
+
+        MeteredStream(InputStream in, long started) {
+            super(in);
+            this.started = started;
+            watch(readTimeout.toNanos());
+        }
+
+        private void watch(long delayNanos) {
+            try {
+                watchdog.schedule(this::checkProgress, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                // Shutting down, the stream is closed with the client.
+            }
+        }
+
+        private void checkProgress() {
+            if (closed.get()) {
+                return;
+            }
+            long since = waitingSince;
+            long waitedNanos = since == 0 ? 0 : System.nanoTime() - since;
+            if (waitedNanos < readTimeout.toNanos()) {
+                watch(readTimeout.toNanos() - waitedNanos);
+                return;
+            }
+            logger.warn("No bytes from ERDA for {}, closing the read", readTimeout);
+            stalled = true;
+            recordError("stalled");
+            try {
+                close();
+            } catch (IOException e) {
+                logger.debug("Failed to close stalled read: {}", e.getMessage());
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b;
+            waitingSince = System.nanoTime();
+            try {
+                b = super.read();
+            } catch (IOException e) {
+                throw stalledOr(e);
+            } finally {
+                waitingSince = 0;
+            }
+            checkNotStalled();
+            if (b >= 0) {
+                read++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            waitingSince = System.nanoTime();
+            try {
+                n = super.read(b, off, len);
+            } catch (IOException e) {
+                throw stalledOr(e);
+            } finally {
+                waitingSince = 0;
+            }
+            checkNotStalled();
+            if (n > 0) {
+                read += n;
+            }
+            return n;
+        }
+
+        // A stream closed under a blocked read may end it or return what it has, neither of which is the whole body.
+        private void checkNotStalled() throws IOException {
+            if (stalled) {
+                throw stalledOr(null);
+            }
+        }
+
+        private IOException stalledOr(IOException e) {
+            if (!stalled) {
+                return e;
+            }
+            IOException timeout = new HttpTimeoutException("No bytes from ERDA for " + readTimeout);
+            if (e != null) {
+                timeout.initCause(e);
+            }
+            return timeout;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                super.close();
+            } finally {
+                permits.release();
+                receivedBytes.increment(read);
+                long elapsedNanos = System.nanoTime() - started;
+                if (read > 0 && elapsedNanos > 0) {
+                    throughput.record(read * 1e9 / elapsedNanos);
+                }
+            }
+        }
+    }
+}
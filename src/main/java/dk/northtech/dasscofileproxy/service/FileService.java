@@ -51,12 +51,17 @@ public class FileService {
     AssetServiceProperties assetServiceProperties;
     private static final Logger logger = LoggerFactory.getLogger(FileService.class);
     private final ObservationRegistry observationRegistry;
+    private final SynchronizedFileFilter synchronizedFileFilter;
+    private final AssetAccessService assetAccessService;
 
     @Inject
     public FileService(ShareConfig shareConfig, Jdbi jdbi, AssetService assetService,
                        AssetServiceProperties assetServiceProperties,
-                       ObservationRegistry observationRegistry) {
+                       ObservationRegistry observationRegistry, SynchronizedFileFilter synchronizedFileFilter,
+                       AssetAccessService assetAccessService) {
         this.shareConfig = shareConfig;
+        this.synchronizedFileFilter = synchronizedFileFilter;
+        this.assetAccessService = assetAccessService;
         this.assetService = assetService;
         this.assetServiceProperties = assetServiceProperties;
         this.observationRegistry = observationRegistry;
@@ -139,6 +144,7 @@ public class FileService {
         jdbi.withHandle(h -> {
             FileRepository fileRepository = h.attach(FileRepository.class);
             fileRepository.setSynchronizedStatus(assetGuid);
+            synchronizedFileFilter.addSynchronized(fileRepository.getSyncFilesByAssetGuid(assetGuid));
             return h;
         });
     }
@@ -297,6 +303,13 @@ public class FileService {
         });
     }
 
+    public List<DasscoFile> getSyncFilesByAssetGuid(String asset_guid) {
+        return jdbi.withHandle(h -> {
+            FileRepository attach = h.attach(FileRepository.class);
+            return attach.getSyncFilesByAssetGuid(asset_guid);
+        });
+    }
+
     public void deleteDirectory(long directoryId) {
         jdbi.inTransaction(h -> {
             SharedAssetRepository sharedAssetRepository = h.attach(SharedAssetRepository.class);
@@ -676,22 +689,8 @@ public class FileService {
     }
 
     public boolean checkAccess(String assetGuid, User user) {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(assetServiceProperties.rootUrl() + "/api/v1/assets/readaccess?assetGuid=" + assetGuid))
-                .header("Authorization", "Bearer " + user.token)
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.noBody())
-                .build();
-
-        HttpClient httpClient = HttpClient.newHttpClient();
-
         try {
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 403) {
-                return false;
-            } else if (response.statusCode() == 204) {
-                return true;
-            }
+            return assetAccessService.getReadAccess(user, assetGuid) == AssetAccessService.AccessDecision.ALLOWED;
         } catch (Exception e) {
             logger.error(e.getMessage());
         }
@@ -699,11 +698,26 @@ public class FileService {
     }
 
     public Optional<DasscoFile> getDasscoFileThumbnailForGuid(String assetGuid) {
-        return this.jdbi.onDemand(FileRepository.class).getFileThumbnailByAssetGuid(assetGuid);
+        if (synchronizedFileFilter.isKnownAbsentAsset(assetGuid, SynchronizedFileFilter.AssetLookup.THUMBNAIL)) {
+            return Optional.empty();
+        }
+        Optional<DasscoFile> thumbnail = this.jdbi.onDemand(FileRepository.class).getFileThumbnailByAssetGuid(assetGuid);
+        if (thumbnail.isEmpty()) {
+            synchronizedFileFilter.recordAbsentAsset(assetGuid, SynchronizedFileFilter.AssetLookup.THUMBNAIL);
+        }
+        return thumbnail;
     }
 
     public Optional<DasscoFile> getDasscoFileForGuid(String assetGuid) {
-        return this.jdbi.onDemand(FileRepository.class).getFileByAssetGuid(assetGuid);
+        // Assets without synchronized files cannot be served from ERDA, so they are treated as absent.
+        if (synchronizedFileFilter.isKnownAbsentAsset(assetGuid, SynchronizedFileFilter.AssetLookup.FILE)) {
+            return Optional.empty();
+        }
+        Optional<DasscoFile> file = this.jdbi.onDemand(FileRepository.class).getFileByAssetGuid(assetGuid);
+        if (file.isEmpty()) {
+            synchronizedFileFilter.recordAbsentAsset(assetGuid, SynchronizedFileFilter.AssetLookup.FILE);
+        }
+        return file;
     }
 
     public List<DasscoFile> getDasscoFiles(List<String> assets, User user) {
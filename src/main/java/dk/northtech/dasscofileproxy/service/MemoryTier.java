@@ -0,0 +1,74 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+/**
+ * Keeps the content of small cache files, like thumbnails, in memory so the hot ones are served without opening the
+ * file. A file is read into memory from the disk cache the first time it is hit, and the tier is bounded by the total
+ * size of the files it holds.
+ */
+class MemoryTier {
+    private static final Logger logger = LoggerFactory.getLogger(MemoryTier.class);
+    private final long maxFileSize;
+    private final Cache<String, byte[]> contents;
+
+    MemoryTier(long maxBytes, long maxFileSize, MeterRegistry meterRegistry) {
+        this.maxFileSize = maxFileSize;
+        this.contents = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String path, byte[] content) -> content.length)
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+        if (meterRegistry != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, contents, "cache_memory_tier");
+        }
+    }
+
+    /**
+     * Returns the content of the file if it is small enough for the memory tier, reading it from disk unless it is
+     * already in memory. Returns null for larger files, or if the file could not be read.
+     */
+    byte[] get(String path, File file) {
+        long length = file.length();
+        if (length <= 0 || length > maxFileSize) {
+            return null;
+        }
+        byte[] content = contents.getIfPresent(path);
+        if (content != null) {
+            return content;
+        }
+        try {
+            return contents.get(path, p -> {
+                try {
+                    byte[] bytes = Files.readAllBytes(file.toPath());
+                    // The file is written to the cache under another name and moved in place, so a short read means it was replaced.
+                    return bytes.length == length ? bytes : null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            logger.warn("Failed to read {} into memory", file, e);
+            return null;
+        }
+    }
+
+    void invalidate(String path) {
+        contents.invalidate(path);
+    }
+
+    long size() {
+        return contents.estimatedSize();
+    }
+}
@@ -0,0 +1,394 @@
+package dk.northtech.dasscofileproxy.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A file that is cached block by block. Blocks are fetched from ERDA with range requests when they are first read and
+ * written into a sparse file next to the cache file. The blocks that are present are recorded in a bitmap file, so the
+ * partial file survives restarts. The bitmap also records the CRC the file was uploaded with, so blocks of a file that
+ * has since changed in ERDA are not reused. When every block is present the sparse file is checked against the CRC and
+ * moved to the cache path. A file that does not match is discarded, as one of its blocks was corrupted.
+ */
+public class PartialCacheFile {
+    private static final Logger logger = LoggerFactory.getLogger(PartialCacheFile.class);
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+    static final String DATA_SUFFIX = ".partial";
+    static final String BITMAP_SUFFIX = ".blocks";
+
+    /**
+     * Fetches the bytes from start to end (both inclusive) of the file.
+     */
+    @FunctionalInterface
+    public interface BlockFetcher {
+        InputStream fetch(long start, long end) throws IOException;
+    }
+
+    private final Path targetPath;
+    private final Path dataPath;
+    private final Path bitmapPath;
+    private final long size;
+    private final long crc;
+    private final int blockSize;
+    private final int blockCount;
+    private final BlockFetcher fetcher;
+    private final Runnable onComplete;
+    private final Runnable onCrcMismatch;
+    private final BitSet presentBlocks;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Void>> inflightBlocks = new ConcurrentHashMap<>();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private volatile long lastRead = System.currentTimeMillis();
+    private volatile boolean complete = false;
+    private boolean deleted = false;
+    private final Object diskLock = new Object();
+
+    public PartialCacheFile(Path targetPath, long size, long crc, int blockSize, BlockFetcher fetcher, Runnable onComplete) throws IOException {
+        this(targetPath, size, crc, blockSize, fetcher, onComplete, null);
+    }
+
+    /**
+     * @param crc           the CRC32 the file was uploaded with, blocks persisted for another CRC are discarded and the
+     *                      complete file is verified against it unless it is 0
+     * @param onCrcMismatch run when the complete file does not match the CRC and was discarded
+     */
+    public PartialCacheFile(Path targetPath, long size, long crc, int blockSize, BlockFetcher fetcher, Runnable onComplete, Runnable onCrcMismatch) throws IOException {
+        this.targetPath = targetPath;
+        this.dataPath = targetPath.resolveSibling(targetPath.getFileName() + DATA_SUFFIX);
+        this.bitmapPath = targetPath.resolveSibling(targetPath.getFileName() + BITMAP_SUFFIX);
+        this.size = size;
+        this.crc = crc;
+        this.blockSize = blockSize;
+        this.blockCount = (int) ((size + blockSize - 1) / blockSize);
+        this.fetcher = fetcher;
+        this.onComplete = onComplete;
+        this.onCrcMismatch = onCrcMismatch;
+        Files.createDirectories(dataPath.getParent());
+        BitSet persisted = readBitmap();
+        if (persisted == null || !Files.exists(dataPath)) {
+            Files.deleteIfExists(dataPath);
+            persisted = new BitSet(blockCount);
+        }
+        this.presentBlocks = persisted;
+        if (!Files.exists(dataPath)) {
+            Files.createFile(dataPath);
+        }
+    }
+
+    public Path targetPath() {
+        return targetPath;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Whether a stream of the file is open.
+     */
+    public boolean isInUse() {
+        return openStreams.get() > 0;
+    }
+
+    /**
+     * When a stream of the file was last opened or read, in milliseconds since the epoch.
+     */
+    public long lastRead() {
+        return lastRead;
+    }
+
+    public synchronized int presentBlockCount() {
+        return presentBlocks.cardinality();
+    }
+
+    public synchronized boolean isBlockPresent(int block) {
+        return presentBlocks.get(block);
+    }
+
+    /**
+     * Opens a stream of the file starting at the given offset. Missing blocks are fetched from ERDA as the stream
+     * reaches them, so only the blocks that are actually read are transferred.
+     */
+    public InputStream openStream(long offset) throws IOException {
+        RandomAccessFile raf;
+        if (isDeleted()) {
+            throw new FileNotFoundException("The partial cache file of " + targetPath.getFileName() + " was discarded");
+        }
+        if (complete) {
+            raf = new RandomAccessFile(targetPath.toFile(), "r");
+        } else {
+            try {
+                raf = new RandomAccessFile(dataPath.toFile(), "r");
+            } catch (FileNotFoundException e) {
+                // All blocks arrived and the file was moved between the check and the open.
+                if (!complete) {
+                    throw e;
+                }
+                raf = new RandomAccessFile(targetPath.toFile(), "r");
+            }
+        }
+        openStreams.incrementAndGet();
+        lastRead = System.currentTimeMillis();
+        return new BlockInputStream(raf, offset);
+    }
+
+    /**
+     * Makes sure the block is present, fetching it unless another reader is already fetching it.
+     */
+    void ensureBlock(int block) throws IOException {
+        if (isBlockPresent(block)) {
+            return;
+        }
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        CompletableFuture<Void> running = inflightBlocks.putIfAbsent(block, created);
+        if (running == null) {
+            try {
+                if (!isBlockPresent(block)) {
+                    fetchBlock(block);
+                }
+                created.complete(null);
+            } catch (IOException | RuntimeException e) {
+                created.completeExceptionally(e);
+                throw e;
+            } finally {
+                inflightBlocks.remove(block, created);
+            }
+            return;
+        }
+        try {
+            running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for block " + block);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to fetch block " + block, e.getCause());
+        }
+    }
+
+    private void fetchBlock(int block) throws IOException {
+        long start = (long) block * blockSize;
+        long end = Math.min(start + blockSize, size) - 1;
+        byte[] bytes = new byte[(int) (end - start + 1)];
+        try (InputStream in = fetcher.fetch(start, end)) {
+            if (in == null) {
+                throw new FileNotFoundException("ERDA did not return block " + block + " of " + targetPath.getFileName());
+            }
+            int read = in.readNBytes(bytes, 0, bytes.length);
+            if (read != bytes.length) {
+                throw new IOException("ERDA returned a short block %d for %s".formatted(block, targetPath.getFileName()));
+            }
+        }
+        boolean allPresent;
+        // Held while writing, so a discarded file is not written again. Readers of present blocks only need this.
+        synchronized (diskLock) {
+            if (isDeleted()) {
+                throw new IOException("The partial cache file of " + targetPath.getFileName() + " was discarded");
+            }
+            // Blocks are written at their offset, the unwritten parts of the file stay holes.
+            try (RandomAccessFile raf = new RandomAccessFile(dataPath.toFile(), "rw")) {
+                raf.seek(start);
+                raf.write(bytes);
+                // The bitmap must never claim a block that is not on disk.
+                raf.getFD().sync();
+            }
+            synchronized (this) {
+                presentBlocks.set(block);
+                writeBitmap();
+                allPresent = presentBlocks.cardinality() == blockCount;
+            }
+        }
+        if (allPresent && promote() && onComplete != null) {
+            onComplete.run();
+        }
+    }
+
+    private synchronized boolean promote() throws IOException {
+        if (complete || deleted) {
+            return false;
+        }
+        long actualCrc;
+        if (crc != 0 && (actualCrc = crc32(dataPath)) != crc) {
+            deleted = true;
+            deleteFiles(targetPath);
+            if (onCrcMismatch != null) {
+                onCrcMismatch.run();
+            }
+            throw new IOException("CRC mismatch for %s assembled from blocks: was %d, expected %d, discarded it"
+                    .formatted(targetPath.getFileName(), actualCrc, crc));
+        }
+        try {
+            Files.move(dataPath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(dataPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(bitmapPath);
+        complete = true;
+        logger.info("All blocks of {} are cached", targetPath);
+        return true;
+    }
+
+    private static long crc32(Path file) throws IOException {
+        CRC32 crc32 = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc32.update(buffer, 0, read);
+            }
+        }
+        return crc32.getValue();
+    }
+
+    /**
+     * Returns the paths of the partial files to discard to make room for a file of the given size, least recently read
+     * first, or null if there is no room even without the partial files nobody is reading. Partial files count with
+     * their full size, since that is what they grow to.
+     */
+    static List<String> toDiscard(Map<String, PartialCacheFile> partialFiles, long sizeBytes, long budgetBytes) {
+        long used = partialFiles.values().stream().mapToLong(PartialCacheFile::size).sum();
+        List<Map.Entry<String, PartialCacheFile>> idle = partialFiles.entrySet().stream()
+                .filter(entry -> !entry.getValue().isInUse())
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().lastRead()))
+                .toList();
+        List<String> discard = new ArrayList<>();
+        for (Map.Entry<String, PartialCacheFile> entry : idle) {
+            if (used + sizeBytes <= budgetBytes) {
+                break;
+            }
+            discard.add(entry.getKey());
+            used -= entry.getValue().size();
+        }
+        return used + sizeBytes <= budgetBytes ? discard : null;
+    }
+
+    /**
+     * Removes the partial file and its bitmap, e.g. because the file changed in ERDA.
+     */
+    public void delete() throws IOException {
+        synchronized (diskLock) {
+            synchronized (this) {
+                deleted = true;
+            }
+            deleteFiles(targetPath);
+        }
+    }
+
+    private synchronized boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Removes the partial file and bitmap of a cache path without opening them.
+     */
+    public static void deleteFiles(Path targetPath) throws IOException {
+        Files.deleteIfExists(targetPath.resolveSibling(targetPath.getFileName() + DATA_SUFFIX));
+        Files.deleteIfExists(targetPath.resolveSibling(targetPath.getFileName() + BITMAP_SUFFIX));
+    }
+
+    // Bitmap format: size, block size, CRC, then the bitset. A bitmap for another size, block size or CRC is discarded.
+    private BitSet readBitmap() {
+        if (!Files.exists(bitmapPath)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(bitmapPath)))) {
+            long persistedSize = in.readLong();
+            int persistedBlockSize = in.readInt();
+            long persistedCrc = in.readLong();
+            if (persistedSize != size || persistedBlockSize != blockSize || persistedCrc != crc) {
+                logger.info("Discarding partial cache of {}, the file changed", targetPath);
+                return null;
+            }
+            int length = in.readInt();
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return BitSet.valueOf(bytes);
+        } catch (IOException e) {
+            logger.warn("Failed to read block bitmap {}", bitmapPath);
+            return null;
+        }
+    }
+
+    private void writeBitmap() throws IOException {
+        Path tempPath = bitmapPath.resolveSibling(bitmapPath.getFileName() + ".tmp");
+        byte[] bytes = presentBlocks.toByteArray();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            out.writeLong(size);
+            out.writeInt(blockSize);
+            out.writeLong(crc);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        try {
+            Files.move(tempPath, bitmapPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, bitmapPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private class BlockInputStream extends InputStream {
+        private final RandomAccessFile raf;
+        private long position;
+        private boolean closed = false;
+
+        BlockInputStream(RandomAccessFile raf, long position) {
+            this.raf = raf;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= size) {
+                return -1;
+            }
+            int block = (int) (position / blockSize);
+            lastRead = System.currentTimeMillis();
+            ensureBlock(block);
+            long blockEnd = Math.min((long) (block + 1) * blockSize, size);
+            raf.seek(position);
+            int read = raf.read(b, off, (int) Math.min(len, blockEnd - position));
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            openStreams.decrementAndGet();
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.google.common.net.UrlEscapers;
+import dk.northtech.dasscofileproxy.configuration.CacheNodeConfig;
+import dk.northtech.dasscofileproxy.repository.CacheNodeRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.inject.Inject;
+import org.jdbi.v3.core.Jdbi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Fetches files from the caches of the other instances, so a file that another instance has cached is not downloaded
+ * from ERDA again. The instances find each other through the cache_node table, where each instance announces its URL
+ * with a heartbeat, and the node scoped file_cache rows tell which instance has which file. Requests between instances
+ * carry a secret shared by all instances.
+ * <p>
+ * Peer fetching is only enabled when both cache.nodeUrl and cache.peerSecret are set.
+ */
+@Service
+public class PeerCacheClient {
+    private static final Logger logger = LoggerFactory.getLogger(PeerCacheClient.class);
+    public static final String SECRET_HEADER = "X-Cache-Peer-Secret";
+    static final String FILES_PATH = "/internal/cache/files";
+    // An instance that has not sent a heartbeat for this long is considered gone.
+    static final Duration HEARTBEAT_TIMEOUT = Duration.ofMinutes(2);
+    private final String nodeId;
+    private final String nodeUrl;
+    private final String peerSecret;
+    private final Duration peerTimeout;
+    private final Jdbi jdbi;
+    private final HttpClient httpClient;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter errors;
+
+    @Inject
+    public PeerCacheClient(CacheNodeConfig nodeConfig, Jdbi jdbi, MeterRegistry meterRegistry) {
+        this.nodeId = nodeConfig.nodeId();
+        this.nodeUrl = nodeConfig.nodeUrl();
+        this.peerSecret = nodeConfig.peerSecret();
+        this.peerTimeout = nodeConfig.peerTimeout();
+        this.jdbi = jdbi;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(peerTimeout)
+                .build();
+        this.hits = Counter.builder("cache.peer.fetch").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("cache.peer.fetch").tag("result", "miss").register(meterRegistry);
+        this.errors = Counter.builder("cache.peer.fetch").tag("result", "error").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return nodeUrl != null && !nodeUrl.isBlank() && peerSecret != null && !peerSecret.isBlank();
+    }
+
+    /**
+     * Checks the secret sent by another instance, in constant time.
+     */
+    public boolean isAuthorized(String secret) {
+        return isEnabled() && secret != null
+                && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), peerSecret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Announces this instance to the others, for peer fetching and for routing, see {@link CacheRouter}.
+     */
+    @Scheduled(fixedDelay = 30000)
+    public void heartbeat() {
+        if (nodeUrl == null || nodeUrl.isBlank()) {
+            return;
+        }
+        try {
+            jdbi.onDemand(CacheNodeRepository.class).heartbeat(nodeId, nodeUrl);
+        } catch (Exception e) {
+            logger.warn("Failed to announce this instance in cache_node", e);
+        }
+    }
+
+    /**
+     * Opens the file from the first other instance that has it cached, starting at the given offset. Returns null if no
+     * instance has the file, or none of them answered within cache.peerTimeout, so the caller falls back to ERDA.
+     */
+    public InputStream fetch(String assetPath, long offset) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        List<String> peerUrls;
+        try {
+            peerUrls = peerUrlsWithFile(assetPath);
+        } catch (Exception e) {
+            logger.warn("Failed to look up the instances that have {} cached", assetPath, e);
+            errors.increment();
+            return null;
+        }
+        for (String peerUrl : peerUrls) {
+            try {
+                InputStream body = fetchFrom(peerUrl, assetPath, offset);
+                if (body != null) {
+                    logger.info("Fetching {} from {} instead of ERDA", assetPath, peerUrl);
+                    hits.increment();
+                    return body;
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to fetch {} from {}: {}", assetPath, peerUrl, e.getMessage());
+                errors.increment();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    List<String> peerUrlsWithFile(String assetPath) {
+        return jdbi.onDemand(CacheNodeRepository.class).getPeerUrlsWithFile(assetPath, nodeId, Instant.now().minus(HEARTBEAT_TIMEOUT));
+    }
+
+    private InputStream fetchFrom(String peerUrl, String assetPath, long offset) throws IOException {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(peerUrl + FILES_PATH + UrlEscapers.urlFragmentEscaper().escape(assetPath)))
+                .header(SECRET_HEADER, peerSecret)
+                // Only bounds the wait for the response headers, the body streams for as long as it takes.
+                .timeout(peerTimeout)
+                .GET();
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        }
+        HttpResponse<InputStream> response;
+        try {
+            response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching from " + peerUrl);
+        }
+        if (response.statusCode() == 206) {
+            return response.body();
+        }
+        if (response.statusCode() == 200) {
+            InputStream body = response.body();
+            body.skipNBytes(offset);
+            return body;
+        }
+        response.body().close();
+        if (response.statusCode() != 404) {
+            throw new IOException("Responded with status " + response.statusCode());
+        }
+        // The file was evicted since the row was read.
+        return null;
+    }
+}
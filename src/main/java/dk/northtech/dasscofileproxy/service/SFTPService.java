@@ -20,6 +20,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 
@@ -32,6 +36,8 @@ public class SFTPService {
     private final CacheFileService cacheFileService;
     private final ShareConfig shareConfig;
     private final AssetService assetService;
+    private final BlobStore blobStore;
+    private final UploadJournal uploadJournal;
 
     private ErdaDataSource erdaDataSource;
     //    private HttpShareService httpShareService;
@@ -40,7 +46,7 @@ public class SFTPService {
 
     @Inject
     public SFTPService(StorageConfig storageConfig, FileService fileService, CacheFileService cacheFileService, ShareConfig shareConfig, AssetService assetService,
-                       Jdbi jdbi, ErdaDataSource erdaDataSource, ObservationRegistry observationRegistry) {
+                       Jdbi jdbi, ErdaDataSource erdaDataSource, ObservationRegistry observationRegistry, BlobStore blobStore, UploadJournal uploadJournal) {
         this.storageConfig = storageConfig;
         this.assetService = assetService;
         this.fileService = fileService;
@@ -49,6 +55,8 @@ public class SFTPService {
         this.jdbi = jdbi;
         this.erdaDataSource = erdaDataSource;
         this.observationRegistry = observationRegistry;
+        this.blobStore = blobStore;
+        this.uploadJournal = uploadJournal;
     }
 
 
@@ -103,28 +111,15 @@ public class SFTPService {
                     String localMountFolder = this.shareConfig.mountFolder() + directory.uri();
                     File localDirectory = new File(shareConfig.mountFolder() + directory.uri());
                     List<File> files = fileService.listFiles(localDirectory, new ArrayList<>(), false, false);
-                    List<Path> remoteLocations = files.stream().map(file -> {
-                        logger.info("Remote path is: " + remotePath);
-                        logger.info("Local base path is: " + localMountFolder);
-                        logger.info("File path is: " + file.toPath().toString().replace("\\", "/"));
-                        logger.info(file.toPath().toString().replace("\\", "/").split(localMountFolder)[1]);
-//                        logger.info(file.toPath().toString().replace("\\", "/").split(localMountFolder)[1]);
-                        String[] split = file.toPath().toString().replace("\\", "/").split(localMountFolder);
-                        return Path.of(remotePath + "/" + (split.length == 2 ? split[1]:split[0]));
-//                        return Path.of(remotePath + "/" + file.toPath().toString().replace("\\", "/").replace(localMountFolder, ""));
-                    }).collect(Collectors.toList());
-                    erdaClient.createSubDirsIfNotExists(remoteLocations);
-                    List<String> remoteFiles = erdaClient.listAllFiles(remotePath);
-//            }
-                    final Set<String> uploadedFiles = erdaClient.putFilesOnRemotePathBulk(files, localMountFolder, remotePath);
-                    //handle files that have been deleted
-                    List<String> filesToDelete = remoteFiles.stream().filter(f -> !uploadedFiles.contains(f)).collect(Collectors.toList());
-                    erdaClient.deleteFiles(filesToDelete);
-                    /*for (String path : filesToDelete) {
-                        this.cacheFileService.invalidateFileFromCache(path);
-                    }*/
+                    uploadShare(erdaClient, files, localMountFolder, remotePath);
                     fileService.markFilesAsSynced(fullAsset.asset_guid);
                     if (assetService.completeAsset(new AssetUpdateRequest(new MinimalAsset(sharedAsset.assetGuid(), null, null, null), directory.syncWorkstation(), directory.syncPipeline(), directory.syncUser(), fullAsset.asset_guid, directory.directoryId(), directory.specifySyncLogId()))) {
+                        // Keep the files we just uploaded in the cache instead of downloading them again
+                        try {
+                            cacheFileService.promoteToCache(localMountFolder, fileService.getSyncFilesByAssetGuid(fullAsset.asset_guid));
+                        } catch (Exception e) {
+                            logger.warn("Failed to promote files of asset {} to the cache", fullAsset.asset_guid, e);
+                        }
                         //Clean up local dir and its metadata
                         fileService.deleteDirectory(directory.directoryId());
                         fileService.removeShareFolder(directory);
@@ -135,7 +130,7 @@ public class SFTPService {
                             this.cacheFileService.invalidateFileFromCache(dasscoFile.path());
                         }
                         fileService.deleteFilesMarkedAsDeleteByAsset(sharedAsset.assetGuid());
-                        this.cacheFileService.invalidateFileFromCache("");
+                        this.cacheFileService.invalidateAsset(fullAsset.institution, fullAsset.collection, fullAsset.asset_guid);
                     }
                 } catch (Exception e) {
                     logger.warn("ERDA export failed, failed asset guid: {}", sharedAsset.assetGuid());
@@ -158,6 +153,51 @@ public class SFTPService {
         }
     }
 
+    /**
+     * Uploads the files of a share to the remote folder of its asset, and then deletes the remote files that are no
+     * longer in the share. Throws without deleting anything if any file failed to upload.
+     */
+    void uploadShare(ERDAClient erdaClient, List<File> files, String localMountFolder, String remotePath) {
+        List<Path> remoteLocations = files.stream().map(file -> {
+            logger.info("Remote path is: " + remotePath);
+            logger.info("Local base path is: " + localMountFolder);
+            logger.info("File path is: " + file.toPath().toString().replace("\\", "/"));
+            logger.info(file.toPath().toString().replace("\\", "/").split(localMountFolder)[1]);
+//                        logger.info(file.toPath().toString().replace("\\", "/").split(localMountFolder)[1]);
+            String[] split = file.toPath().toString().replace("\\", "/").split(localMountFolder);
+            return Path.of(remotePath + "/" + (split.length == 2 ? split[1]:split[0]));
+//                        return Path.of(remotePath + "/" + file.toPath().toString().replace("\\", "/").replace(localMountFolder, ""));
+        }).collect(Collectors.toList());
+        erdaClient.createSubDirsIfNotExists(remoteLocations);
+        Map<String, Long> remoteFiles = erdaClient.listAllFileSizes(remotePath);
+//            }
+        // Only the files that are not on ERDA already are uploaded, e.g. after a failed attempt or a checkout.
+        UploadJournal.UploadPlan uploadPlan = uploadJournal.plan(files, remotePath, file -> ERDAClient.remotePathOf(file, localMountFolder, remotePath), remoteFiles);
+        List<File> changedFiles = uploadPlan.files();
+        Map<String, File> uploads = new HashMap<>();
+        for (File file : changedFiles) {
+            uploads.put(ERDAClient.remotePathOf(file, localMountFolder, remotePath), file);
+        }
+        // Recorded before the upload, so an interrupted upload of the same content can be resumed.
+        uploadJournal.startUploads(uploads, uploadPlan.resumable());
+        ERDAClient.BulkUploadResult uploadResult = erdaClient.putFilesOnRemotePathBulk(changedFiles, uploadPlan.resumable(), localMountFolder, remotePath);
+        uploadJournal.confirmUploads(uploadResult.uploadedFiles());
+        if (!uploadResult.failedFiles().isEmpty()) {
+            // Nothing is deleted from ERDA until every file is uploaded, the next attempt uploads the rest.
+            throw new RuntimeException("Failed to upload %d of %d files: %s".formatted(uploadResult.failedFiles().size(), changedFiles.size(), uploadResult.failedFiles().keySet()));
+        }
+        final Set<String> uploadedFiles = files.stream()
+                .map(file -> ERDAClient.remotePathOf(file, localMountFolder, remotePath))
+                .collect(Collectors.toSet());
+        //handle files that have been deleted
+        List<String> filesToDelete = remoteFiles.keySet().stream().filter(f -> !uploadedFiles.contains(f)).collect(Collectors.toList());
+        erdaClient.deleteFiles(filesToDelete);
+        uploadJournal.forget(filesToDelete);
+        /*for (String path : filesToDelete) {
+            this.cacheFileService.invalidateFileFromCache(path);
+        }*/
+    }
+
     public String getRemotePath(String institution, String collection, String assetGuid) {
         return storageConfig.remoteFolder() + institution + "/" + collection + "/" + assetGuid;
     }
@@ -181,40 +221,22 @@ public class SFTPService {
             logger.info("Initialising asset folder, remote path is {}", remotePath);
 
             try (ERDAClient erdaClient = erdaDataSource.acquire(120);) {
+                List<ERDAClient.Download> assetDownloads = new ArrayList<>();
                 if (!erdaClient.exists(remotePath, true)) {
                     logger.info("Remote path {} didnt exist ", remotePath);
                 } else {
-                    List<String> fileNames = erdaClient.listAllFiles(remotePath);
-                    erdaClient.downloadFiles(fileNames, sharePath, minimalAsset.asset_guid());
-                }
-                try {
-                    logger.info("Initialising parent folder, parent_guid is {}", minimalAsset.parent_guids());
-
-                    //If asset have parent download into parent folder
-                    //We could save a http request here as we dont need the full parent asset to get the remote location, it is in the same collection and institution.
-                        minimalAsset.parent_guids().forEach(parent_guid -> {
-
-                        AssetFull parent = assetService.getFullAsset(parent_guid);
-                        if(parent == null) {
-                            throw new IllegalArgumentException("parent doesnt exist");
-                        }
-                        String parentRemotePath = getRemotePath(new MinimalAsset(parent.asset_guid, parent.parent_guids, parent.institution, parent.collection));
-                        logger.info("Initialising parent folder, remote path is {}", parentRemotePath);
-                        try {
-                            if (!erdaClient.exists(parentRemotePath, true)) {
-                                logger.info("Remote parent path {} didnt exist ", parentRemotePath);
-                                throw new RuntimeException("Remote path doesnt exist");
-//                         return;
-                            }
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                        List<String> parentFileNames = erdaClient.listAllFiles(parentRemotePath);
-                        erdaClient.downloadFiles(parentFileNames, sharePath + "/parents/" + parent.asset_guid, parent.asset_guid);
-                        });
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    for (String location : erdaClient.listAllFiles(remotePath)) {
+                        assetDownloads.add(new ERDAClient.Download(location, sharePath + pathWithinAsset(location, minimalAsset.asset_guid())));
+                    }
                 }
+                logger.info("Initialising parent folder, parent_guid is {}", minimalAsset.parent_guids());
+                // The parents are looked up and listed at the same time, and their files are downloaded with those of
+                // the asset, instead of one parent after another.
+                List<ERDAClient.Download> parentDownloads = planParentDownloads(erdaClient, sharePath, minimalAsset.parent_guids());
+                List<ERDAClient.Download> downloads = new ArrayList<>(assetDownloads);
+                downloads.addAll(parentDownloads);
+                erdaClient.downloadFilesInParallel(downloads);
+                recordCheckedOutFiles(minimalAsset, assetDownloads);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -223,6 +245,119 @@ public class SFTPService {
     }
 
 
+    /**
+     * Records the files of the asset that were checked out in the upload journal, so they are not uploaded again unless
+     * they are changed in the share.
+     */
+    private void recordCheckedOutFiles(MinimalAsset minimalAsset, List<ERDAClient.Download> downloads) {
+        if (downloads.isEmpty()) {
+            return;
+        }
+        try {
+            Map<String, DasscoFile> syncedFiles = new HashMap<>();
+            for (DasscoFile dasscoFile : fileService.getSyncFilesByAssetGuid(minimalAsset.asset_guid())) {
+                syncedFiles.put(dasscoFile.path(), dasscoFile);
+            }
+            Map<String, File> downloaded = new HashMap<>();
+            Map<String, Long> crcs = new HashMap<>();
+            for (ERDAClient.Download download : downloads) {
+                String assetPath = "/" + minimalAsset.institution() + "/" + minimalAsset.collection() + "/" + minimalAsset.asset_guid() + pathWithinAsset(download.location(), minimalAsset.asset_guid());
+                DasscoFile dasscoFile = syncedFiles.get(assetPath);
+                File file = new File(download.destination());
+                if (dasscoFile != null && dasscoFile.sizeBytes() == file.length()) {
+                    downloaded.put(download.location(), file);
+                    crcs.put(download.location(), dasscoFile.crc());
+                }
+            }
+            uploadJournal.recordDownloaded(downloaded, crcs);
+        } catch (Exception e) {
+            logger.warn("Failed to record the checked out files of {}, they are uploaded again when synchronised", minimalAsset.asset_guid(), e);
+        }
+    }
+
+    /**
+     * Looks up the parents and lists their files on ERDA concurrently, using up to storage.downloadChannels channels of
+     * the connection, and returns the parent files that are not in the cache.
+     */
+    List<ERDAClient.Download> planParentDownloads(ERDAClient erdaClient, String sharePath, Collection<String> parentGuids) {
+        if (parentGuids == null || parentGuids.isEmpty()) {
+            return List.of();
+        }
+        try (ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parentGuids.size(), storageConfig.downloadChannels())))) {
+            List<Future<List<ERDAClient.Download>>> plans = new ArrayList<>();
+            for (String parentGuid : parentGuids) {
+                plans.add(executor.submit(() -> planParentDownload(erdaClient, sharePath, parentGuid)));
+            }
+            List<ERDAClient.Download> downloads = new ArrayList<>();
+            for (Future<List<ERDAClient.Download>> plan : plans) {
+                downloads.addAll(plan.get());
+            }
+            return downloads;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<ERDAClient.Download> planParentDownload(ERDAClient erdaClient, String sharePath, String parentGuid) throws Exception {
+        AssetFull parent = assetService.getFullAsset(parentGuid);
+        if (parent == null) {
+            throw new IllegalArgumentException("parent doesnt exist");
+        }
+        String parentRemotePath = getRemotePath(new MinimalAsset(parent.asset_guid, parent.parent_guids, parent.institution, parent.collection));
+        logger.info("Initialising parent folder, remote path is {}", parentRemotePath);
+        if (!erdaClient.exists(parentRemotePath, true)) {
+            logger.info("Remote parent path {} didnt exist ", parentRemotePath);
+            throw new RuntimeException("Remote path doesnt exist");
+        }
+        List<String> parentFileNames = erdaClient.listAllFiles(parentRemotePath);
+        String parentFolder = sharePath + "/parents/" + parent.asset_guid;
+        List<ERDAClient.Download> downloads = new ArrayList<>();
+        for (String location : copyCachedParentFiles(parentFileNames, parent, parentFolder)) {
+            downloads.add(new ERDAClient.Download(location, parentFolder + pathWithinAsset(location, parent.asset_guid)));
+        }
+        return downloads;
+    }
+
+    /**
+     * Copies the parent files that are in the cache into the parent folder of the share, and returns the remote
+     * locations of the files that must be downloaded from ERDA.
+     */
+    List<String> copyCachedParentFiles(List<String> locations, AssetFull parent, String parentFolder) {
+        Map<String, Long> sizes = new HashMap<>();
+        for (DasscoFile dasscoFile : fileService.getSyncFilesByAssetGuid(parent.asset_guid)) {
+            sizes.put(dasscoFile.path(), dasscoFile.sizeBytes());
+        }
+        List<String> notCached = new ArrayList<>();
+        for (String location : locations) {
+            String pathWithinAsset = pathWithinAsset(location, parent.asset_guid);
+            String assetPath = "/" + parent.institution + "/" + parent.collection + "/" + parent.asset_guid + pathWithinAsset;
+            Long size = sizes.get(assetPath);
+            Optional<Path> cachedCopy = size == null ? Optional.empty() : cacheFileService.getCachedCopy(assetPath, size);
+            if (cachedCopy.isEmpty()) {
+                notCached.add(location);
+                continue;
+            }
+            try {
+                blobStore.copy(cachedCopy.get(), Path.of(parentFolder + pathWithinAsset));
+            } catch (IOException e) {
+                logger.warn("Failed to copy {} from the cache, downloading it instead", assetPath, e);
+                notCached.add(location);
+            }
+        }
+        if (notCached.size() < locations.size()) {
+            logger.info("Copied {} files of parent {} from the cache", locations.size() - notCached.size(), parent.asset_guid);
+        }
+        return notCached;
+    }
+
+    // The path of a remote file below the folder of its asset
+    private static String pathWithinAsset(String location, String assetGuid) {
+        return location.substring(location.indexOf(assetGuid) + assetGuid.length());
+    }
+
     public void cacheFile(String remotePath, String localPath) {
         try (ERDAClient erdaClient = new ERDAClient(storageConfig)) {
 
@@ -0,0 +1,222 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import dk.northtech.dasscofileproxy.configuration.CacheConfig;
+import dk.northtech.dasscofileproxy.domain.DasscoFile;
+import dk.northtech.dasscofileproxy.repository.FileRepository;
+import jakarta.inject.Inject;
+import org.jdbi.v3.core.Jdbi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Answers lookups of files that do not exist without going to the database. A Bloom filter holds the paths and asset
+ * guids of all synchronized files, and lookups that the filter lets through but that turn out not to exist are
+ * remembered for a short while. The filter is rebuilt from the file table every hour, to forget deleted files, and files
+ * are added to it when they are synchronized.
+ * <p>
+ * The folders of the assets synchronized on this instance are published on the {@link CacheInvalidationBus}, so the
+ * other instances stop answering lookups below them from their filters until their next rebuild, which reads the new
+ * files from the file table.
+ */
+@Service
+public class SynchronizedFileFilter {
+    private static final Logger logger = LoggerFactory.getLogger(SynchronizedFileFilter.class);
+    private static final String ASSET_PREFIX = "asset:";
+    private static final long MIN_EXPECTED_FILES = 100_000;
+    private final Jdbi jdbi;
+    private final CacheConfig cacheConfig;
+    private final CacheInvalidationBus invalidationBus;
+    private final Cache<String, Boolean> absentKeys;
+    // Folders of assets synchronized on other instances since the last rebuild, with the time they were received.
+    private final ConcurrentHashMap<String, Long> syncedElsewhere = new ConcurrentHashMap<>();
+    // Null until the first build, all lookups are let through until then.
+    private volatile BloomFilter<CharSequence> filter;
+    // The filter being built, files synchronized during the build are added to both.
+    private volatile BloomFilter<CharSequence> nextFilter;
+
+    @Inject
+    public SynchronizedFileFilter(Jdbi jdbi, CacheConfig cacheConfig, CacheInvalidationBus invalidationBus) {
+        this.jdbi = jdbi;
+        this.cacheConfig = cacheConfig;
+        this.invalidationBus = invalidationBus;
+        this.absentKeys = Caffeine.newBuilder()
+                .expireAfterWrite(cacheConfig.negativeLookupTtl())
+                .maximumSize(100000)
+                .build();
+        invalidationBus.subscribe(this::onChangedElsewhere);
+    }
+
+    public boolean isKnownAbsentPath(String path) {
+        String assetFolder = assetFolder(path);
+        if (assetFolder != null && syncedElsewhere.containsKey(assetFolder)) {
+            // Neither the filter nor the remembered lookups know the new files of the asset yet.
+            return false;
+        }
+        return isKnownAbsent(path);
+    }
+
+    /**
+     * The lookups of the files of an asset, which find different files, so each remembers its own absent assets.
+     */
+    public enum AssetLookup {
+        FILE("file:"),
+        THUMBNAIL("thumbnail:");
+
+        private final String prefix;
+
+        AssetLookup(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    public boolean isKnownAbsentAsset(String assetGuid, AssetLookup lookup) {
+        // Assets without synchronized files are absent for every lookup.
+        return isKnownAbsent(ASSET_PREFIX + assetGuid, lookup.prefix + assetGuid);
+    }
+
+    /**
+     * Returns the folder of the asset of a path like /institution/collection/assetGuid/file, with a trailing slash.
+     */
+    static String assetFolder(String path) {
+        String[] pathElements = path.split("/", 5);
+        if (pathElements.length < 4 || !pathElements[0].isEmpty() || pathElements[1].isEmpty() || pathElements[2].isEmpty() || pathElements[3].isEmpty()) {
+            return null;
+        }
+        return "/" + pathElements[1] + "/" + pathElements[2] + "/" + pathElements[3] + "/";
+    }
+
+    public void recordAbsentPath(String path) {
+        absentKeys.put(path, Boolean.TRUE);
+    }
+
+    public void recordAbsentAsset(String assetGuid, AssetLookup lookup) {
+        absentKeys.put(lookup.prefix + assetGuid, Boolean.TRUE);
+    }
+
+    private boolean isKnownAbsent(String key) {
+        return isKnownAbsent(key, key);
+    }
+
+    private boolean isKnownAbsent(String filterKey, String absentKey) {
+        BloomFilter<CharSequence> current = filter;
+        if (current != null && !current.mightContain(filterKey)) {
+            return true;
+        }
+        return absentKeys.getIfPresent(absentKey) != null;
+    }
+
+    public void addSynchronized(DasscoFile dasscoFile) {
+        put(dasscoFile.path());
+        putAsset(dasscoFile.assetGuid());
+    }
+
+    /**
+     * Adds the files that were synchronized on this instance, and tells the other instances about their assets.
+     */
+    public void addSynchronized(Collection<DasscoFile> dasscoFiles) {
+        Set<String> assetFolders = new LinkedHashSet<>();
+        for (DasscoFile dasscoFile : dasscoFiles) {
+            addSynchronized(dasscoFile);
+            String assetFolder = assetFolder(dasscoFile.path());
+            if (assetFolder != null) {
+                assetFolders.add(assetFolder);
+            }
+        }
+        invalidationBus.publish(assetFolders);
+    }
+
+    /**
+     * Paths changed by another instance, a path ending with a slash stands for all files of an asset.
+     */
+    private void onChangedElsewhere(List<String> paths) {
+        long received = System.currentTimeMillis();
+        for (String path : paths) {
+            String assetFolder = assetFolder(path);
+            if (assetFolder == null) {
+                continue;
+            }
+            putAsset(assetFolder.split("/")[3]);
+            if (path.endsWith("/")) {
+                syncedElsewhere.put(assetFolder, received);
+            } else {
+                put(path);
+            }
+        }
+    }
+
+    private void putAsset(String assetGuid) {
+        put(ASSET_PREFIX + assetGuid);
+        for (AssetLookup lookup : AssetLookup.values()) {
+            absentKeys.invalidate(lookup.prefix + assetGuid);
+        }
+    }
+
+    private void put(String key) {
+        // Guava's BloomFilter is thread safe, so files can be added while the filter is in use.
+        BloomFilter<CharSequence> current = filter;
+        if (current != null) {
+            current.put(key);
+        }
+        BloomFilter<CharSequence> next = nextFilter;
+        if (next != null) {
+            next.put(key);
+        }
+        absentKeys.invalidate(key);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildOnStartup() {
+        Thread.startVirtualThread(this::rebuild);
+    }
+
+    @Scheduled(cron = "0 5 * * * *") // at min 5
+    public synchronized void rebuild() {
+        try {
+            // The files are streamed inside a transaction, so they are not all loaded into memory at once.
+            long synchronizedFiles = jdbi.inTransaction(h -> {
+                FileRepository fileRepository = h.attach(FileRepository.class);
+                long count = fileRepository.countSynchronizedFiles();
+                rebuild(count, fileRepository::forEachSynchronizedFile);
+                return count;
+            });
+            logger.info("Built filter of {} synchronized files", synchronizedFiles);
+        } catch (Exception e) {
+            logger.error("Failed to build filter of synchronized files", e);
+        }
+    }
+
+    synchronized void rebuild(long count, Consumer<Consumer<DasscoFile>> forEachSynchronizedFile) {
+        long started = System.currentTimeMillis();
+        try {
+            // Room for growth until the next rebuild, each file is added with its path and asset guid.
+            long expectedInsertions = Math.max(MIN_EXPECTED_FILES, count * 4);
+            BloomFilter<CharSequence> next = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedInsertions, cacheConfig.bloomFilterFpp());
+            nextFilter = next;
+            forEachSynchronizedFile.accept(dasscoFile -> {
+                next.put(dasscoFile.path());
+                next.put(ASSET_PREFIX + dasscoFile.assetGuid());
+            });
+            filter = next;
+            // The new filter has the files of the assets synchronized elsewhere before the rebuild started.
+            syncedElsewhere.values().removeIf(received -> received < started);
+        } finally {
+            nextFilter = null;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package dk.northtech.dasscofileproxy.service;
+
+import dk.northtech.dasscofileproxy.domain.UploadJournalEntry;
+import dk.northtech.dasscofileproxy.repository.UploadJournalRepository;
+import jakarta.inject.Inject;
+import org.jdbi.v3.core.Jdbi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers which files are on ERDA with which size and CRC, so synchronising a share only uploads the files that are
+ * missing on ERDA or have changed locally, instead of every file of the asset. Entries are recorded for the files that
+ * are downloaded when a share is checked out, and for each file once its upload has been confirmed by the size on ERDA.
+ * <p>
+ * A file is only skipped if its entry matches the local file and ERDA still has a file of that size. The local file is
+ * only read to compare its CRC when its modification time differs from the one in the entry.
+ * <p>
+ * An upload is recorded as unconfirmed before it starts. If it is interrupted, ERDA has the first part of the same
+ * content, so the next attempt can resume it instead of sending the whole file again.
+ */
+@Service
+public class UploadJournal {
+    private static final Logger logger = LoggerFactory.getLogger(UploadJournal.class);
+    private final Jdbi jdbi;
+
+    enum State {
+        UNCHANGED,
+        // The content is unchanged but the local file has another modification time, or the upload was not confirmed.
+        TOUCHED,
+        // ERDA has the first part of the file from an interrupted upload.
+        RESUMABLE,
+        CHANGED
+    }
+
+    /**
+     * The files to upload, and those of them whose upload can be resumed.
+     */
+    public record UploadPlan(List<File> files, Set<File> resumable) {
+    }
+
+    @Inject
+    public UploadJournal(Jdbi jdbi) {
+        this.jdbi = jdbi;
+    }
+
+    /**
+     * Returns the files that must be uploaded. The remote sizes are those of the files currently below the remote path
+     * of the asset.
+     */
+    public UploadPlan plan(List<File> files, String remotePath, Function<File, String> remotePathOf, Map<String, Long> remoteSizes) {
+        Map<String, UploadJournalEntry> entries = new HashMap<>();
+        for (UploadJournalEntry entry : jdbi.onDemand(UploadJournalRepository.class).getEntries(normalize(remotePath))) {
+            entries.put(entry.remotePath(), entry);
+        }
+        Map<String, Long> normalizedRemoteSizes = new HashMap<>();
+        remoteSizes.forEach((path, size) -> normalizedRemoteSizes.put(normalize(path), size));
+
+        List<File> changed = new ArrayList<>();
+        Set<File> resumable = new HashSet<>();
+        List<UploadJournalEntry> touched = new ArrayList<>();
+        for (File file : files) {
+            String path = normalize(remotePathOf.apply(file));
+            UploadJournalEntry entry = entries.get(path);
+            switch (state(entry, normalizedRemoteSizes.get(path), file)) {
+                case TOUCHED -> touched.add(new UploadJournalEntry(path, entry.sizeBytes(), entry.crc(), file.lastModified()));
+                case RESUMABLE -> {
+                    changed.add(file);
+                    resumable.add(file);
+                }
+                case CHANGED -> changed.add(file);
+                case UNCHANGED -> {
+                }
+            }
+        }
+        record(touched);
+        if (changed.size() < files.size()) {
+            logger.info("{} of {} files below {} are already on ERDA", files.size() - changed.size(), files.size(), remotePath);
+        }
+        return new UploadPlan(changed, resumable);
+    }
+
+    /**
+     * Compares the local file to the entry, a file is only unchanged if ERDA also has a file of its size, and only
+     * resumable if ERDA has a smaller file from an upload of the same content.
+     */
+    static State state(UploadJournalEntry entry, Long remoteSize, File file) {
+        long size = file.length();
+        if (entry == null || remoteSize == null || entry.sizeBytes() != size || remoteSize > size) {
+            return State.CHANGED;
+        }
+        boolean complete = remoteSize == size;
+        boolean partial = !entry.confirmed() && remoteSize > 0 && remoteSize < size;
+        if (!complete && !partial) {
+            return State.CHANGED;
+        }
+        boolean sameModified = entry.localModified() != null && entry.localModified() == file.lastModified();
+        if (!sameModified) {
+            try {
+                if (crc32(file) != entry.crc()) {
+                    return State.CHANGED;
+                }
+            } catch (UncheckedIOException e) {
+                return State.CHANGED;
+            }
+        }
+        if (partial) {
+            return State.RESUMABLE;
+        }
+        return sameModified && entry.confirmed() ? State.UNCHANGED : State.TOUCHED;
+    }
+
+    /**
+     * Records the uploads as started, by remote path, before they are sent. Resumed uploads already have their entry.
+     */
+    public void startUploads(Map<String, File> uploads, Set<File> resumed) {
+        List<UploadJournalEntry> entries = new ArrayList<>();
+        uploads.forEach((remotePath, file) -> {
+            if (resumed.contains(file)) {
+                return;
+            }
+            try {
+                entries.add(new UploadJournalEntry(normalize(remotePath), file.length(), crc32(file), file.lastModified(), false));
+            } catch (UncheckedIOException e) {
+                logger.warn("Failed to read {}, its upload cannot be resumed", file, e);
+            }
+        });
+        record(entries);
+    }
+
+    /**
+     * Marks the uploads as confirmed, once ERDA has reported their size.
+     */
+    public void confirmUploads(Collection<String> remotePaths) {
+        if (!remotePaths.isEmpty()) {
+            jdbi.onDemand(UploadJournalRepository.class).confirm(remotePaths.stream().map(UploadJournal::normalize).toList());
+        }
+    }
+
+    /**
+     * Records files that were downloaded from ERDA, with the CRC they were uploaded with.
+     */
+    public void recordDownloaded(Map<String, File> downloaded, Map<String, Long> crcs) {
+        List<UploadJournalEntry> entries = new ArrayList<>();
+        downloaded.forEach((remotePath, file) -> {
+            Long crc = crcs.get(remotePath);
+            if (crc != null) {
+                entries.add(new UploadJournalEntry(normalize(remotePath), file.length(), crc, file.lastModified()));
+            }
+        });
+        record(entries);
+    }
+
+    public void forget(Collection<String> remotePaths) {
+        if (!remotePaths.isEmpty()) {
+            jdbi.onDemand(UploadJournalRepository.class).delete(remotePaths.stream().map(UploadJournal::normalize).toList());
+        }
+    }
+
+    private void record(List<UploadJournalEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        jdbi.onDemand(UploadJournalRepository.class).record(
+                entries.stream().map(UploadJournalEntry::remotePath).toList(),
+                entries.stream().map(UploadJournalEntry::sizeBytes).toList(),
+                entries.stream().map(UploadJournalEntry::crc).toList(),
+                entries.stream().map(UploadJournalEntry::localModified).toList(),
+                entries.stream().map(UploadJournalEntry::confirmed).toList());
+    }
+
+    // The listing of ERDA and the paths of the uploads may differ in repeated slashes.
+    static String normalize(String remotePath) {
+        return remotePath.replaceAll("/{2,}", "/");
+    }
+
+    static long crc32(File file) {
+        CRC32 crc32 = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc32.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return crc32.getValue();
+    }
+}
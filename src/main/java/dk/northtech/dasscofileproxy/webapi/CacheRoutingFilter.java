@@ -0,0 +1,120 @@
+package dk.northtech.dasscofileproxy.webapi;
+
+import dk.northtech.dasscofileproxy.service.CacheRouter;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.ext.Provider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Sends requests for the files of an asset to the instance that owns the asset, either by redirecting the client or by
+ * forwarding the request and streaming the response back. A routed request is marked, so it is served by the instance
+ * it is sent to even if the instances briefly disagree on the owner. Clients are redirected to the public URL of the
+ * owner, and the request is forwarded instead if the owner has none. If the owner cannot be reached, or fails with a
+ * server error, a forwarded request is served here.
+ */
+@Provider
+@RoutedByAsset
+public class CacheRoutingFilter implements ContainerRequestFilter {
+    private static final Logger logger = LoggerFactory.getLogger(CacheRoutingFilter.class);
+    static final String ROUTED_HEADER = "X-Cache-Routed";
+    static final String ROUTED_PARAM = "routed";
+    private static final List<String> FORWARDED_REQUEST_HEADERS = List.of("Authorization", "Range", "If-Range", "Accept");
+    private static final List<String> FORWARDED_RESPONSE_HEADERS = List.of("Content-Type", "Content-Length", "Content-Range",
+            "Accept-Ranges", "Content-Disposition", "Location", "Cache-Control", "ETag", "Last-Modified");
+    private final CacheRouter cacheRouter;
+    private final HttpClient httpClient;
+
+    @Inject
+    public CacheRoutingFilter(CacheRouter cacheRouter) {
+        this.cacheRouter = cacheRouter;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(cacheRouter.timeout())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        if (requestContext.getHeaderString(ROUTED_HEADER) != null
+                || requestContext.getUriInfo().getQueryParameters().containsKey(ROUTED_PARAM)) {
+            return;
+        }
+        String assetGuid = requestContext.getUriInfo().getPathParameters().getFirst("assetGuid");
+        Optional<CacheRouter.Owner> owner = cacheRouter.ownerOf(assetGuid);
+        if (owner.isEmpty()) {
+            return;
+        }
+        if (cacheRouter.mode() == CacheRouter.Mode.REDIRECT && owner.get().publicUrl() != null) {
+            URI target = targetUri(owner.get().publicUrl(), requestContext);
+            requestContext.abortWith(Response.temporaryRedirect(withRoutedParam(target)).build());
+            return;
+        }
+        try {
+            requestContext.abortWith(forward(targetUri(owner.get().url(), requestContext), requestContext));
+        } catch (IOException e) {
+            logger.warn("Failed to forward {} to {}, serving it here: {}", assetGuid, owner.get().nodeId(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The same request on the owner, i.e. the path below the API root and the query.
+     */
+    static URI targetUri(String ownerUrl, ContainerRequestContext requestContext) {
+        URI requestUri = requestContext.getUriInfo().getRequestUri();
+        String basePath = requestContext.getUriInfo().getBaseUri().getRawPath();
+        String path = requestUri.getRawPath().substring(Math.min(basePath.length(), requestUri.getRawPath().length()));
+        String query = requestUri.getRawQuery();
+        return URI.create(ownerUrl.replaceAll("/+$", "") + "/" + path.replaceAll("^/+", "") + (query != null ? "?" + query : ""));
+    }
+
+    static URI withRoutedParam(URI target) {
+        String uri = target.toString();
+        return URI.create(uri + (target.getRawQuery() != null ? "&" : "?") + ROUTED_PARAM + "=true");
+    }
+
+    private Response forward(URI target, ContainerRequestContext requestContext) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(target)
+                .header(ROUTED_HEADER, "true")
+                // Only bounds the wait for the response headers, the body streams for as long as it takes.
+                .timeout(cacheRouter.timeout())
+                .GET();
+        for (String header : FORWARDED_REQUEST_HEADERS) {
+            String value = requestContext.getHeaderString(header);
+            if (value != null) {
+                request.header(header, value);
+            }
+        }
+        HttpResponse<InputStream> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        InputStream body = response.body();
+        if (response.statusCode() >= 500) {
+            body.close();
+            throw new IOException("The owner answered " + response.statusCode());
+        }
+        Response.ResponseBuilder builder = Response.status(response.statusCode())
+                .entity((StreamingOutput) output -> {
+                    try (InputStream in = body) {
+                        in.transferTo(output);
+                    }
+                });
+        for (String header : FORWARDED_RESPONSE_HEADERS) {
+            response.headers().firstValue(header).ifPresent(value -> builder.header(header, value));
+        }
+        return builder.build();
+    }
+}
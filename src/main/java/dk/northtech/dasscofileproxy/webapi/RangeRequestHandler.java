@@ -4,6 +4,8 @@ import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.StreamingOutput;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.util.Optional;
 
@@ -19,6 +21,15 @@ public class RangeRequestHandler {
     public record RangeInfo(long start, long end, long contentLength) {
     }
 
+    /**
+     * Source of the bytes to serve when they are not (yet) a complete file on disk, e.g. a cache file that is still
+     * being downloaded from ERDA. The returned stream starts at the given offset and may block until bytes are available.
+     */
+    @FunctionalInterface
+    public interface ContentSource {
+        InputStream open(long offset) throws IOException;
+    }
+
     /**
      * Configuration for building a file response.
      */
@@ -32,6 +43,9 @@ public class RangeRequestHandler {
         private Runnable onFinished;
         private boolean includeContentDisposition = true;
         private boolean runOnCompleteForAnyRange = false;
+        private ContentSource contentSource;
+        private long contentSourceLength = -1;
+        private byte[] content;
 
         public FileResponseConfig(File file, String filename, String contentType) {
             this.file = file;
@@ -63,6 +77,24 @@ public class RangeRequestHandler {
             return this;
         }
 
+        /**
+         * Serves the content from the given source instead of reading the file directly. The length must be the final
+         * length of the content, as it is used for the Content-Length and Content-Range headers.
+         */
+        public FileResponseConfig withContentSource(ContentSource contentSource, long length) {
+            this.contentSource = contentSource;
+            this.contentSourceLength = length;
+            return this;
+        }
+
+        /**
+         * Serves the content from memory instead of reading the file.
+         */
+        public FileResponseConfig withContent(byte[] content) {
+            this.content = content;
+            return this;
+        }
+
         public FileResponseConfig withoutContentDisposition() {
             this.includeContentDisposition = false;
             return this;
@@ -108,6 +140,21 @@ public class RangeRequestHandler {
         public boolean runOnCompleteForAnyRange() {
             return runOnCompleteForAnyRange;
         }
+
+        public ContentSource getContentSource() {
+            return contentSource;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public long getLength() {
+            if (content != null) {
+                return content.length;
+            }
+            return contentSource != null ? contentSourceLength : file.length();
+        }
     }
 
     /**
@@ -274,6 +321,75 @@ public class RangeRequestHandler {
         };
     }
 
+    /**
+     * Creates a streaming output for reading a range of a content source.
+     *
+     * @param source        the source to stream from
+     * @param rangeInfo     the range information
+     * @param length        the total content length
+     * @param onComplete    optional callback when streaming completes (only called if range ends at content end)
+     * @return StreamingOutput for the range
+     */
+    public static StreamingOutput createRangeStream(ContentSource source, RangeInfo rangeInfo, long length, Runnable onComplete, boolean runOnCompleteForAnyRange, Runnable onStart, Runnable onFinished) {
+        return output -> {
+            boolean completed = false;
+            boolean started = false;
+            try (InputStream in = source.open(rangeInfo.start())) {
+                if (onStart != null) {
+                    onStart.run();
+                }
+                started = true;
+                byte[] buffer = new byte[8192];
+                long remaining = rangeInfo.contentLength();
+                int bytesRead;
+
+                while (remaining > 0
+                        && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    output.write(buffer, 0, bytesRead);
+                    remaining -= bytesRead;
+                }
+                output.flush();
+                completed = remaining == 0;
+            } finally {
+                if (completed && onComplete != null && (runOnCompleteForAnyRange || rangeInfo.end() == length - 1)) {
+                    onComplete.run();
+                }
+                if (started && onFinished != null) {
+                    onFinished.run();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a streaming output for a range of content in memory. The range is written in a single write.
+     *
+     * @param content       the content to stream
+     * @param rangeInfo     the range information
+     * @param onComplete    optional callback when streaming completes (only called if range ends at content end)
+     * @return StreamingOutput for the range
+     */
+    public static StreamingOutput createContentStream(byte[] content, RangeInfo rangeInfo, Runnable onComplete, boolean runOnCompleteForAnyRange, Runnable onStart, Runnable onFinished) {
+        return output -> {
+            boolean completed = false;
+            if (onStart != null) {
+                onStart.run();
+            }
+            try {
+                output.write(content, (int) rangeInfo.start(), (int) rangeInfo.contentLength());
+                output.flush();
+                completed = true;
+            } finally {
+                if (completed && onComplete != null && (runOnCompleteForAnyRange || rangeInfo.end() == content.length - 1)) {
+                    onComplete.run();
+                }
+                if (onFinished != null) {
+                    onFinished.run();
+                }
+            }
+        };
+    }
+
     /**
      * Builds a complete Response for a file download with optional Range header support.
      * This is the main entry point for handling file downloads with range support.
@@ -283,12 +399,21 @@ public class RangeRequestHandler {
      */
     public static Response buildFileResponse(FileResponseConfig config) {
         File file = config.getFile();
-        long fileLength = file.length();
+        ContentSource contentSource = config.getContentSource();
+        byte[] content = config.getContent();
+        long fileLength = config.getLength();
         String contentDisposition = "attachment; filename=\"" + config.getFilename() + "\"";
 
         // If no Range header, return the entire file
         if (config.getRangeHeader() == null || config.getRangeHeader().isEmpty()) {
-            StreamingOutput streamingOutput = createFullFileStream(file, config.getOnComplete(), config.getOnStart(), config.getOnFinished());
+            StreamingOutput streamingOutput;
+            if (content != null) {
+                streamingOutput = createContentStream(content, new RangeInfo(0, fileLength - 1, fileLength), config.getOnComplete(), false, config.getOnStart(), config.getOnFinished());
+            } else if (contentSource == null) {
+                streamingOutput = createFullFileStream(file, config.getOnComplete(), config.getOnStart(), config.getOnFinished());
+            } else {
+                streamingOutput = createRangeStream(contentSource, new RangeInfo(0, fileLength - 1, fileLength), fileLength, config.getOnComplete(), false, config.getOnStart(), config.getOnFinished());
+            }
 
             Response.ResponseBuilder responseBuilder = Response.ok(streamingOutput)
                     .header("Content-Type", config.getContentType())
@@ -307,7 +432,14 @@ public class RangeRequestHandler {
         }
 
         RangeInfo rangeInfo = rangeInfoOpt.get();
-        StreamingOutput streamingOutput = createRangeStream(file, rangeInfo, fileLength, config.getOnComplete(), config.runOnCompleteForAnyRange(), config.getOnStart(), config.getOnFinished());
+        StreamingOutput streamingOutput;
+        if (content != null) {
+            streamingOutput = createContentStream(content, rangeInfo, config.getOnComplete(), config.runOnCompleteForAnyRange(), config.getOnStart(), config.getOnFinished());
+        } else if (contentSource == null) {
+            streamingOutput = createRangeStream(file, rangeInfo, fileLength, config.getOnComplete(), config.runOnCompleteForAnyRange(), config.getOnStart(), config.getOnFinished());
+        } else {
+            streamingOutput = createRangeStream(contentSource, rangeInfo, fileLength, config.getOnComplete(), config.runOnCompleteForAnyRange(), config.getOnStart(), config.getOnFinished());
+        }
 
         Response.ResponseBuilder responseBuilder = Response.status(206)
                 .entity(streamingOutput)
@@ -0,0 +1,18 @@
+package dk.northtech.dasscofileproxy.webapi;
+
+import jakarta.ws.rs.NameBinding;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks endpoints that serve cached files of the asset in the assetGuid path parameter. Requests to them are sent to
+ * the instance that owns the asset, see {@link CacheRoutingFilter}.
+ */
+@NameBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface RoutedByAsset {
+}
@@ -35,6 +35,7 @@ public class UserMapper {
         user.keycloakId = String.valueOf(tokenAttributes.get("sub"));
         user.username = String.valueOf(tokenAttributes.get("preferred_username"));
         user.token = token.getToken().getTokenValue();
+        user.tokenExpiresAt = token.getToken().getExpiresAt();
         return user;
     }
 }
@@ -0,0 +1,76 @@
+package dk.northtech.dasscofileproxy.webapi.v1;
+
+import dk.northtech.dasscofileproxy.domain.CachePinRequest;
+import dk.northtech.dasscofileproxy.domain.CachePinStatus;
+import dk.northtech.dasscofileproxy.domain.SecurityRoles;
+import dk.northtech.dasscofileproxy.service.CacheFileService;
+import dk.northtech.dasscofileproxy.webapi.exceptionmappers.DaSSCoError;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.annotation.security.RolesAllowed;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+
+import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
+
+@Path("/cache/pins")
+@Tag(name = "Cache pins", description = "Endpoints for keeping files in the cache")
+@SecurityRequirement(name = "dassco-idp")
+public class CachePins {
+    private final CacheFileService cacheFileService;
+
+    @Inject
+    public CachePins(CacheFileService cacheFileService) {
+        this.cacheFileService = cacheFileService;
+    }
+
+    @GET
+    @Operation(summary = "Get Pinned Files", description = "Returns the number and size of the files that are pinned in the cache.")
+    @Produces(MediaType.APPLICATION_JSON)
+    @RolesAllowed({SecurityRoles.ADMIN, SecurityRoles.DEVELOPER})
+    @ApiResponse(responseCode = "200", content = @Content(mediaType = APPLICATION_JSON, schema = @Schema(implementation = CachePinStatus.class)))
+    @ApiResponse(responseCode = "400-599", content = @Content(mediaType = APPLICATION_JSON, schema = @Schema(implementation = DaSSCoError.class)))
+    public CachePinStatus getPinStatus() {
+        return cacheFileService.getPinStatus();
+    }
+
+    @POST
+    @Operation(summary = "Pin Files", description = "Pins the files of a list of assets, or of a whole collection, in the cache so they are not evicted. Files that are not cached yet are fetched from ERDA in the background. Fails if the files do not fit in the disk space reserved for pinned files.")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    @RolesAllowed({SecurityRoles.ADMIN, SecurityRoles.DEVELOPER})
+    @ApiResponse(responseCode = "200", content = @Content(mediaType = APPLICATION_JSON, schema = @Schema(implementation = CachePinStatus.class)))
+    @ApiResponse(responseCode = "400-599", content = @Content(mediaType = APPLICATION_JSON, schema = @Schema(implementation = DaSSCoError.class)))
+    public CachePinStatus pin(CachePinRequest cachePinRequest) {
+        validate(cachePinRequest);
+        return cacheFileService.pin(cachePinRequest);
+    }
+
+    @DELETE
+    @Operation(summary = "Unpin Files", description = "Unpins the files of a list of assets, or of a whole collection. The files stay in the cache until they are evicted.")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    @RolesAllowed({SecurityRoles.ADMIN, SecurityRoles.DEVELOPER})
+    @ApiResponse(responseCode = "200", content = @Content(mediaType = APPLICATION_JSON, schema = @Schema(implementation = CachePinStatus.class)))
+    @ApiResponse(responseCode = "400-599", content = @Content(mediaType = APPLICATION_JSON, schema = @Schema(implementation = DaSSCoError.class)))
+    public CachePinStatus unpin(CachePinRequest cachePinRequest) {
+        validate(cachePinRequest);
+        return cacheFileService.unpin(cachePinRequest);
+    }
+
+    private static void validate(CachePinRequest cachePinRequest) {
+        if (cachePinRequest == null) {
+            throw new IllegalArgumentException("Request body is missing");
+        }
+        boolean hasAssets = cachePinRequest.asset_guids() != null && !cachePinRequest.asset_guids().isEmpty();
+        boolean hasCollection = cachePinRequest.institution() != null && cachePinRequest.collection() != null;
+        if (!hasAssets && !hasCollection) {
+            throw new IllegalArgumentException("Either asset_guids or institution and collection must be given");
+        }
+    }
+}
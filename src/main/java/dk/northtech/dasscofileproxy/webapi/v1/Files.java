@@ -7,6 +7,7 @@ import dk.northtech.dasscofileproxy.domain.exceptions.DasscoUnauthorizedExceptio
 import dk.northtech.dasscofileproxy.service.CacheFileService;
 import dk.northtech.dasscofileproxy.service.FileService;
 import dk.northtech.dasscofileproxy.webapi.RangeRequestHandler;
+import dk.northtech.dasscofileproxy.webapi.RoutedByAsset;
 import dk.northtech.dasscofileproxy.webapi.UserMapper;
 import dk.northtech.dasscofileproxy.webapi.exceptionmappers.DaSSCoErrorResponse;
 import dk.northtech.dasscofileproxy.webapi.model.FileUploadData;
@@ -50,6 +51,18 @@ public class Files {
     @Context
     UriInfo uriInfo;
 
+    // Files that are not completely cached yet are streamed from the running download or the partially cached blocks,
+    // small files are served from memory.
+    private RangeRequestHandler.FileResponseConfig responseConfig(CacheFileService.CachedFileInfo fileInfo, String contentType) {
+        RangeRequestHandler.FileResponseConfig config = new RangeRequestHandler.FileResponseConfig(fileInfo.file(), fileInfo.filename(), contentType);
+        if (fileInfo.content() != null) {
+            config.withContent(fileInfo.content());
+        } else if (fileInfo.source() != null) {
+            config.withContentSource(fileInfo.source(), fileInfo.length());
+        }
+        return config;
+    }
+
     @Inject
     public Files(CacheFileService cacheFileService, FileService fileService,
                  AssetServiceProperties assetServiceProperties) {
@@ -64,6 +77,7 @@ public class Files {
             Supports HTTP Range header for resumable downloads when using cache (no-cache=false).
             """)
     @Path("/assets/{institution}/{collection}/{assetGuid}/{path: .+}")
+    @RoutedByAsset
     public Response getFile(
             @PathParam("institution") String institution, @PathParam("collection") String collection,
             @PathParam("assetGuid") String guid, @Context SecurityContext securityContext,
@@ -77,7 +91,7 @@ public class Files {
             if (!noCache) {
                 // Use getCachedFile to get File object for range request support
                 Optional<CacheFileService.CachedFileInfo> cachedFileInfo = cacheFileService.getCachedFile(
-                        institution, collection, guid, path, user);
+                        institution, collection, guid, path, user, rangeHeader);
                 logger.info("got file");
 
                 if (cachedFileInfo.isEmpty()) {
@@ -88,7 +102,7 @@ public class Files {
                 String contentType = new Tika().detect(fileInfo.filename());
 
                 return RangeRequestHandler.buildFileResponse(
-                        new RangeRequestHandler.FileResponseConfig(fileInfo.file(), fileInfo.filename(), contentType)
+                        responseConfig(fileInfo, contentType)
                                 .withRangeHeader(rangeHeader));
             } else {
                 return cacheFileService.streamFile(institution, collection, guid, path, user, false);
@@ -107,6 +121,7 @@ public class Files {
             This endpoint can be called without a token and is designed to be used with HTML anchor tags with download attribute.
             """)
     @Path("/assets/download/{institution}/{collection}/{assetGuid}")
+    @RoutedByAsset
     public Response downloadLargeFile(
             @PathParam("institution") String institution,
             @PathParam("collection") String collection,
@@ -117,7 +132,7 @@ public class Files {
         logger.info("Downloading large file from collection {}, path: {}, range: {}", collection, path, rangeHeader);
 
         try {
-            Optional<CacheFileService.CachedFileInfo> cachedFileInfo = cacheFileService.getCachedFileWithoutUser(path);
+            Optional<CacheFileService.CachedFileInfo> cachedFileInfo = cacheFileService.getCachedFileWithoutUser(path, rangeHeader);
 
             if (cachedFileInfo.isEmpty()) {
                 return notFound("Download file not found for institution: %s, collection: %s, assetGuid: %s, ticket: %s, path: %s".formatted(institution, collection, assetGuid, ticket, path));
@@ -127,7 +142,7 @@ public class Files {
             String contentType = new Tika().detect(fileInfo.filename());
 
             return RangeRequestHandler.buildFileResponse(
-                    new RangeRequestHandler.FileResponseConfig(fileInfo.file(), fileInfo.filename(), contentType)
+                    responseConfig(fileInfo, contentType)
                             .withRangeHeader(rangeHeader)
                             .onComplete(() -> this.cacheFileService.invalidateTicket(ticket)));
 
@@ -143,6 +158,7 @@ public class Files {
             Supports HTTP Range header for resumable downloads when using cache (no-cache=false).
             """)
     @Path("/assets/{institutionName}/{collectionName}/{assetGuid}/thumbnail")
+    @RoutedByAsset
     public Response getFileFromGuid(@PathParam("institutionName") String institutionName,
                                     @PathParam("collectionName") String collectionName, @PathParam("assetGuid") String assetGuid,
                                     @Context SecurityContext securityContext, @QueryParam("no-cache") @DefaultValue("false") boolean noCache,
@@ -161,7 +177,7 @@ public class Files {
 
                 if (!noCache) {
                     Optional<CacheFileService.CachedFileInfo> cachedFileInfo = cacheFileService.getCachedFile(
-                            institutionName, collectionName, assetGuid, fileName, user);
+                            institutionName, collectionName, assetGuid, fileName, user, rangeHeader);
 
                     if (cachedFileInfo.isEmpty()) {
                         return notFound("Thumbnail not found for institution: %s, collection: %s, assetGuid: %s".formatted(institutionName, collectionName, assetGuid));
@@ -171,7 +187,7 @@ public class Files {
                     String contentType = new Tika().detect(fileInfo.filename());
 
                     return RangeRequestHandler.buildFileResponse(
-                            new RangeRequestHandler.FileResponseConfig(fileInfo.file(), fileInfo.filename(), contentType)
+                            responseConfig(fileInfo, contentType)
                                     .withRangeHeader(rangeHeader));
                 } else {
                     return cacheFileService.streamFile(institutionName, collectionName, assetGuid, fileName, user,
@@ -203,7 +219,7 @@ public class Files {
             try {
                 String fileName = List.of(path.split("/")).getLast();
                 Optional<CacheFileService.CachedFileInfo> cachedFileInfo = cacheFileService.getCachedFile(
-                        institutionName, collectionName, assetGuid, fileName, user);
+                        institutionName, collectionName, assetGuid, fileName, user, rangeHeader);
 
                 if (cachedFileInfo.isEmpty()) {
                     return notFound("External file not found for institution: %s, collection: %s, assetGuid: %s".formatted(institutionName, collectionName, assetGuid));
@@ -213,7 +229,7 @@ public class Files {
                 String contentType = new Tika().detect(fileInfo.filename());
 
                 return RangeRequestHandler.buildFileResponse(
-                        new RangeRequestHandler.FileResponseConfig(fileInfo.file(), fileInfo.filename(), contentType)
+                        responseConfig(fileInfo, contentType)
                                 .withRangeHeader(rangeHeader));
             } catch (Exception e) {
                 logger.error(e.toString());
@@ -381,6 +397,7 @@ public class Files {
                     Ticket lasts for 1 day or until download is finished.
                     """)
     @Path("/assets/{assetGuid}/ticket")
+    @RoutedByAsset
     public String GetFileTicket(@PathParam("assetGuid") String assetGuid, @Context SecurityContext securityContext) {
         logger.info("Getting ticket for asset: {}", assetGuid);
         User user = securityContext.getUserPrincipal() == null ? new User("anonymous")
@@ -0,0 +1,49 @@
+package dk.northtech.dasscofileproxy.webapi.v1;
+
+import dk.northtech.dasscofileproxy.service.CacheFileService;
+import dk.northtech.dasscofileproxy.service.PeerCacheClient;
+import dk.northtech.dasscofileproxy.webapi.RangeRequestHandler;
+import io.swagger.v3.oas.annotations.Hidden;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import java.io.File;
+import java.util.Optional;
+
+/**
+ * Serves the cached files of this instance to the other instances, see {@link PeerCacheClient}. Only files that are
+ * completely cached are served, a miss is a 404 and never makes this instance fetch the file from ERDA.
+ */
+@Hidden
+@Path("/internal/cache")
+public class InternalCache {
+    private final CacheFileService cacheFileService;
+    private final PeerCacheClient peerCacheClient;
+
+    @Inject
+    public InternalCache(CacheFileService cacheFileService, PeerCacheClient peerCacheClient) {
+        this.cacheFileService = cacheFileService;
+        this.peerCacheClient = peerCacheClient;
+    }
+
+    @GET
+    @Path("/files/{path: .+}")
+    @Produces(MediaType.APPLICATION_OCTET_STREAM)
+    public Response getCachedFile(@PathParam("path") String path
+            , @HeaderParam(PeerCacheClient.SECRET_HEADER) String secret
+            , @HeaderParam("Range") String rangeHeader) {
+        if (!peerCacheClient.isAuthorized(secret)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        Optional<File> cachedFile = cacheFileService.getLocallyCachedFile("/" + path);
+        if (cachedFile.isEmpty()) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return RangeRequestHandler.buildFileResponse(
+                new RangeRequestHandler.FileResponseConfig(cachedFile.get(), cachedFile.get().getName(), MediaType.APPLICATION_OCTET_STREAM)
+                        .withRangeHeader(rangeHeader)
+                        .withoutContentDisposition());
+    }
+}
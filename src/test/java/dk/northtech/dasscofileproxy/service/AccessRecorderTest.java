@@ -0,0 +1,95 @@
+package dk.northtech.dasscofileproxy.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class AccessRecorderTest {
+
+    @Test
+    void repeatedReadsAreFlushedOnce() {
+        AccessRecorder recorder = new AccessRecorder(1);
+        for (int i = 0; i < 10; i++) {
+            recorder.record(7);
+        }
+        recorder.record(8);
+
+        List<List<Long>> batches = new ArrayList<>();
+        int flushed = recorder.flush(1000, batches::add);
+
+        assertThat(flushed).isEqualTo(2);
+        assertThat(batches).hasSize(1);
+        assertThat(batches.getFirst()).containsExactly(7L, 8L);
+        assertThat(recorder.coalescedCount()).isEqualTo(9);
+        assertThat(recorder.isEmpty()).isTrue();
+    }
+
+    @Test
+    void flushesInBoundedBatches() {
+        AccessRecorder recorder = new AccessRecorder(1);
+        for (long id = 0; id < 2500; id++) {
+            recorder.record(id);
+        }
+
+        List<Integer> batchSizes = new ArrayList<>();
+        Set<Long> flushedIds = new HashSet<>();
+        recorder.flush(1000, batch -> {
+            batchSizes.add(batch.size());
+            flushedIds.addAll(batch);
+        });
+
+        assertThat(batchSizes).containsExactly(1000, 1000, 500);
+        assertThat(flushedIds).hasSize(2500);
+        assertThat(recorder.droppedCount()).isEqualTo(0);
+    }
+
+    @Test
+    void everyReadIsEitherFlushedCoalescedOrDroppedUnderConcurrency() throws Exception {
+        AccessRecorder recorder = new AccessRecorder(4);
+        int threads = 8;
+        int readsPerThread = 20_000;
+        Set<Long> flushedIds = new HashSet<>();
+        long flushed = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                readers.add(executor.submit(() -> {
+                    for (int i = 0; i < readsPerThread; i++) {
+                        recorder.record(i % 500);
+                    }
+                }));
+            }
+            // Flush while the readers are running
+            while (readers.stream().anyMatch(f -> !f.isDone())) {
+                flushed += recorder.flush(100, batch -> {
+                    synchronized (flushedIds) {
+                        flushedIds.addAll(batch);
+                    }
+                });
+            }
+            for (Future<?> reader : readers) {
+                reader.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        List<Long> lastFlush = new ArrayList<>();
+        flushed += recorder.flush(100, lastFlush::addAll);
+        flushedIds.addAll(lastFlush);
+
+        assertThat(recorder.recordedCount()).isEqualTo((long) threads * readsPerThread);
+        assertThat(flushed + recorder.coalescedCount() + recorder.droppedCount()).isEqualTo(recorder.recordedCount());
+        assertThat(flushedIds).hasSize(500);
+        assertThat(recorder.isEmpty()).isTrue();
+    }
+}
@@ -80,7 +80,7 @@ class ActiveLargeUploadLifecycleTest {
     @Test
     void activeUploadBlocksSynchronization() {
         Jdbi jdbi = localJdbi();
-        FileService fileService = new FileService(null, jdbi, null, null, null);
+        FileService fileService = new FileService(null, jdbi, null, null, null, null, null);
         long directoryId = createDirectory(jdbi, "activeUploadBlocksSynchronization");
 
         fileService.registerActiveLargeUpload("upload-1", "activeUploadBlocksSynchronization", "/file.tif");
@@ -95,7 +95,7 @@ class ActiveLargeUploadLifecycleTest {
     @Test
     void synchronizingDirectoryBlocksActiveUploadRegistration() {
         Jdbi jdbi = localJdbi();
-        FileService fileService = new FileService(null, jdbi, null, null, null);
+        FileService fileService = new FileService(null, jdbi, null, null, null, null, null);
         long directoryId = createDirectory(jdbi, "synchronizingDirectoryBlocksActiveUploadRegistration");
         jdbi.useHandle(handle -> handle.attach(DirectoryRepository.class)
                 .scheduleDiretoryForSynchronization(directoryId,
@@ -111,7 +111,7 @@ class ActiveLargeUploadLifecycleTest {
     @Test
     void completedUploadNoLongerBlocksSynchronization() {
         Jdbi jdbi = localJdbi();
-        FileService fileService = new FileService(null, jdbi, null, null, null);
+        FileService fileService = new FileService(null, jdbi, null, null, null, null, null);
         long directoryId = createDirectory(jdbi, "completedUploadNoLongerBlocksSynchronization");
 
         fileService.registerActiveLargeUpload("upload-3", "completedUploadNoLongerBlocksSynchronization", "/file.tif");
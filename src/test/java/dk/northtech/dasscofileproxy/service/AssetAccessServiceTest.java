@@ -0,0 +1,149 @@
+package dk.northtech.dasscofileproxy.service;
+
+import dk.northtech.dasscofileproxy.assets.AssetServiceProperties;
+import dk.northtech.dasscofileproxy.configuration.CacheConfig;
+import dk.northtech.dasscofileproxy.domain.User;
+import dk.northtech.dasscofileproxy.domain.exceptions.DasscoNotFoundException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AssetAccessServiceTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void decisionsAreCachedPerUserAndAsset() {
+        CountingAccessService service = new CountingAccessService(AssetAccessService.AccessDecision.ALLOWED);
+        User user = user("alice", Instant.parse("2026-01-01T00:00:00Z"));
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(service.canRead(user, "asset-1")).isTrue();
+        }
+        service.canRead(user, "asset-2");
+
+        assertThat(service.requests.get()).isEqualTo(2);
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "asset_read_access").tag("result", "hit").functionCounter().count()).isEqualTo(99);
+    }
+
+    @Test
+    void denialsAreCached() {
+        CountingAccessService service = new CountingAccessService(AssetAccessService.AccessDecision.DENIED);
+        User user = user("bob", Instant.parse("2026-01-01T00:00:00Z"));
+
+        assertThat(service.canRead(user, "asset-1")).isFalse();
+        assertThat(service.canRead(user, "asset-1")).isFalse();
+
+        assertThat(service.requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    void aNewTokenGetsANewDecision() {
+        CountingAccessService service = new CountingAccessService(AssetAccessService.AccessDecision.ALLOWED);
+
+        service.canRead(user("alice", Instant.parse("2026-01-01T00:00:00Z")), "asset-1");
+        service.canRead(user("alice", Instant.parse("2026-01-01T00:05:00Z")), "asset-1");
+
+        assertThat(service.requests.get()).isEqualTo(2);
+    }
+
+    @Test
+    void tokensWithoutSubjectDoNotShareDecisions() {
+        CountingAccessService service = new CountingAccessService(AssetAccessService.AccessDecision.ALLOWED);
+        User first = user("null", Instant.parse("2026-01-01T00:00:00Z"));
+        first.token = "first-token";
+        User second = user("null", Instant.parse("2026-01-01T00:00:00Z"));
+        second.token = "second-token";
+
+        service.canRead(first, "asset-1");
+        service.canRead(second, "asset-1");
+        service.canRead(first, "asset-1");
+
+        assertThat(service.requests.get()).isEqualTo(2);
+    }
+
+    @Test
+    void missingAssetThrowsNotFound() {
+        CountingAccessService service = new CountingAccessService(AssetAccessService.AccessDecision.ASSET_NOT_FOUND);
+
+        assertThrows(DasscoNotFoundException.class, () -> service.canRead(user("alice", null), "missing"));
+    }
+
+    @Test
+    void errorsAreNotCached() {
+        CountingAccessService service = new CountingAccessService(null);
+        User user = user("alice", null);
+
+        assertThrows(RuntimeException.class, () -> service.canRead(user, "asset-1"));
+        assertThrows(RuntimeException.class, () -> service.canRead(user, "asset-1"));
+
+        assertThat(service.requests.get()).isEqualTo(2);
+    }
+
+    @Test
+    void concurrentLookupsShareOneRequest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountingAccessService service = new CountingAccessService(AssetAccessService.AccessDecision.ALLOWED) {
+            @Override
+            AccessDecision requestReadAccess(String token, String assetGuid) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.requestReadAccess(token, assetGuid);
+            }
+        };
+        User user = user("alice", null);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> lookups = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                lookups.add(executor.submit(() -> service.canRead(user, "asset-1")));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<Boolean> lookup : lookups) {
+                assertThat(lookup.get(10, TimeUnit.SECONDS)).isTrue();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(service.requests.get()).isEqualTo(1);
+    }
+
+    private static User user(String subject, Instant expiresAt) {
+        User user = new User(subject);
+        user.keycloakId = subject;
+        user.token = "token-" + subject + "-" + expiresAt;
+        user.tokenExpiresAt = expiresAt;
+        return user;
+    }
+
+    private class CountingAccessService extends AssetAccessService {
+        final AtomicInteger requests = new AtomicInteger();
+        private final AccessDecision decision;
+
+        CountingAccessService(AccessDecision decision) {
+            super(new AssetServiceProperties("http://localhost"), new CacheConfig(5, Duration.ofSeconds(2), Duration.ofMinutes(1), 0.01, Duration.ofMinutes(1)), meterRegistry);
+            this.decision = decision;
+        }
+
+        @Override
+        AccessDecision requestReadAccess(String token, String assetGuid) {
+            requests.incrementAndGet();
+            if (decision == null) {
+                throw new RuntimeException("Error occurred when querying user access to asset, response code: 500");
+            }
+            return decision;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package dk.northtech.dasscofileproxy.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class BlobStoreTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void filesWithTheSameContentShareOneBlob() throws Exception {
+        RecordingBlobStore blobStore = new RecordingBlobStore(tempDir.resolve("blobs"));
+        Path cached = write("cache/i/c/parent/image.tif", "same content");
+        Path otherCached = write("cache/i/c/other/image.tif", "same content");
+
+        assertThat(blobStore.deduplicate(cached)).isFalse();
+        assertThat(blobStore.deduplicate(otherCached)).isTrue();
+
+        String sha256 = BlobStore.sha256(cached);
+        assertThat(Files.isSameFile(cached, otherCached)).isTrue();
+        assertThat(Files.isSameFile(cached, blobStore.blobPath(sha256))).isTrue();
+        assertThat(Files.readString(otherCached)).isEqualTo("same content");
+        assertThat(blobStore.references).containsExactly(sha256, 2);
+        // Writing to one link would change the others
+        assertThat(BlobStore.isReadOnly(cached)).isTrue();
+    }
+
+    @Test
+    void filesWithOtherContentAreNotLinked() throws Exception {
+        RecordingBlobStore blobStore = new RecordingBlobStore(tempDir.resolve("blobs"));
+        Path first = write("cache/first.tif", "first");
+        Path second = write("cache/second.tif", "second");
+
+        blobStore.deduplicate(first);
+        blobStore.deduplicate(second);
+
+        assertThat(Files.isSameFile(first, second)).isFalse();
+        // Unique content gets no blob, which would keep the bytes on disk after the file is evicted
+        assertThat(blobStore.references).isEmpty();
+        assertThat(Files.exists(blobStore.blobPath(BlobStore.sha256(first)))).isFalse();
+        assertThat(Files.exists(blobStore.blobPath(BlobStore.sha256(second)))).isFalse();
+    }
+
+    @Test
+    void replacedFileIsNotLinkedToTheContentItHadBefore() throws Exception {
+        RecordingBlobStore blobStore = new RecordingBlobStore(tempDir.resolve("blobs"));
+        Path first = write("cache/first.tif", "same content");
+        String sha256 = BlobStore.sha256(first);
+        blobStore.deduplicate(first);
+        Files.writeString(first, "new content");
+        Path second = write("cache/second.tif", "same content");
+
+        assertThat(blobStore.deduplicate(second)).isFalse();
+
+        assertThat(Files.readString(first)).isEqualTo("new content");
+        assertThat(Files.exists(blobStore.blobPath(sha256))).isFalse();
+    }
+
+    @Test
+    void blobIsRemovedWithItsLastLink() throws Exception {
+        RecordingBlobStore blobStore = new RecordingBlobStore(tempDir.resolve("blobs"));
+        Path cached = write("cache/cached.tif", "same content");
+        Path otherCached = write("cache/other.tif", "same content");
+        String sha256 = BlobStore.sha256(cached);
+        blobStore.deduplicate(cached);
+        blobStore.deduplicate(otherCached);
+
+        Files.delete(cached);
+        blobStore.unlinked(cached);
+
+        assertThat(Files.exists(blobStore.blobPath(sha256))).isTrue();
+        assertThat(blobStore.deleted).isEmpty();
+
+        Files.delete(otherCached);
+        blobStore.unlinked(otherCached);
+
+        assertThat(Files.exists(blobStore.blobPath(sha256))).isFalse();
+        assertThat(blobStore.deleted).containsExactly(sha256);
+    }
+
+    @Test
+    void unlinkedBlobsAreCollected() throws Exception {
+        RecordingBlobStore blobStore = new RecordingBlobStore(tempDir.resolve("blobs"));
+        Path kept = write("cache/kept.tif", "kept");
+        Path otherKept = write("cache/other-kept.tif", "kept");
+        Path deleted = write("cache/deleted.tif", "deleted");
+        Path otherDeleted = write("cache/other-deleted.tif", "deleted");
+        for (Path file : List.of(kept, otherKept, deleted, otherDeleted)) {
+            blobStore.deduplicate(file);
+        }
+        String deletedSha256 = BlobStore.sha256(deleted);
+        // Deleted without telling the store, e.g. by a previous run
+        Files.delete(deleted);
+        Files.delete(otherDeleted);
+
+        blobStore.collectGarbage();
+
+        assertThat(Files.exists(blobStore.blobPath(deletedSha256))).isFalse();
+        assertThat(blobStore.unreferenced).containsExactly(deletedSha256);
+        assertThat(blobStore.references).containsEntry(BlobStore.sha256(kept), 2);
+    }
+
+    @Test
+    void filesAreCopiedIntoSharesRatherThanLinked() throws Exception {
+        RecordingBlobStore blobStore = new RecordingBlobStore(tempDir.resolve("blobs"));
+        Path cached = write("cache/i/c/parent/image.tif", "parent");
+        blobStore.deduplicate(cached);
+        blobStore.deduplicate(write("cache/i/c/other/image.tif", "parent"));
+        Path parentCopy = tempDir.resolve("share/child/parents/parent/image.tif");
+
+        blobStore.copy(cached, parentCopy);
+
+        assertThat(Files.isSameFile(cached, parentCopy)).isFalse();
+        assertThat(BlobStore.isReadOnly(parentCopy)).isFalse();
+        Files.writeString(parentCopy, "edited");
+        assertThat(Files.readString(blobStore.blobPath(BlobStore.sha256(cached)))).isEqualTo("parent");
+    }
+
+    private Path write(String path, String content) throws Exception {
+        Path file = tempDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        return Files.writeString(file, content);
+    }
+
+    static class RecordingBlobStore extends BlobStore {
+        final Map<String, Integer> references = new HashMap<>();
+        final List<String> unreferenced = new ArrayList<>();
+        final List<String> deleted = new ArrayList<>();
+
+        RecordingBlobStore(Path root) {
+            super(root, null);
+        }
+
+        @Override
+        void addReference(String sha256, long size) {
+            references.merge(sha256, 1, Integer::sum);
+        }
+
+        @Override
+        void deleteBlob(String sha256) {
+            deleted.add(sha256);
+            references.remove(sha256);
+        }
+
+        @Override
+        void updateReferenceCounts(List<String> unreferenced, List<String> referenced, List<Long> sizes, List<Integer> refCounts) {
+            this.unreferenced.addAll(unreferenced);
+            unreferenced.forEach(references::remove);
+            for (int i = 0; i < referenced.size(); i++) {
+                references.put(referenced.get(i), refCounts.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package dk.northtech.dasscofileproxy.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class CacheAdmissionTest {
+    private static final long THRESHOLD = 1000;
+
+    @Test
+    void smallFilesAreAlwaysAdmitted() {
+        CacheAdmission admission = new CacheAdmission(THRESHOLD, 2, 1024, null);
+
+        assertThat(admission.admit("/i/c/g/thumbnail.jpg", THRESHOLD, true)).isTrue();
+    }
+
+    @Test
+    void largeFilesAreAdmittedOnRepeatedRequests() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CacheAdmission admission = new CacheAdmission(THRESHOLD, 2, 1024, meterRegistry);
+
+        assertThat(admission.admit("/i/c/g/scan.tif", THRESHOLD + 1, true)).isFalse();
+        assertThat(admission.admit("/i/c/other/scan.tif", THRESHOLD + 1, true)).isFalse();
+        assertThat(admission.admit("/i/c/g/scan.tif", THRESHOLD + 1, true)).isTrue();
+
+        assertThat(meterRegistry.get("cache.admission").tag("result", "admitted").counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("cache.admission").tag("result", "rejected").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void continuedDownloadsAreNotCountedAsNewRequests() {
+        CacheAdmission admission = new CacheAdmission(THRESHOLD, 2, 1024, null);
+
+        assertThat(admission.admit("/i/c/g/scan.tif", THRESHOLD + 1, true)).isFalse();
+        for (int i = 0; i < 10; i++) {
+            assertThat(admission.admit("/i/c/g/scan.tif", THRESHOLD + 1, false)).isFalse();
+        }
+        assertThat(admission.frequency("/i/c/g/scan.tif")).isEqualTo(1);
+    }
+
+    @Test
+    void countsAreHalvedOverTime() {
+        int width = 4;
+        CacheAdmission admission = new CacheAdmission(THRESHOLD, 2, width, null);
+        for (int i = 0; i < 10 * width - 1; i++) {
+            admission.admit("/i/c/g/scan.tif", THRESHOLD + 1, true);
+        }
+        assertThat(admission.frequency("/i/c/g/scan.tif")).isEqualTo(10 * width - 1);
+
+        // The request that fills the sample halves all counts
+        admission.admit("/i/c/g/scan.tif", THRESHOLD + 1, true);
+
+        assertThat(admission.frequency("/i/c/g/scan.tif")).isEqualTo(5 * width);
+    }
+}
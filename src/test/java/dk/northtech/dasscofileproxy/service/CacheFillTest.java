@@ -0,0 +1,290 @@
+package dk.northtech.dasscofileproxy.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CacheFillTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readersStreamWhileTheFillIsRunning() throws Exception {
+        byte[] content = randomBytes(300_000);
+        Path target = tempDir.resolve("inst/coll/guid/file.tif");
+        CacheFill fill = new CacheFill(target, content.length);
+        PipedOutputStream erda = new PipedOutputStream();
+        PipedInputStream source = new PipedInputStream(erda, 64 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            executor.execute(() -> fill.fill(source));
+            // Only the first part of the file has been sent when the readers start
+            erda.write(content, 0, 1000);
+            erda.flush();
+            fill.awaitStarted();
+            assertThat(fill.isDone()).isFalse();
+
+            Future<byte[]> fullRead = executor.submit(() -> readAll(fill.openStream(0)));
+            Future<byte[]> offsetRead = executor.submit(() -> readAll(fill.openStream(500)));
+            erda.write(content, 1000, content.length - 1000);
+            erda.close();
+
+            assertThat(fullRead.get(10, TimeUnit.SECONDS)).isEqualTo(content);
+            byte[] expectedTail = new byte[content.length - 500];
+            System.arraycopy(content, 500, expectedTail, 0, expectedTail.length);
+            assertThat(offsetRead.get(10, TimeUnit.SECONDS)).isEqualTo(expectedTail);
+
+            fill.awaitCompletion();
+            assertThat(Files.readAllBytes(target)).isEqualTo(content);
+            try (var files = Files.list(target.getParent())) {
+                assertThat(files.count()).isEqualTo(1);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void readersFailWhenTheDownloadIsTruncated() throws Exception {
+        byte[] content = randomBytes(10_000);
+        Path target = tempDir.resolve("truncated.bin");
+        CacheFill fill = new CacheFill(target, content.length + 1);
+        fill.fill(new ByteArrayInputStream(content));
+
+        assertThrows(IOException.class, fill::awaitCompletion);
+        assertThat(Files.exists(target)).isFalse();
+        // The bytes that did arrive are kept for a later resume
+        assertThat(Files.readAllBytes(fill.partialPath())).isEqualTo(content);
+    }
+
+    @Test
+    void downloadResumesFromTheLastByteAfterAConnectionDrop() throws Exception {
+        byte[] content = randomBytes(200_000);
+        Path target = tempDir.resolve("resumed.bin");
+        CacheFill fill = new CacheFill(target, content.length, crc(content));
+        List<Long> offsets = new ArrayList<>();
+        fill.fill(offset -> {
+            offsets.add(offset);
+            // The first connection drops after 70000 bytes
+            int length = offsets.size() == 1 ? 70_000 : content.length - (int) offset;
+            return new DroppingInputStream(content, (int) offset, length, offsets.size() == 1);
+        }, 3, Duration.ofMillis(1));
+
+        fill.awaitCompletion();
+        assertThat(offsets).containsExactly(0L, 70_000L).inOrder();
+        assertThat(Files.readAllBytes(target)).isEqualTo(content);
+        assertThat(Files.exists(fill.partialPath())).isFalse();
+    }
+
+    @Test
+    void partialFileFromAnEarlierFillIsResumed() throws Exception {
+        byte[] content = randomBytes(50_000);
+        Path target = tempDir.resolve("restarted.bin");
+        CacheFill failed = new CacheFill(target, content.length, crc(content));
+        failed.fill(offset -> new DroppingInputStream(content, (int) offset, 20_000, true), 1, Duration.ZERO);
+        assertThrows(IOException.class, failed::awaitCompletion);
+
+        CacheFill resumed = new CacheFill(target, content.length, crc(content));
+        List<Long> offsets = new ArrayList<>();
+        resumed.fill(offset -> {
+            offsets.add(offset);
+            return new ByteArrayInputStream(content, (int) offset, content.length - (int) offset);
+        }, 1, Duration.ZERO);
+
+        resumed.awaitCompletion();
+        assertThat(offsets).containsExactly(20_000L);
+        assertThat(Files.readAllBytes(target)).isEqualTo(content);
+    }
+
+    @Test
+    void retriesAreBounded() {
+        CacheFill fill = new CacheFill(tempDir.resolve("unreachable.bin"), 100, 1L);
+        List<Long> offsets = new ArrayList<>();
+        fill.fill(offset -> {
+            offsets.add(offset);
+            throw new IOException("Connection refused");
+        }, 3, Duration.ofMillis(1));
+
+        assertThrows(IOException.class, fill::awaitStarted);
+        assertThat(offsets).hasSize(3);
+    }
+
+    @Test
+    void partialPathIsKeyedBySizeAndCrc() {
+        Path target = tempDir.resolve("inst/coll/guid/file.name.tif");
+        CacheFill fill = new CacheFill(target, 4096, 0xcafeL);
+
+        Optional<CacheFill.PartialDownload> parsed = CacheFill.parsePartialPath(fill.partialPath());
+
+        assertThat(parsed).hasValue(new CacheFill.PartialDownload(fill.partialPath(), target, 4096, 0xcafeL));
+        assertThat(CacheFill.parsePartialPath(target)).isEmpty();
+        assertThat(new CacheFill(target, 4096, 0xbeefL).partialPath()).isNotEqualTo(fill.partialPath());
+    }
+
+    @Test
+    void missingSourceFailsWithFileNotFound() {
+        CacheFill fill = new CacheFill(tempDir.resolve("missing.bin"), 10);
+        fill.fill(null);
+        assertThrows(FileNotFoundException.class, fill::awaitStarted);
+    }
+
+    @Test
+    void streamOpenedAfterCompletionReadsTheCachedFile() throws Exception {
+        byte[] content = randomBytes(5_000);
+        Path target = tempDir.resolve("done.bin");
+        CacheFill fill = new CacheFill(target, content.length);
+        fill.fill(new ByteArrayInputStream(content));
+        fill.awaitCompletion();
+
+        assertThat(readAll(fill.openStream(0))).isEqualTo(content);
+    }
+
+    @Test
+    void corruptDownloadIsDownloadedAgain() throws Exception {
+        byte[] content = randomBytes(100_000);
+        byte[] corrupt = content.clone();
+        corrupt[50_000] ^= 1;
+        Path target = tempDir.resolve("corrupt.bin");
+        CacheFill fill = new CacheFill(target, content.length, crc(content));
+        List<Long> offsets = new ArrayList<>();
+        fill.fill(offset -> {
+            offsets.add(offset);
+            return new ByteArrayInputStream(offsets.size() == 1 ? corrupt : content, (int) offset, content.length - (int) offset);
+        }, 3, Duration.ZERO);
+
+        fill.awaitCompletion();
+        assertThat(offsets).containsExactly(0L, 0L).inOrder();
+        assertThat(fill.crcMismatches()).isEqualTo(1);
+        assertThat(Files.readAllBytes(target)).isEqualTo(content);
+        assertThat(fill.sha256()).isEqualTo(BlobStore.sha256(target));
+    }
+
+    @Test
+    void corruptDownloadIsNeverPublished() throws Exception {
+        byte[] content = randomBytes(10_000);
+        Path target = tempDir.resolve("always-corrupt.bin");
+        CacheFill fill = new CacheFill(target, content.length, crc(content) + 1);
+        fill.fill(offset -> new ByteArrayInputStream(content, (int) offset, content.length - (int) offset), 2, Duration.ZERO);
+
+        assertThrows(IOException.class, fill::awaitCompletion);
+        assertThat(fill.crcMismatches()).isEqualTo(2);
+        assertThat(Files.exists(target)).isFalse();
+        assertThat(Files.exists(fill.partialPath())).isFalse();
+    }
+
+    @Test
+    void readersOfACorruptDownloadFail() throws Exception {
+        byte[] content = randomBytes(100_000);
+        byte[] corrupt = content.clone();
+        corrupt[10] ^= 1;
+        Path target = tempDir.resolve("read-corrupt.bin");
+        CacheFill fill = new CacheFill(target, content.length, crc(content));
+        PipedOutputStream erda = new PipedOutputStream();
+        PipedInputStream source = new PipedInputStream(erda, 64 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Long> offsets = new ArrayList<>();
+            executor.execute(() -> fill.fill(offset -> {
+                offsets.add(offset);
+                return offsets.size() == 1 ? source : new ByteArrayInputStream(content);
+            }, 2, Duration.ZERO));
+            erda.write(corrupt, 0, 1000);
+            erda.flush();
+            fill.awaitStarted();
+            Future<byte[]> corruptRead = executor.submit(() -> readAll(fill.openStream(0)));
+            erda.write(corrupt, 1000, corrupt.length - 1000);
+            erda.close();
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> corruptRead.get(10, TimeUnit.SECONDS));
+            assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+            fill.awaitCompletion();
+            assertThat(readAll(fill.openStream(0))).isEqualTo(content);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void caughtUpReadersOfACorruptDownloadFail() throws Exception {
+        byte[] content = randomBytes(100_000);
+        byte[] corrupt = content.clone();
+        corrupt[content.length - 1] ^= 1;
+        Path target = tempDir.resolve("caught-up-corrupt.bin");
+        CacheFill fill = new CacheFill(target, content.length, crc(content));
+        PipedOutputStream erda = new PipedOutputStream();
+        PipedInputStream source = new PipedInputStream(erda, 64 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.execute(() -> fill.fill(offset -> source, 1, Duration.ZERO));
+            erda.write(corrupt, 0, 1000);
+            erda.flush();
+            fill.awaitStarted();
+            // Reads no further than the expected size, like a response with a Content-Length
+            Future<byte[]> corruptRead = executor.submit(() -> {
+                try (InputStream in = fill.openStream(0)) {
+                    return in.readNBytes(content.length);
+                }
+            });
+            erda.write(corrupt, 1000, corrupt.length - 1000);
+            erda.close();
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> corruptRead.get(10, TimeUnit.SECONDS));
+            assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+            assertThrows(IOException.class, fill::awaitCompletion);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Streams part of the content and optionally fails at the end, like a dropped connection.
+     */
+    private static class DroppingInputStream extends FilterInputStream {
+        private final boolean drop;
+
+        DroppingInputStream(byte[] content, int offset, int length, boolean drop) {
+            super(new ByteArrayInputStream(content, offset, length));
+            this.drop = drop;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1 && drop) {
+                throw new IOException("Connection reset");
+            }
+            return read;
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        try (InputStream in = inputStream) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        return crc32.getValue();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42L).nextBytes(bytes);
+        return bytes;
+    }
+}
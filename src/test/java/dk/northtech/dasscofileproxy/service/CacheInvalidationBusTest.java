@@ -0,0 +1,73 @@
+package dk.northtech.dasscofileproxy.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class CacheInvalidationBusTest {
+
+    @Test
+    void pathsPublishedWithinTheWindowAreSentTogether() throws Exception {
+        RecordingBus bus = new RecordingBus("node-a", Duration.ofMillis(200));
+        bus.publish(List.of("/i/c/a/1.tif"));
+        bus.publish(List.of("/i/c/a/2.tif", "/i/c/a/1.tif"));
+        Thread.sleep(600);
+
+        assertThat(bus.payloads).hasSize(1);
+        RecordingBus other = new RecordingBus("node-b", Duration.ofMillis(200));
+        List<List<String>> received = new ArrayList<>();
+        other.subscribe(received::add);
+        other.receive(bus.payloads.getFirst());
+        assertThat(received).containsExactly(List.of("/i/c/a/1.tif", "/i/c/a/2.tif"));
+    }
+
+    @Test
+    void largeBatchesAreSplitBelowThePayloadLimit() {
+        List<String> paths = IntStream.range(0, 2000).mapToObj(i -> "/NNAD/botany/asset-" + i + "/original/image-" + i + ".tif").toList();
+
+        List<String> payloads = CacheInvalidationBus.payloads("node-a", paths);
+
+        assertThat(payloads.size()).isGreaterThan(1);
+        List<String> received = new ArrayList<>();
+        RecordingBus other = new RecordingBus("node-b", Duration.ZERO);
+        other.subscribe(received::addAll);
+        for (String payload : payloads) {
+            assertThat(payload.getBytes(StandardCharsets.UTF_8).length).isAtMost(CacheInvalidationBus.MAX_PAYLOAD_BYTES);
+            other.receive(payload);
+        }
+        assertThat(received).containsExactlyElementsIn(paths).inOrder();
+    }
+
+    @Test
+    void ownAndMalformedNotificationsAreIgnored() {
+        RecordingBus bus = new RecordingBus("node-a", Duration.ZERO);
+        List<List<String>> received = new ArrayList<>();
+        bus.subscribe(received::add);
+
+        bus.receive(CacheInvalidationBus.payloads("node-a", List.of("/i/c/a/")).getFirst());
+        bus.receive("not json");
+
+        assertThat(received).isEmpty();
+    }
+
+    static class RecordingBus extends CacheInvalidationBus {
+        final List<String> payloads = new CopyOnWriteArrayList<>();
+
+        RecordingBus(String nodeId, Duration batchWindow) {
+            super(nodeId, batchWindow, null, null, new SimpleMeterRegistry());
+        }
+
+        @Override
+        void notify(String payload) {
+            payloads.add(payload);
+        }
+    }
+}
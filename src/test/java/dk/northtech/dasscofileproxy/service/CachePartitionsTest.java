@@ -0,0 +1,109 @@
+package dk.northtech.dasscofileproxy.service;
+
+import dk.northtech.dasscofileproxy.domain.CacheInfo;
+import dk.northtech.dasscofileproxy.domain.FileSyncStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class CachePartitionsTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void pathsArePartitionedByInstitutionAndCollection() {
+        assertThat(CachePartitions.partitionName("/NNAD/botany/guid-1/image.tif")).isEqualTo("NNAD/botany");
+        assertThat(CachePartitions.partitionName("/NNAD/botany")).isEqualTo(CachePartitions.DEFAULT_PARTITION);
+        assertThat(CachePartitions.partitionName("")).isEqualTo(CachePartitions.DEFAULT_PARTITION);
+    }
+
+    @Test
+    void quotasAreConfiguredByCollectionOrInstitution() {
+        CachePartitions partitions = new CachePartitions(100 * MB, CachePartitions.parseQuotas("NNAD/botany=50, NHMD=20"), 10 * MB, path -> null, (path, info) -> {}, null);
+
+        assertThat(partitions.quotaBytes("NNAD/botany")).isEqualTo(50_000_000L);
+        assertThat(partitions.quotaBytes("NHMD/insects")).isEqualTo(20_000_000L);
+        assertThat(partitions.quotaBytes("NNAD/zoology")).isEqualTo(10 * MB);
+    }
+
+    @Test
+    void aBulkReadOfOneCollectionOnlyEvictsItsOwnFiles() {
+        List<String> evicted = new ArrayList<>();
+        CachePartitions partitions = new CachePartitions(10 * MB, Map.of(), 4 * MB, path -> null, (path, info) -> evicted.add(path), null);
+        partitions.put("/i/viewed/g/a", cacheInfo("/i/viewed/g/a", MB, 1));
+        partitions.put("/i/viewed/g/b", cacheInfo("/i/viewed/g/b", MB, 2));
+
+        for (int i = 0; i < 30; i++) {
+            partitions.put("/i/export/g/" + i, cacheInfo("/i/export/g/" + i, MB, 100 + i));
+        }
+
+        assertThat(evicted).isNotEmpty();
+        assertThat(evicted.stream().allMatch(path -> path.startsWith("/i/export/"))).isTrue();
+        assertThat(partitions.getIfPresent("/i/viewed/g/a")).isNotNull();
+        assertThat(partitions.getIfPresent("/i/viewed/g/b")).isNotNull();
+    }
+
+    @Test
+    void unusedQuotaIsBorrowedAndGivenBack() {
+        List<String> evicted = new ArrayList<>();
+        CachePartitions partitions = new CachePartitions(10 * MB, Map.of(), 2 * MB, path -> null, (path, info) -> evicted.add(path), new SimpleMeterRegistry());
+        for (int i = 0; i < 10; i++) {
+            partitions.put("/i/a/g/" + i, cacheInfo("/i/a/g/" + i, MB, i));
+        }
+        // The whole cache is borrowed by one partition
+        assertThat(evicted).isEmpty();
+        assertThat(weightedBytes(partitions, "i/a")).isEqualTo(10 * MB);
+
+        partitions.put("/i/b/g/0", cacheInfo("/i/b/g/0", MB, 100));
+        partitions.put("/i/b/g/1", cacheInfo("/i/b/g/1", MB, 101));
+
+        assertThat(evicted).hasSize(2);
+        assertThat(evicted.stream().allMatch(path -> path.startsWith("/i/a/"))).isTrue();
+        assertThat(weightedBytes(partitions, "i/a")).isEqualTo(8 * MB);
+        assertThat(weightedBytes(partitions, "i/b")).isEqualTo(2 * MB);
+    }
+
+    @Test
+    void loadedEntriesDoNotExceedTheCache() {
+        List<String> evicted = new ArrayList<>();
+        CachePartitions partitions = new CachePartitions(10 * MB, Map.of(), 2 * MB, path -> cacheInfo(path, MB, path.hashCode()), (path, info) -> evicted.add(path), null);
+        // Both partitions are created while the cache is empty, so each may grow into the whole cache
+        partitions.get("/i/a/g/0");
+        partitions.get("/i/b/g/0");
+
+        for (int i = 1; i < 8; i++) {
+            partitions.get("/i/a/g/" + i);
+            partitions.get("/i/b/g/" + i);
+        }
+
+        assertThat(weightedBytes(partitions, "i/a") + weightedBytes(partitions, "i/b")).isAtMost(10 * MB);
+        assertThat(evicted).hasSize(6);
+    }
+
+    @Test
+    void repeatedGetsAreCountedAsHits() {
+        CachePartitions partitions = new CachePartitions(10 * MB, Map.of(), 2 * MB, path -> cacheInfo(path, MB, path.hashCode()), (path, info) -> {
+        }, null);
+
+        for (int i = 0; i < 3; i++) {
+            partitions.get("/i/a/g/0");
+        }
+
+        CachePartitions.Partition partition = partitions.partitions().stream().filter(p -> p.name.equals("i/a")).findFirst().orElseThrow();
+        assertThat(partition.index.stats().hitCount()).isEqualTo(2);
+        assertThat(partition.index.stats().loadCount()).isEqualTo(1);
+    }
+
+    private static long weightedBytes(CachePartitions partitions, String name) {
+        return partitions.partitions().stream().filter(p -> p.name.equals(name)).findFirst().orElseThrow().weightedSize() * CacheFileService.WEIGHT_UNIT_BYTES;
+    }
+
+    private static CacheInfo cacheInfo(String path, long sizeBytes, long fileCacheId) {
+        return new CacheInfo(path, Instant.now(), Instant.now(), FileSyncStatus.SYNCHRONIZED, false, sizeBytes, fileCacheId, fileCacheId);
+    }
+}
@@ -0,0 +1,131 @@
+package dk.northtech.dasscofileproxy.service;
+
+import dk.northtech.dasscofileproxy.domain.CacheInfo;
+import dk.northtech.dasscofileproxy.domain.DasscoFile;
+import dk.northtech.dasscofileproxy.domain.FileSyncStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class CacheReconcilerTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void scanListsFilesInAllDirectoriesWithTheirSize() throws Exception {
+        write("inst/coll/guid-1/a.tif", 10);
+        write("inst/coll/guid-1/sub/b.tif", 20);
+        write("inst/other/guid-2/c.jpg", 30);
+        Path recent = write("inst/coll/guid-1/recent.tif", 40);
+        Instant started = Instant.now();
+        Files.setLastModifiedTime(recent, FileTime.from(started.plusSeconds(10)));
+
+        Map<String, Long> files = CacheReconciler.scan(tempDir, new ForkJoinPool(4), started);
+
+        assertThat(files).containsExactly(
+                "/inst/coll/guid-1/a.tif", 10L,
+                "/inst/coll/guid-1/sub/b.tif", 20L,
+                "/inst/other/guid-2/c.jpg", 30L);
+    }
+
+    @Test
+    void filesWithMatchingEntriesAreWarmed() {
+        CacheInfo entry = entry("/i/c/g/a.tif", 100, 1);
+        CacheReconciler.Plan plan = CacheReconciler.plan(
+                Map.of("/i/c/g/a.tif", 100L),
+                List.of(entry),
+                Map.of("/i/c/g/a.tif", file("/i/c/g/a.tif", 100, 0)));
+
+        assertThat(plan.warm()).containsExactly(entry);
+        assertThat(plan.deleteFiles()).isEmpty();
+        assertThat(plan.deleteEntries()).isEmpty();
+    }
+
+    @Test
+    void orphansAreAdoptedIfTheyMatchASynchronizedFileAndDeletedOtherwise() {
+        DasscoFile known = file("/i/c/g/known.tif", 100, 0);
+        CacheReconciler.Plan plan = CacheReconciler.plan(
+                Map.of("/i/c/g/known.tif", 100L,
+                        "/i/c/g/wrong-size.tif", 5L,
+                        "/i/c/g/unknown.tif", 100L),
+                List.of(),
+                Map.of("/i/c/g/known.tif", known,
+                        "/i/c/g/wrong-size.tif", file("/i/c/g/wrong-size.tif", 6, 0)));
+
+        assertThat(plan.adopt()).containsExactly(known);
+        assertThat(plan.deleteFiles()).containsExactly("/i/c/g/wrong-size.tif", "/i/c/g/unknown.tif");
+    }
+
+    @Test
+    void entriesWithoutAMatchingFileAreDeleted() {
+        CacheReconciler.Plan plan = CacheReconciler.plan(
+                Map.of("/i/c/g/changed.tif", 100L),
+                List.of(entry("/i/c/g/missing.tif", 100, 1), entry("/i/c/g/changed.tif", 50, 2)),
+                Map.of("/i/c/g/changed.tif", file("/i/c/g/changed.tif", 100, 0)));
+
+        assertThat(plan.deleteEntries()).containsExactly(1L, 2L);
+        assertThat(plan.deleteFiles()).containsExactly("/i/c/g/changed.tif");
+        assertThat(plan.warm()).isEmpty();
+    }
+
+    @Test
+    void pinnedEntriesWithoutAMatchingFileAreKept() {
+        CacheInfo pinnedMissing = pinned(entry("/i/c/g/missing.tif", 100, 1));
+        CacheInfo pinnedChanged = pinned(entry("/i/c/g/changed.tif", 50, 2));
+        CacheReconciler.Plan plan = CacheReconciler.plan(
+                Map.of("/i/c/g/changed.tif", 100L),
+                List.of(pinnedMissing, pinnedChanged, entry("/i/c/g/missing.tif", 100, 3)),
+                Map.of("/i/c/g/changed.tif", file("/i/c/g/changed.tif", 100, 0)));
+
+        assertThat(plan.warm()).containsExactly(pinnedMissing, pinnedChanged);
+        assertThat(plan.deleteEntries()).containsExactly(3L);
+        assertThat(plan.deleteFiles()).containsExactly("/i/c/g/changed.tif");
+    }
+
+    @Test
+    void resumablePartialDownloadsAreKept() {
+        DasscoFile dasscoFile = file("/i/c/g/big.tif", 1000, 0xabcL);
+        String resumable = CacheFill.partialPath(Path.of("/i/c/g/big.tif"), 1000, 0xabcL).toString();
+        String outdated = CacheFill.partialPath(Path.of("/i/c/g/big.tif"), 900, 0x123L).toString();
+        String blocks = "/i/c/g/big.tif" + PartialCacheFile.BITMAP_SUFFIX;
+        String unknownBlocks = "/i/c/g/gone.tif" + PartialCacheFile.DATA_SUFFIX;
+
+        CacheReconciler.Plan plan = CacheReconciler.plan(
+                Map.of(resumable, 500L, outdated, 500L, blocks, 10L, unknownBlocks, 10L),
+                List.of(),
+                Map.of("/i/c/g/big.tif", dasscoFile));
+
+        assertThat(plan.partialsKept()).isEqualTo(2);
+        assertThat(plan.deleteFiles()).containsExactly(outdated, unknownBlocks);
+        assertThat(plan.adopt()).isEmpty();
+    }
+
+    private Path write(String path, int size) throws Exception {
+        Path file = tempDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minusSeconds(60)));
+        return file;
+    }
+
+    private static CacheInfo entry(String path, long size, long fileCacheId) {
+        return new CacheInfo(path, Instant.now().minusSeconds(600), Instant.now().plusSeconds(600), FileSyncStatus.SYNCHRONIZED, false, size, fileCacheId, fileCacheId);
+    }
+
+    private static CacheInfo pinned(CacheInfo cacheInfo) {
+        return new CacheInfo(cacheInfo.path(), cacheInfo.creationDatetime(), cacheInfo.expiration_datetime(), cacheInfo.syncStatus(), false, cacheInfo.sizeBytes(), cacheInfo.fileCacheId(), cacheInfo.fileId(), true);
+    }
+
+    private static DasscoFile file(String path, long size, long crc) {
+        return new DasscoFile(1L, "g", path, size, crc, FileSyncStatus.SYNCHRONIZED, "image/tiff", false);
+    }
+}
@@ -0,0 +1,24 @@
+package dk.northtech.dasscofileproxy.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class CacheRouterTest {
+    @Test
+    void configuredNodesWithoutAHeartbeatAreLeftOut() {
+        Map<String, String> configured = CacheRouter.parseNodes("node-a=http://file-proxy-1/api,node-b=http://file-proxy-2/api");
+        Map<String, String> alive = Map.of("node-a", "http://10.0.0.1/api", "node-c", "http://10.0.0.3/api");
+
+        assertThat(CacheRouter.liveNodes(configured, alive)).containsExactly("node-a", "http://file-proxy-1/api");
+    }
+
+    @Test
+    void allAliveNodesAreUsedWithoutConfiguredNodes() {
+        Map<String, String> alive = Map.of("node-a", "http://10.0.0.1/api", "node-c", "http://10.0.0.3/api");
+
+        assertThat(CacheRouter.liveNodes(Map.of(), alive)).isEqualTo(alive);
+    }
+}
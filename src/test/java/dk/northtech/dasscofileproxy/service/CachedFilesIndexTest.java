@@ -0,0 +1,63 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import dk.northtech.dasscofileproxy.domain.CacheInfo;
+import dk.northtech.dasscofileproxy.domain.FileSyncStatus;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class CachedFilesIndexTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void cacheIsKeptWithinTheByteBudget() {
+        List<String> evicted = new ArrayList<>();
+        LoadingCache<String, CacheInfo> index = CacheFileService.newCachedFilesIndex(10 * MB, path -> null, (path, info) -> evicted.add(path));
+
+        index.put("/a", cacheInfo("/a", 4 * MB, 1));
+        index.put("/b", cacheInfo("/b", 4 * MB, 2));
+        index.put("/c", cacheInfo("/c", 4 * MB, 3));
+
+        // Eviction happens on the thread adding the file, without waiting for maintenance
+        assertThat(evicted).hasSize(1);
+        assertThat(index.policy().eviction().orElseThrow().weightedSize().orElseThrow()).isAtMost(10 * MB / 1024);
+        assertThat(index.asMap()).hasSize(2);
+    }
+
+    @Test
+    void popularFileSurvivesAScanOfFilesThatAreReadOnce() {
+        List<String> evicted = new ArrayList<>();
+        LoadingCache<String, CacheInfo> index = CacheFileService.newCachedFilesIndex(20 * MB, path -> null, (path, info) -> evicted.add(path));
+        index.put("/popular", cacheInfo("/popular", 4 * MB, 1));
+        // Caffeine starts counting reads when the cache is half full
+        index.put("/other1", cacheInfo("/other1", 4 * MB, 2));
+        index.put("/other2", cacheInfo("/other2", 4 * MB, 3));
+        for (int i = 0; i < 20; i++) {
+            index.getIfPresent("/popular");
+        }
+
+        for (int i = 0; i < 50; i++) {
+            String path = "/bundle/" + i;
+            index.put(path, cacheInfo(path, 4 * MB, 100 + i));
+        }
+
+        assertThat(index.getIfPresent("/popular")).isNotNull();
+        assertThat(evicted).doesNotContain("/popular");
+    }
+
+    @Test
+    void filesAreWeighedInKibibytes() {
+        assertThat(CacheFileService.weight(0)).isEqualTo(1);
+        assertThat(CacheFileService.weight(1025)).isEqualTo(2);
+        assertThat(CacheFileService.weight(10L * 1024 * 1024 * 1024 * 1024)).isEqualTo(Integer.MAX_VALUE);
+    }
+
+    private static CacheInfo cacheInfo(String path, long sizeBytes, long fileCacheId) {
+        return new CacheInfo(path, Instant.now(), Instant.now(), FileSyncStatus.SYNCHRONIZED, false, sizeBytes, fileCacheId, fileCacheId);
+    }
+}
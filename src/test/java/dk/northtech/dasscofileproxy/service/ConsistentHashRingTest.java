@@ -0,0 +1,58 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.google.common.collect.Range;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class ConsistentHashRingTest {
+    private static final int KEYS = 30000;
+
+    @Test
+    void spreadsKeysEvenlyOverTheNodes() {
+        ConsistentHashRing ring = new ConsistentHashRing(nodes("node-a", "node-b", "node-c"));
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.owner("asset-" + i).nodeId(), 1, Integer::sum);
+        }
+
+        assertThat(owned.keySet()).containsExactly("node-a", "node-b", "node-c");
+        for (int count : owned.values()) {
+            assertThat(count).isIn(Range.closed(KEYS / 3 * 8 / 10, KEYS / 3 * 12 / 10));
+        }
+    }
+
+    @Test
+    void addingANodeOnlyMovesKeysToThatNode() {
+        ConsistentHashRing before = new ConsistentHashRing(nodes("node-a", "node-b", "node-c"));
+        ConsistentHashRing after = new ConsistentHashRing(nodes("node-a", "node-b", "node-c", "node-d"));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "asset-" + i;
+            String ownerBefore = before.owner(key).nodeId();
+            String ownerAfter = after.owner(key).nodeId();
+            if (!ownerBefore.equals(ownerAfter)) {
+                assertThat(ownerAfter).isEqualTo("node-d");
+                moved++;
+            }
+        }
+
+        assertThat(after.size()).isEqualTo(4);
+        // About a quarter of the keys move to the new node
+        assertThat(moved).isIn(Range.closed(KEYS / 4 * 7 / 10, KEYS / 4 * 13 / 10));
+    }
+
+    @Test
+    void emptyRingHasNoOwner() {
+        assertThat(new ConsistentHashRing(List.of()).owner("asset")).isNull();
+    }
+
+    private static List<ConsistentHashRing.Node> nodes(String... nodeIds) {
+        return Arrays.stream(nodeIds).map(id -> new ConsistentHashRing.Node(id, "http://" + id)).toList();
+    }
+}
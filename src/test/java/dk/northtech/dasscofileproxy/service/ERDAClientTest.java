@@ -0,0 +1,303 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import dk.northtech.dasscofileproxy.configuration.StorageConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ERDAClientTest {
+    private static final String REMOTE_PATH = "/i/c/guid/";
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void directoriesOfABatchAreDistinctAndTopDown() {
+        List<Path> paths = List.of(
+                Path.of("/i/c/guid/sub/deeper/a.tif"),
+                Path.of("/i/c/guid/sub/b.tif"),
+                Path.of("/i/c/guid-2/c.tif"),
+                Path.of("/i/c/guid/d.tif"));
+
+        assertThat(ERDAClient.directoriesOf(paths)).containsExactly(
+                "i/", "i/c/", "i/c/guid-2/", "i/c/guid/", "i/c/guid/sub/", "i/c/guid/sub/deeper/").inOrder();
+    }
+
+    @Test
+    void directoriesBelowACreatedDirectoryAreNotLookedUp() {
+        FakeErda erda = new FakeErda();
+        erda.directories.add("i/");
+
+        erda.client(1).createSubDirsIfNotExists(List.of(Path.of("/i/c/guid/sub/a.tif")));
+
+        assertThat(erda.stats).containsExactly("i/", "i/c/").inOrder();
+        assertThat(erda.directories).containsExactly("i/", "i/c/", "i/c/guid/", "i/c/guid/sub/");
+        assertThat(erda.directories("existing")).isEqualTo(1);
+        assertThat(erda.directories("created")).isEqualTo(3);
+    }
+
+    @Test
+    void knownDirectoriesAreNotLookedUpAgain() {
+        FakeErda erda = new FakeErda();
+        ERDAClient client = erda.client(1);
+        client.createSubDirsIfNotExists(List.of(Path.of("/i/c/guid/a.tif")));
+        int opened = erda.openedChannels.get();
+        int stats = erda.stats.size();
+
+        client.createSubDirsIfNotExists(List.of(Path.of("/i/c/guid/b.tif")));
+
+        assertThat(erda.openedChannels.get()).isEqualTo(opened);
+        assertThat(erda.stats).hasSize(stats);
+        assertThat(erda.directories("cached")).isEqualTo(3);
+    }
+
+    @Test
+    void directoriesAreLookedUpAgainWhenAnUploadFindsThemMissing() throws Exception {
+        FakeErda erda = new FakeErda();
+        ERDAClient client = erda.client(1);
+        File file = write("a.tif", 1);
+        client.createSubDirsIfNotExists(List.of(Path.of(remotePathOf(file))));
+        // The folder of the asset is removed on ERDA while the session lives
+        erda.directories.remove("i/c/guid/");
+        erda.failing.put(remotePathOf(file), new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "No such file"));
+        client.putFilesOnRemotePathBulk(List.of(file), tempDir.toString(), REMOTE_PATH);
+        erda.stats.clear();
+
+        client.createSubDirsIfNotExists(List.of(Path.of(remotePathOf(file))));
+
+        assertThat(erda.stats).containsExactly("i/", "i/c/", "i/c/guid/").inOrder();
+        assertThat(erda.directories).contains("i/c/guid/");
+    }
+
+    @Test
+    void largestFilesAreUploadedFirst() throws Exception {
+        FakeErda erda = new FakeErda();
+        List<File> files = List.of(write("small.tif", 1), write("large.tif", 3), write("medium.tif", 2));
+
+        erda.client(1).putFilesOnRemotePathBulk(files, tempDir.toString(), REMOTE_PATH);
+
+        assertThat(erda.puts).containsExactly(remotePathOf(files.get(1)), remotePathOf(files.get(2)), remotePathOf(files.get(0))).inOrder();
+    }
+
+    @Test
+    void failedFilesAreReportedAndTheOthersUploaded() throws Exception {
+        FakeErda erda = new FakeErda();
+        List<File> files = List.of(write("a.tif", 1), write("b.tif", 2), write("c.tif", 3));
+        erda.failing.put(remotePathOf(files.get(1)), new SftpException(ChannelSftp.SSH_FX_FAILURE, "Quota exceeded"));
+
+        ERDAClient.BulkUploadResult result = erda.client(2).putFilesOnRemotePathBulk(files, tempDir.toString(), REMOTE_PATH);
+
+        assertThat(result.uploadedFiles()).containsExactly(remotePathOf(files.get(0)), remotePathOf(files.get(2)));
+        assertThat(result.failedFiles().keySet()).containsExactly(remotePathOf(files.get(1)));
+        assertThat(result.failedFiles().get(remotePathOf(files.get(1)))).hasMessageThat().contains("Quota exceeded");
+    }
+
+    @Test
+    void uploadIsFailedUnlessErdaHasTheWholeFile() throws Exception {
+        FakeErda erda = new FakeErda();
+        List<File> files = List.of(write("short.tif", 100), write("whole.tif", 100));
+        erda.truncated.add(remotePathOf(files.get(0)));
+
+        ERDAClient.BulkUploadResult result = erda.client(1).putFilesOnRemotePathBulk(files, tempDir.toString(), REMOTE_PATH);
+
+        assertThat(result.uploadedFiles()).containsExactly(remotePathOf(files.get(1)));
+        assertThat(result.failedFiles().get(remotePathOf(files.get(0)))).hasMessageThat().isEqualTo("ERDA has 50 of 100 bytes");
+    }
+
+    @Test
+    void closedChannelIsReplacedForTheNextItems() {
+        FakeErda erda = new FakeErda();
+        List<String> transferred = Collections.synchronizedList(new ArrayList<>());
+
+        Map<String, Exception> failures = erda.client(1).inParallel(List.of("a", "b", "c"), 1, (channel, item) -> {
+            if (item.equals("a")) {
+                channel.disconnect();
+                throw new SftpException(ChannelSftp.SSH_FX_CONNECTION_LOST, "Connection lost");
+            }
+            assertThat(channel.isClosed()).isFalse();
+            transferred.add(item);
+        });
+
+        assertThat(failures.keySet()).containsExactly("a");
+        assertThat(transferred).containsExactly("b", "c").inOrder();
+        assertThat(erda.openedChannels.get()).isEqualTo(2);
+    }
+
+    @Test
+    void failedDownloadLetsTheOthersFinishAndThenThrows() {
+        FakeErda erda = new FakeErda();
+        List<ERDAClient.Download> downloads = new ArrayList<>();
+        for (String name : List.of("a.tif", "b.tif", "c.tif")) {
+            erda.files.put(REMOTE_PATH + name, name.getBytes());
+            downloads.add(new ERDAClient.Download(REMOTE_PATH + name, tempDir.resolve("share/" + name).toString()));
+        }
+        erda.failing.put(REMOTE_PATH + "a.tif", new SftpException(ChannelSftp.SSH_FX_FAILURE, "Connection reset"));
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> erda.client(1).downloadFilesInParallel(downloads));
+
+        assertThat(e).hasMessageThat().isEqualTo("Failed to download 1 of 3 files");
+        assertThat(Files.exists(tempDir.resolve("share/a.tif"))).isFalse();
+        assertThat(Files.exists(tempDir.resolve("share/b.tif"))).isTrue();
+        assertThat(Files.exists(tempDir.resolve("share/c.tif"))).isTrue();
+    }
+
+    private String remotePathOf(File file) {
+        return ERDAClient.remotePathOf(file, tempDir.toString(), REMOTE_PATH);
+    }
+
+    private File write(String name, int size) throws IOException {
+        return Files.write(tempDir.resolve(name), new byte[size]).toFile();
+    }
+
+    /**
+     * ERDA in memory, with SFTP channels that read and write it.
+     */
+    static class FakeErda {
+        final Map<String, byte[]> files = new ConcurrentHashMap<>();
+        final Set<String> directories = ConcurrentHashMap.newKeySet();
+        // Remote paths that fail with the error when they are put or got
+        final Map<String, SftpException> failing = new ConcurrentHashMap<>();
+        // Remote paths of which ERDA only keeps half of what is put, like an upload that was cut off
+        final Set<String> truncated = ConcurrentHashMap.newKeySet();
+        final List<String> puts = Collections.synchronizedList(new ArrayList<>());
+        final List<String> stats = Collections.synchronizedList(new ArrayList<>());
+        final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger openedChannels = new AtomicInteger();
+        final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        double directories(String result) {
+            return meterRegistry.counter("erda.sftp.directories", "result", result).count();
+        }
+
+        ERDAClient client(int channels) {
+            StorageConfig storageConfig = new StorageConfig(null, null, null, null, null, null, "/", 1, null, channels, channels);
+            return new ERDAClient(storageConfig, () -> {
+                openedChannels.incrementAndGet();
+                return new FakeChannel();
+            }, meterRegistry) {
+                // Listings are answered from the files, as the entries of ChannelSftp.ls cannot be created outside JSch
+                @Override
+                public Map<String, Long> listAllFileSizes(String path) {
+                    Map<String, Long> sizes = new TreeMap<>();
+                    files.forEach((file, content) -> {
+                        if (file.startsWith(path)) {
+                            sizes.put(file, (long) content.length);
+                        }
+                    });
+                    return sizes;
+                }
+
+                @Override
+                public List<String> listAllFiles(String path) {
+                    return List.copyOf(listAllFileSizes(path).keySet());
+                }
+
+                @Override
+                public boolean exists(String path, boolean isFolder) {
+                    return !listAllFileSizes(path).isEmpty();
+                }
+            };
+        }
+
+        class FakeChannel extends ChannelSftp {
+            private volatile boolean closed;
+
+            @Override
+            public void put(String src, String dst) throws SftpException {
+                puts.add(dst);
+                failIfFailing(dst);
+                try {
+                    byte[] content = Files.readAllBytes(Path.of(src));
+                    files.put(dst, truncated.contains(dst) ? Arrays.copyOf(content, content.length / 2) : content);
+                } catch (IOException e) {
+                    throw new SftpException(SSH_FX_FAILURE, e.getMessage());
+                }
+            }
+
+            @Override
+            public void put(String src, String dst, int mode) throws SftpException {
+                put(src, dst);
+            }
+
+            @Override
+            public void get(String src, String dst) throws SftpException {
+                failIfFailing(src);
+                byte[] content = files.get(src);
+                if (content == null) {
+                    throw new SftpException(SSH_FX_NO_SUCH_FILE, "No such file");
+                }
+                try {
+                    Files.write(Path.of(dst), content);
+                } catch (IOException e) {
+                    throw new SftpException(SSH_FX_FAILURE, e.getMessage());
+                }
+            }
+
+            @Override
+            public SftpATTRS stat(String path) throws SftpException {
+                stats.add(path);
+                if (directories.contains(path)) {
+                    // The file type cannot be set on SftpATTRS outside JSch
+                    return new SftpATTRS() {
+                        @Override
+                        public boolean isDir() {
+                            return true;
+                        }
+                    };
+                }
+                if (!files.containsKey(path)) {
+                    throw new SftpException(SSH_FX_NO_SUCH_FILE, "No such file");
+                }
+                SftpATTRS attrs = new SftpATTRS();
+                attrs.setSIZE(files.get(path).length);
+                return attrs;
+            }
+
+            @Override
+            public void mkdir(String path) {
+                directories.add(path);
+            }
+
+            @Override
+            public void rm(String path) {
+                deleted.add(path);
+                files.remove(path);
+            }
+
+            @Override
+            public boolean isClosed() {
+                return closed;
+            }
+
+            @Override
+            public void disconnect() {
+                closed = true;
+            }
+
+            @Override
+            public void exit() {
+                closed = true;
+            }
+
+            private void failIfFailing(String path) throws SftpException {
+                SftpException failure = failing.get(path);
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+    }
+}
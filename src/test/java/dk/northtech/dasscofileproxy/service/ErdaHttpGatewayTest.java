@@ -0,0 +1,169 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.northtech.dasscofileproxy.configuration.ErdaHttpConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ErdaHttpGatewayTest {
+    private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.UTF_8);
+    private HttpServer erda;
+    private String erdaUrl;
+    private final AtomicInteger unavailable = new AtomicInteger();
+    private final CountDownLatch stopStalling = new CountDownLatch(1);
+    // A stalled response must not hold up the others
+    private final ExecutorService erdaExecutor = Executors.newCachedThreadPool();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void startErda() throws Exception {
+        erda = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        erda.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/flaky.tif") && unavailable.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+            } else if (path.equals("/stalled.tif")) {
+                // Sends the headers and the first bytes, then nothing
+                exchange.sendResponseHeaders(200, CONTENT.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(CONTENT, 0, 4);
+                out.flush();
+                try {
+                    stopStalling.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (path.equals("/image.tif") || path.equals("/flaky.tif")) {
+                // Ignores the Range header
+                exchange.sendResponseHeaders(200, CONTENT.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(CONTENT);
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            exchange.close();
+        });
+        erda.setExecutor(erdaExecutor);
+        erda.start();
+        erdaUrl = "http://localhost:" + erda.getAddress().getPort();
+    }
+
+    @AfterEach
+    void stopErda() {
+        stopStalling.countDown();
+        erda.stop(0);
+        erdaExecutor.shutdownNow();
+    }
+
+    @Test
+    void skipsToTheStartOfTheRangeIfErdaReturnsTheWholeFile() throws Exception {
+        ErdaHttpGateway gateway = gateway(4, 3);
+
+        try (InputStream in = gateway.get(erdaUrl + "/image.tif", 4, -1)) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("456789");
+        }
+        assertThat(meterRegistry.get("erda.http.received").counter().count()).isEqualTo(6);
+        assertThat(meterRegistry.get("erda.http.ttfb").tag("outcome", "success").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void retriesServerErrors() throws Exception {
+        ErdaHttpGateway gateway = gateway(4, 3);
+        unavailable.set(2);
+
+        try (InputStream in = gateway.get(erdaUrl + "/flaky.tif", 0, -1)) {
+            assertThat(in.readAllBytes()).isEqualTo(CONTENT);
+        }
+        assertThat(meterRegistry.get("erda.http.retries").counter().count()).isEqualTo(2);
+        assertThat(meterRegistry.get("erda.http.errors").tag("class", "server").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void givesUpAfterTheLastAttempt() {
+        ErdaHttpGateway gateway = gateway(4, 2);
+        unavailable.set(5);
+
+        IOException e = assertThrows(IOException.class, () -> gateway.get(erdaUrl + "/flaky.tif", 0, -1));
+        assertThat(e).hasMessageThat().contains("503");
+    }
+
+    @Test
+    void missingFilesAreNull() throws Exception {
+        ErdaHttpGateway gateway = gateway(1, 3);
+
+        assertThat(gateway.get(erdaUrl + "/missing.tif", 0, -1)).isNull();
+        // The permit of the missing file was released
+        try (InputStream in = gateway.get(erdaUrl + "/image.tif", 0, -1)) {
+            assertThat(in).isNotNull();
+        }
+    }
+
+    @Test
+    void readsHoldTheirPermitUntilClosed() throws Exception {
+        ErdaHttpGateway gateway = gateway(1, 3);
+
+        InputStream first = gateway.get(erdaUrl + "/image.tif", 0, -1);
+        assertThrows(IOException.class, () -> gateway.get(erdaUrl + "/image.tif", 0, -1));
+        first.close();
+
+        try (InputStream second = gateway.get(erdaUrl + "/image.tif", 0, -1)) {
+            assertThat(second.readAllBytes()).isEqualTo(CONTENT);
+        }
+        assertThat(meterRegistry.get("erda.http.errors").tag("class", "saturated").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void stalledReadIsClosedAndReleasesItsPermit() throws Exception {
+        ErdaHttpGateway gateway = gateway(1, 3);
+
+        try (InputStream in = gateway.get(erdaUrl + "/stalled.tif", 0, -1)) {
+            assertThat(in.readNBytes(4)).isEqualTo(slice(0, 4));
+            IOException e = assertThrows(IOException.class, in::readAllBytes);
+            assertThat(e).hasMessageThat().contains("No bytes from ERDA");
+        }
+
+        // The permit of the stalled read was released
+        try (InputStream in = gateway.get(erdaUrl + "/image.tif", 0, -1)) {
+            assertThat(in.readAllBytes()).isEqualTo(CONTENT);
+        }
+        assertThat(meterRegistry.get("erda.http.errors").tag("class", "stalled").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void backoffIsJitteredUpToTheExponentialDelay() {
+        ErdaHttpGateway gateway = gateway(1, 3);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(gateway.backoff(1)).isAtMost(Duration.ofMillis(10));
+            assertThat(gateway.backoff(3)).isAtMost(Duration.ofMillis(40));
+        }
+    }
+
+    private static byte[] slice(int offset, int length) {
+        byte[] bytes = new byte[length];
+        System.arraycopy(CONTENT, offset, bytes, 0, length);
+        return bytes;
+    }
+
+    private ErdaHttpGateway gateway(int maxConcurrentRequests, int maxAttempts) {
+        return new ErdaHttpGateway(new ErdaHttpConfig(Duration.ofSeconds(2), Duration.ofMillis(300), maxConcurrentRequests, maxAttempts, Duration.ofMillis(10)), meterRegistry);
+    }
+}
@@ -0,0 +1,57 @@
+package dk.northtech.dasscofileproxy.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class MemoryTierTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void smallFilesAreReadIntoMemoryOnFirstHit() throws Exception {
+        MemoryTier memoryTier = new MemoryTier(1024 * 1024, 1024, null);
+        File file = write("thumbnail.jpg", 100, (byte) 1);
+
+        byte[] content = memoryTier.get("/i/c/g/thumbnail.jpg", file);
+        Files.write(file.toPath(), new byte[100]);
+
+        // The second hit is served from memory
+        assertThat(memoryTier.get("/i/c/g/thumbnail.jpg", file)).isSameInstanceAs(content);
+        assertThat(content[0]).isEqualTo((byte) 1);
+
+        memoryTier.invalidate("/i/c/g/thumbnail.jpg");
+        assertThat(memoryTier.get("/i/c/g/thumbnail.jpg", file)[0]).isEqualTo((byte) 0);
+    }
+
+    @Test
+    void largeFilesAreNotKeptInMemory() throws Exception {
+        MemoryTier memoryTier = new MemoryTier(1024 * 1024, 1024, null);
+        File file = write("image.tif", 2048, (byte) 1);
+
+        assertThat(memoryTier.get("/i/c/g/image.tif", file)).isNull();
+        assertThat(memoryTier.size()).isEqualTo(0);
+    }
+
+    @Test
+    void memoryTierIsBoundedByBytes() throws Exception {
+        MemoryTier memoryTier = new MemoryTier(4096, 1024, null);
+        for (int i = 0; i < 20; i++) {
+            memoryTier.get("/i/c/g/" + i, write(i + ".jpg", 1024, (byte) i));
+        }
+
+        assertThat(memoryTier.size()).isAtMost(4);
+    }
+
+    private File write(String name, int size, byte value) throws Exception {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, value);
+        return Files.write(tempDir.resolve(name), bytes).toFile();
+    }
+}
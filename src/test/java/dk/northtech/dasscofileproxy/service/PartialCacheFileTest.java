@@ -0,0 +1,202 @@
+package dk.northtech.dasscofileproxy.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PartialCacheFileTest {
+    private static final int BLOCK_SIZE = 1024;
+    private static final long CRC = 0xabcL;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void onlyTheRequestedBlocksAreFetched() throws Exception {
+        byte[] content = randomBytes(10 * BLOCK_SIZE + 100);
+        List<Long> fetchedStarts = new ArrayList<>();
+        PartialCacheFile partialCacheFile = new PartialCacheFile(tempDir.resolve("file.tif"), content.length, CRC, BLOCK_SIZE,
+                recordingFetcher(content, fetchedStarts), null);
+
+        byte[] read = readRange(partialCacheFile, 5 * BLOCK_SIZE + 10, 200);
+
+        assertThat(read).isEqualTo(slice(content, 5 * BLOCK_SIZE + 10, 200));
+        assertThat(fetchedStarts).containsExactly(5L * BLOCK_SIZE);
+        assertThat(partialCacheFile.presentBlockCount()).isEqualTo(1);
+
+        // Reading the same range again is served from disk
+        readRange(partialCacheFile, 5 * BLOCK_SIZE, 100);
+        assertThat(fetchedStarts).hasSize(1);
+    }
+
+    @Test
+    void presentBlocksSurviveARestart() throws Exception {
+        byte[] content = randomBytes(4 * BLOCK_SIZE);
+        Path target = tempDir.resolve("restart.tif");
+        List<Long> fetchedStarts = new ArrayList<>();
+        PartialCacheFile first = new PartialCacheFile(target, content.length, CRC, BLOCK_SIZE, recordingFetcher(content, fetchedStarts), null);
+        readRange(first, BLOCK_SIZE, BLOCK_SIZE);
+
+        PartialCacheFile second = new PartialCacheFile(target, content.length, CRC, BLOCK_SIZE, recordingFetcher(content, fetchedStarts), null);
+
+        assertThat(second.isBlockPresent(1)).isTrue();
+        assertThat(readRange(second, BLOCK_SIZE, BLOCK_SIZE)).isEqualTo(slice(content, BLOCK_SIZE, BLOCK_SIZE));
+        assertThat(fetchedStarts).containsExactly((long) BLOCK_SIZE);
+    }
+
+    @Test
+    void bitmapForAnotherSizeIsDiscarded() throws Exception {
+        byte[] content = randomBytes(4 * BLOCK_SIZE);
+        Path target = tempDir.resolve("changed.tif");
+        PartialCacheFile first = new PartialCacheFile(target, content.length, CRC, BLOCK_SIZE, recordingFetcher(content, new ArrayList<>()), null);
+        readRange(first, 0, 10);
+
+        PartialCacheFile second = new PartialCacheFile(target, content.length - 1, CRC, BLOCK_SIZE, recordingFetcher(content, new ArrayList<>()), null);
+
+        assertThat(second.presentBlockCount()).isEqualTo(0);
+    }
+
+    @Test
+    void bitmapForAnotherCrcIsDiscarded() throws Exception {
+        byte[] content = randomBytes(4 * BLOCK_SIZE);
+        Path target = tempDir.resolve("replaced.tif");
+        PartialCacheFile first = new PartialCacheFile(target, content.length, CRC, BLOCK_SIZE, recordingFetcher(content, new ArrayList<>()), null);
+        readRange(first, 0, 10);
+
+        // The file was replaced in ERDA with one of the same size
+        PartialCacheFile second = new PartialCacheFile(target, content.length, CRC + 1, BLOCK_SIZE, recordingFetcher(content, new ArrayList<>()), null);
+
+        assertThat(second.presentBlockCount()).isEqualTo(0);
+    }
+
+    @Test
+    void discardedFileIsNotWrittenAgain() throws Exception {
+        byte[] content = randomBytes(4 * BLOCK_SIZE);
+        Path target = tempDir.resolve("discarded.tif");
+        PartialCacheFile partialCacheFile = new PartialCacheFile(target, content.length, CRC, BLOCK_SIZE, recordingFetcher(content, new ArrayList<>()), null);
+        InputStream in = partialCacheFile.openStream(0);
+        assertThat(partialCacheFile.isInUse()).isTrue();
+
+        partialCacheFile.delete();
+
+        assertThrows(IOException.class, () -> in.readNBytes(10));
+        assertThrows(IOException.class, () -> partialCacheFile.openStream(0));
+        in.close();
+        assertThat(partialCacheFile.isInUse()).isFalse();
+        try (var files = Files.list(tempDir)) {
+            assertThat(files.count()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    void idleFilesAreDiscardedLeastRecentlyReadFirst() throws Exception {
+        byte[] content = randomBytes(4 * BLOCK_SIZE);
+        Map<String, PartialCacheFile> partialFiles = new LinkedHashMap<>();
+        for (String name : List.of("a", "b", "c")) {
+            PartialCacheFile partialCacheFile = new PartialCacheFile(tempDir.resolve(name), content.length, CRC, BLOCK_SIZE, recordingFetcher(content, new ArrayList<>()), null);
+            partialFiles.put(name, partialCacheFile);
+            readRange(partialCacheFile, 0, 10);
+            Thread.sleep(5);
+        }
+        long budget = 3L * content.length;
+
+        assertThat(PartialCacheFile.toDiscard(partialFiles, content.length, budget)).containsExactly("a");
+        assertThat(PartialCacheFile.toDiscard(partialFiles, 2L * content.length, budget)).containsExactly("a", "b").inOrder();
+        try (InputStream reading = partialFiles.get("a").openStream(0)) {
+            // A file that is being read is never discarded
+            assertThat(PartialCacheFile.toDiscard(partialFiles, content.length, budget)).containsExactly("b");
+            assertThat(PartialCacheFile.toDiscard(partialFiles, 3L * content.length, budget)).isNull();
+        }
+        assertThat(PartialCacheFile.toDiscard(partialFiles, 0, budget)).isEmpty();
+    }
+
+    @Test
+    void fileIsPromotedWhenAllBlocksArePresent() throws Exception {
+        byte[] content = randomBytes(3 * BLOCK_SIZE + 1);
+        Path target = tempDir.resolve("complete.tif");
+        AtomicInteger completions = new AtomicInteger();
+        PartialCacheFile partialCacheFile = new PartialCacheFile(target, content.length, crc32(content), BLOCK_SIZE,
+                recordingFetcher(content, new ArrayList<>()), completions::incrementAndGet);
+
+        readRange(partialCacheFile, 2 * BLOCK_SIZE, BLOCK_SIZE + 1);
+        assertThat(Files.exists(target)).isFalse();
+        readRange(partialCacheFile, 0, 2 * BLOCK_SIZE);
+
+        assertThat(partialCacheFile.isComplete()).isTrue();
+        assertThat(completions.get()).isEqualTo(1);
+        assertThat(Files.readAllBytes(target)).isEqualTo(content);
+        try (var files = Files.list(tempDir)) {
+            assertThat(files.count()).isEqualTo(1);
+        }
+        assertThat(readRange(partialCacheFile, 0, content.length)).isEqualTo(content);
+    }
+
+    @Test
+    void fileWithACorruptBlockIsNotPromoted() throws Exception {
+        byte[] content = randomBytes(3 * BLOCK_SIZE + 1);
+        byte[] corrupted = content.clone();
+        corrupted[BLOCK_SIZE + 7] ^= 1;
+        Path target = tempDir.resolve("corrupt.tif");
+        AtomicInteger completions = new AtomicInteger();
+        AtomicInteger mismatches = new AtomicInteger();
+        PartialCacheFile partialCacheFile = new PartialCacheFile(target, content.length, crc32(content), BLOCK_SIZE,
+                recordingFetcher(corrupted, new ArrayList<>()), completions::incrementAndGet, mismatches::incrementAndGet);
+
+        readRange(partialCacheFile, 0, 2 * BLOCK_SIZE);
+        assertThrows(IOException.class, () -> readRange(partialCacheFile, 2 * BLOCK_SIZE, BLOCK_SIZE + 1));
+
+        assertThat(partialCacheFile.isComplete()).isFalse();
+        assertThat(completions.get()).isEqualTo(0);
+        assertThat(mismatches.get()).isEqualTo(1);
+        assertThrows(IOException.class, () -> partialCacheFile.openStream(0));
+        try (var files = Files.list(tempDir)) {
+            assertThat(files.count()).isEqualTo(0);
+        }
+    }
+
+    private static long crc32(byte[] content) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        return crc32.getValue();
+    }
+
+    private static PartialCacheFile.BlockFetcher recordingFetcher(byte[] content, List<Long> fetchedStarts) {
+        return (start, end) -> {
+            fetchedStarts.add(start);
+            return new ByteArrayInputStream(slice(content, start, (int) (end - start + 1)));
+        };
+    }
+
+    private static byte[] readRange(PartialCacheFile partialCacheFile, long offset, int length) throws IOException {
+        try (InputStream in = partialCacheFile.openStream(offset)) {
+            return in.readNBytes(length);
+        }
+    }
+
+    private static byte[] slice(byte[] content, long offset, int length) {
+        byte[] bytes = new byte[length];
+        System.arraycopy(content, (int) offset, bytes, 0, length);
+        return bytes;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42L).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,105 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.northtech.dasscofileproxy.configuration.CacheNodeConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class PeerCacheClientTest {
+    private static final String SECRET = "shared-secret";
+    private HttpServer peer;
+    private String peerUrl;
+    private final List<String> rangeHeaders = new ArrayList<>();
+
+    @BeforeEach
+    void startPeer() throws Exception {
+        peer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        peer.createContext(PeerCacheClient.FILES_PATH, exchange -> {
+            String path = exchange.getRequestURI().getPath().substring(PeerCacheClient.FILES_PATH.length());
+            rangeHeaders.add(exchange.getRequestHeaders().getFirst("Range"));
+            if (!SECRET.equals(exchange.getRequestHeaders().getFirst(PeerCacheClient.SECRET_HEADER))) {
+                exchange.sendResponseHeaders(401, -1);
+            } else if (path.equals("/i/c/guid/slow.tif")) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(404, -1);
+            } else if (path.equals("/i/c/guid/image.tif")) {
+                byte[] body = "0123456789".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            exchange.close();
+        });
+        peer.start();
+        peerUrl = "http://localhost:" + peer.getAddress().getPort();
+    }
+
+    @AfterEach
+    void stopPeer() {
+        peer.stop(0);
+    }
+
+    @Test
+    void fetchesFromThePeerThatHasTheFile() throws Exception {
+        PeerCacheClient client = client(SECRET, List.of(peerUrl));
+
+        try (InputStream in = client.fetch("/i/c/guid/image.tif", 4)) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("456789");
+        }
+        assertThat(rangeHeaders).containsExactly("bytes=4-");
+    }
+
+    @Test
+    void fallsBackWhenNoPeerServesTheFile() throws Exception {
+        assertThat(client(SECRET, List.of(peerUrl)).fetch("/i/c/guid/missing.tif", 0)).isNull();
+        assertThat(client("wrong-secret", List.of(peerUrl)).fetch("/i/c/guid/image.tif", 0)).isNull();
+        assertThat(client(SECRET, List.of("http://localhost:1")).fetch("/i/c/guid/image.tif", 0)).isNull();
+    }
+
+    @Test
+    void slowPeersAreGivenUp() throws Exception {
+        PeerCacheClient client = client(SECRET, List.of(peerUrl));
+
+        long started = System.nanoTime();
+        assertThat(client.fetch("/i/c/guid/slow.tif", 0)).isNull();
+        assertThat(Duration.ofNanos(System.nanoTime() - started)).isLessThan(Duration.ofMillis(1500));
+    }
+
+    @Test
+    void onlyTheSharedSecretIsAuthorized() {
+        PeerCacheClient client = client(SECRET, List.of());
+        assertThat(client.isAuthorized(SECRET)).isTrue();
+        assertThat(client.isAuthorized("shared-secreT")).isFalse();
+        assertThat(client.isAuthorized(null)).isFalse();
+        assertThat(client("", List.of()).isAuthorized("")).isFalse();
+    }
+
+    private static PeerCacheClient client(String secret, List<String> peerUrls) {
+        CacheNodeConfig nodeConfig = new CacheNodeConfig("node-a", Duration.ofMillis(500), "http://node-a", secret, Duration.ofMillis(500));
+        return new PeerCacheClient(nodeConfig, null, new SimpleMeterRegistry()) {
+            @Override
+            List<String> peerUrlsWithFile(String assetPath) {
+                return peerUrls;
+            }
+        };
+    }
+}
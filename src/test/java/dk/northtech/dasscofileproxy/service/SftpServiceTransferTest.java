@@ -0,0 +1,141 @@
+package dk.northtech.dasscofileproxy.service;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import dk.northtech.dasscofileproxy.configuration.StorageConfig;
+import dk.northtech.dasscofileproxy.domain.AssetFull;
+import dk.northtech.dasscofileproxy.domain.DasscoFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SftpServiceTransferTest {
+    private static final String REMOTE_PATH = "/i/c/guid/";
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void remoteFilesAreNotDeletedWhenAnUploadFails() throws Exception {
+        ERDAClientTest.FakeErda erda = new ERDAClientTest.FakeErda();
+        erda.files.put(REMOTE_PATH + "removed.tif", new byte[1]);
+        List<File> files = List.of(write("a.tif"), write("b.tif"));
+        erda.failing.put(ERDAClient.remotePathOf(files.get(1), tempDir.toString(), REMOTE_PATH), new SftpException(ChannelSftp.SSH_FX_FAILURE, "Quota exceeded"));
+
+        assertThrows(RuntimeException.class, () -> sftpService().uploadShare(erda.client(2), files, tempDir.toString(), REMOTE_PATH));
+
+        assertThat(erda.deleted).isEmpty();
+        assertThat(erda.files).containsKey(REMOTE_PATH + "removed.tif");
+    }
+
+    @Test
+    void remoteFilesThatAreNotInTheShareAreDeletedOnceAllAreUploaded() throws Exception {
+        ERDAClientTest.FakeErda erda = new ERDAClientTest.FakeErda();
+        erda.files.put(REMOTE_PATH + "removed.tif", new byte[1]);
+        List<File> files = List.of(write("a.tif"), write("b.tif"));
+
+        sftpService().uploadShare(erda.client(2), files, tempDir.toString(), REMOTE_PATH);
+
+        assertThat(erda.deleted).containsExactly(REMOTE_PATH + "removed.tif");
+        assertThat(erda.files.keySet()).containsExactly(
+                ERDAClient.remotePathOf(files.get(0), tempDir.toString(), REMOTE_PATH),
+                ERDAClient.remotePathOf(files.get(1), tempDir.toString(), REMOTE_PATH));
+    }
+
+    @Test
+    void filesOfEachParentAreDownloadedIntoTheirOwnFolder() {
+        ERDAClientTest.FakeErda erda = new ERDAClientTest.FakeErda();
+        erda.files.put("/i/c/parent-1/a.tif", new byte[1]);
+        erda.files.put("/i/c/parent-2/sub/b.tif", new byte[1]);
+        List<String> lookedUp = Collections.synchronizedList(new ArrayList<>());
+        String sharePath = tempDir.resolve("share").toString();
+
+        List<ERDAClient.Download> downloads = sftpService(lookedUp).planParentDownloads(erda.client(2), sharePath, Set.of("parent-1", "parent-2"));
+
+        assertThat(downloads).containsExactly(
+                new ERDAClient.Download("/i/c/parent-1/a.tif", sharePath + "/parents/parent-1/a.tif"),
+                new ERDAClient.Download("/i/c/parent-2/sub/b.tif", sharePath + "/parents/parent-2/sub/b.tif"));
+        assertThat(lookedUp).containsExactly("parent-1", "parent-2");
+    }
+
+    @Test
+    void parentThatIsNotOnErdaFailsThePlan() {
+        ERDAClientTest.FakeErda erda = new ERDAClientTest.FakeErda();
+        erda.files.put("/i/c/parent-1/a.tif", new byte[1]);
+
+        assertThrows(RuntimeException.class, () -> sftpService(new ArrayList<>())
+                .planParentDownloads(erda.client(2), tempDir.toString(), Set.of("parent-1", "parent-2")));
+    }
+
+    private SFTPService sftpService() {
+        return sftpService(new ArrayList<>());
+    }
+
+    /**
+     * A service that finds every parent in institution i and collection c, and has no parent files in the cache.
+     */
+    private SFTPService sftpService(List<String> lookedUp) {
+        StorageConfig storageConfig = new StorageConfig(null, null, null, null, null, null, "/", 1, null, 2, 2);
+        AssetService assetService = new AssetService(null, null, null) {
+            @Override
+            public AssetFull getFullAsset(String guid) {
+                lookedUp.add(guid);
+                AssetFull asset = new AssetFull();
+                asset.asset_guid = guid;
+                asset.institution = "i";
+                asset.collection = "c";
+                return asset;
+            }
+        };
+        FileService fileService = new FileService(null, null, null, null, null, null, null) {
+            @Override
+            public List<DasscoFile> getSyncFilesByAssetGuid(String assetGuid) {
+                return List.of();
+            }
+        };
+        return new SFTPService(storageConfig, fileService, null, null, assetService, null, null, null, null, new UploadEverythingJournal());
+    }
+
+    private File write(String name) throws IOException {
+        return Files.writeString(tempDir.resolve(name), name).toFile();
+    }
+
+    /**
+     * A journal without entries, so every file is uploaded.
+     */
+    static class UploadEverythingJournal extends UploadJournal {
+        UploadEverythingJournal() {
+            super(null);
+        }
+
+        @Override
+        public UploadPlan plan(List<File> files, String remotePath, Function<File, String> remotePathOf, Map<String, Long> remoteSizes) {
+            return new UploadPlan(files, Set.of());
+        }
+
+        @Override
+        public void startUploads(Map<String, File> uploads, Set<File> resumed) {
+        }
+
+        @Override
+        public void confirmUploads(Collection<String> remotePaths) {
+        }
+
+        @Override
+        public void forget(Collection<String> remotePaths) {
+        }
+    }
+}
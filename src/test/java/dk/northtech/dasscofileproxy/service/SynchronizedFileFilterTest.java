@@ -0,0 +1,106 @@
+package dk.northtech.dasscofileproxy.service;
+
+import dk.northtech.dasscofileproxy.configuration.CacheConfig;
+import dk.northtech.dasscofileproxy.domain.DasscoFile;
+import dk.northtech.dasscofileproxy.domain.FileSyncStatus;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static dk.northtech.dasscofileproxy.service.SynchronizedFileFilter.AssetLookup.FILE;
+import static dk.northtech.dasscofileproxy.service.SynchronizedFileFilter.AssetLookup.THUMBNAIL;
+
+class SynchronizedFileFilterTest {
+    private final CacheInvalidationBusTest.RecordingBus bus = new CacheInvalidationBusTest.RecordingBus("node-b", Duration.ofMinutes(1));
+    private final SynchronizedFileFilter filter = new SynchronizedFileFilter(null,
+            new CacheConfig(5, Duration.ofSeconds(2), Duration.ofMinutes(1), 0.01, Duration.ofSeconds(30)), bus);
+
+    @Test
+    void lookupsAreLetThroughUntilTheFilterIsBuilt() {
+        assertThat(filter.isKnownAbsentPath("/inst/coll/guid/file.tif")).isFalse();
+        assertThat(filter.isKnownAbsentAsset("guid", FILE)).isFalse();
+        assertThat(filter.isKnownAbsentAsset("guid", THUMBNAIL)).isFalse();
+    }
+
+    @Test
+    void absentLookupsAreRemembered() {
+        filter.recordAbsentPath("/inst/coll/guid/missing.tif");
+        filter.recordAbsentAsset("missing-guid", FILE);
+
+        assertThat(filter.isKnownAbsentPath("/inst/coll/guid/missing.tif")).isTrue();
+        assertThat(filter.isKnownAbsentAsset("missing-guid", FILE)).isTrue();
+        assertThat(filter.isKnownAbsentPath("/inst/coll/guid/other.tif")).isFalse();
+    }
+
+    @Test
+    void absentAssetOfOneLookupIsNotAbsentForTheOther() {
+        // An asset with only a thumbnail has no file, but its thumbnail must still be found
+        filter.recordAbsentAsset("guid", FILE);
+
+        assertThat(filter.isKnownAbsentAsset("guid", FILE)).isTrue();
+        assertThat(filter.isKnownAbsentAsset("guid", THUMBNAIL)).isFalse();
+
+        filter.recordAbsentAsset("other-guid", THUMBNAIL);
+
+        assertThat(filter.isKnownAbsentAsset("other-guid", THUMBNAIL)).isTrue();
+        assertThat(filter.isKnownAbsentAsset("other-guid", FILE)).isFalse();
+    }
+
+    @Test
+    void synchronizingAFileForgetsThatItWasAbsent() {
+        filter.recordAbsentPath("/inst/coll/guid/file.tif");
+        filter.recordAbsentAsset("guid", FILE);
+        filter.recordAbsentAsset("guid", THUMBNAIL);
+
+        filter.addSynchronized(new DasscoFile(1L, "guid", "/inst/coll/guid/file.tif", 10, 0, FileSyncStatus.SYNCHRONIZED, "image/tiff", false));
+
+        assertThat(filter.isKnownAbsentPath("/inst/coll/guid/file.tif")).isFalse();
+        assertThat(filter.isKnownAbsentAsset("guid", FILE)).isFalse();
+    }
+
+    @Test
+    void assetSynchronizedOnAnotherInstanceIsLookedUpUntilTheNextRebuild() throws Exception {
+        filter.rebuild(0, files -> {
+        });
+        assertThat(filter.isKnownAbsentPath("/inst/coll/guid/file.tif")).isTrue();
+        assertThat(filter.isKnownAbsentAsset("guid", FILE)).isTrue();
+
+        bus.receive(CacheInvalidationBus.payloads("node-a", List.of("/inst/coll/guid/")).getFirst());
+
+        assertThat(filter.isKnownAbsentPath("/inst/coll/guid/file.tif")).isFalse();
+        assertThat(filter.isKnownAbsentAsset("guid", FILE)).isFalse();
+        assertThat(filter.isKnownAbsentPath("/inst/coll/other/file.tif")).isTrue();
+
+        // The next rebuild reads the new files from the file table
+        Thread.sleep(5);
+        filter.rebuild(1, files -> files.accept(file("guid", "/inst/coll/guid/file.tif")));
+        assertThat(filter.isKnownAbsentPath("/inst/coll/guid/file.tif")).isFalse();
+        assertThat(filter.isKnownAbsentPath("/inst/coll/guid/missing.tif")).isTrue();
+    }
+
+    @Test
+    void synchronizedAssetsArePublished() {
+        filter.addSynchronized(List.of(file("guid", "/inst/coll/guid/a.tif"), file("guid", "/inst/coll/guid/sub/b.tif"), file("guid-2", "/inst/coll/guid-2/c.tif")));
+        bus.flush();
+
+        List<List<String>> received = new ArrayList<>();
+        CacheInvalidationBusTest.RecordingBus other = new CacheInvalidationBusTest.RecordingBus("node-a", Duration.ZERO);
+        other.subscribe(received::add);
+        bus.payloads.forEach(other::receive);
+        assertThat(received).containsExactly(List.of("/inst/coll/guid/", "/inst/coll/guid-2/"));
+    }
+
+    @Test
+    void assetFolderIsTheFirstThreeElements() {
+        assertThat(SynchronizedFileFilter.assetFolder("/inst/coll/guid/sub/file.tif")).isEqualTo("/inst/coll/guid/");
+        assertThat(SynchronizedFileFilter.assetFolder("/inst/coll/guid/")).isEqualTo("/inst/coll/guid/");
+        assertThat(SynchronizedFileFilter.assetFolder("/inst/coll/")).isNull();
+    }
+
+    private static DasscoFile file(String assetGuid, String path) {
+        return new DasscoFile(1L, assetGuid, path, 10, 0, FileSyncStatus.SYNCHRONIZED, "image/tiff", false);
+    }
+}
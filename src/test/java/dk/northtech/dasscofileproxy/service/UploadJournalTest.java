@@ -0,0 +1,103 @@
+package dk.northtech.dasscofileproxy.service;
+
+import dk.northtech.dasscofileproxy.domain.UploadJournalEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import static com.google.common.truth.Truth.assertThat;
+
+class UploadJournalTest {
+    private static final String REMOTE_PATH = "/i/c/guid/image.tif";
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void fileWithTheRecordedModificationTimeIsNotRead() throws Exception {
+        File file = write("image.tif", "content");
+        // The CRC is wrong, so reading the file would make it changed
+        UploadJournalEntry entry = new UploadJournalEntry(REMOTE_PATH, file.length(), 0, file.lastModified());
+
+        assertThat(UploadJournal.state(entry, file.length(), file)).isEqualTo(UploadJournal.State.UNCHANGED);
+    }
+
+    @Test
+    void touchedFileIsComparedByCrc() throws Exception {
+        File file = write("image.tif", "content");
+        UploadJournalEntry entry = new UploadJournalEntry(REMOTE_PATH, file.length(), crc("content"), file.lastModified() - 1000);
+
+        assertThat(UploadJournal.state(entry, file.length(), file)).isEqualTo(UploadJournal.State.TOUCHED);
+
+        Files.writeString(file.toPath(), "CONTENT");
+        assertThat(UploadJournal.state(entry, file.length(), file)).isEqualTo(UploadJournal.State.CHANGED);
+    }
+
+    @Test
+    void fileIsChangedUnlessErdaHasItsSize() throws Exception {
+        File file = write("image.tif", "content");
+        UploadJournalEntry entry = new UploadJournalEntry(REMOTE_PATH, file.length(), crc("content"), file.lastModified());
+
+        assertThat(UploadJournal.state(entry, null, file)).isEqualTo(UploadJournal.State.CHANGED);
+        assertThat(UploadJournal.state(entry, file.length() - 1, file)).isEqualTo(UploadJournal.State.CHANGED);
+        assertThat(UploadJournal.state(null, file.length(), file)).isEqualTo(UploadJournal.State.CHANGED);
+    }
+
+    @Test
+    void fileOfAnotherSizeIsChanged() throws Exception {
+        File file = write("image.tif", "longer content");
+        UploadJournalEntry entry = new UploadJournalEntry(REMOTE_PATH, 7, crc("content"), file.lastModified());
+
+        assertThat(UploadJournal.state(entry, file.length(), file)).isEqualTo(UploadJournal.State.CHANGED);
+    }
+
+    @Test
+    void interruptedUploadOfTheSameContentIsResumable() throws Exception {
+        File file = write("image.tif", "content");
+        UploadJournalEntry entry = new UploadJournalEntry(REMOTE_PATH, file.length(), crc("content"), file.lastModified() - 1000, false);
+
+        assertThat(UploadJournal.state(entry, 3L, file)).isEqualTo(UploadJournal.State.RESUMABLE);
+        // Nothing to resume from
+        assertThat(UploadJournal.state(entry, 0L, file)).isEqualTo(UploadJournal.State.CHANGED);
+
+        Files.writeString(file.toPath(), "CONTENT");
+        assertThat(UploadJournal.state(entry, 3L, file)).isEqualTo(UploadJournal.State.CHANGED);
+    }
+
+    @Test
+    void partialFileOfAConfirmedUploadIsNotResumed() throws Exception {
+        File file = write("image.tif", "content");
+        UploadJournalEntry entry = new UploadJournalEntry(REMOTE_PATH, file.length(), crc("content"), file.lastModified());
+
+        assertThat(UploadJournal.state(entry, 3L, file)).isEqualTo(UploadJournal.State.CHANGED);
+    }
+
+    @Test
+    void unconfirmedUploadWithTheFullSizeIsRecordedAgain() throws Exception {
+        File file = write("image.tif", "content");
+        UploadJournalEntry entry = new UploadJournalEntry(REMOTE_PATH, file.length(), crc("content"), file.lastModified(), false);
+
+        assertThat(UploadJournal.state(entry, file.length(), file)).isEqualTo(UploadJournal.State.TOUCHED);
+    }
+
+    @Test
+    void remotePathsAreComparedWithoutRepeatedSlashes() {
+        assertThat(UploadJournal.normalize("/i/c/guid//sub/image.tif")).isEqualTo("/i/c/guid/sub/image.tif");
+    }
+
+    private File write(String name, String content) throws Exception {
+        Path path = tempDir.resolve(name);
+        Files.writeString(path, content);
+        return path.toFile();
+    }
+
+    private static long crc(String content) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(content.getBytes(StandardCharsets.UTF_8));
+        return crc32.getValue();
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -272,6 +273,46 @@ class RangeRequestHandlerTest {
         }
     }
 
+    @Test
+    void buildFileResponse_contentSource_usesSourceLengthAndStreamsFromOffset() throws IOException {
+        // The file on disk is not used when a content source is set, e.g. while the file is still downloading
+        RangeRequestHandler.FileResponseConfig config = new RangeRequestHandler.FileResponseConfig(new File("does-not-exist.bin"), "test.bin", "application/octet-stream")
+                .withContentSource(offset -> new ByteArrayInputStream(testContent, (int) offset, testContent.length - (int) offset), testContent.length)
+                .withRangeHeader("bytes=1000-1999");
+        try (Response response = RangeRequestHandler.buildFileResponse(config)) {
+            assertThat(response.getStatus()).isEqualTo(206);
+            assertThat(response.getHeaderString("Content-Length")).isEqualTo("1000");
+            assertThat(response.getHeaderString("Content-Range")).isEqualTo("bytes 1000-1999/" + testContent.length);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ((StreamingOutput) response.getEntity()).write(output);
+            assertThat(output.toByteArray()).isEqualTo(Arrays.copyOfRange(testContent, 1000, 2000));
+        }
+    }
+
+    @Test
+    void buildFileResponse_content_writesTheRangeInOneWrite() throws IOException {
+        // Small files are served from memory, the file on disk is not opened
+        RangeRequestHandler.FileResponseConfig config = new RangeRequestHandler.FileResponseConfig(new File("does-not-exist.bin"), "test.bin", "application/octet-stream")
+                .withContent(testContent)
+                .withRangeHeader("bytes=1000-1999");
+        try (Response response = RangeRequestHandler.buildFileResponse(config)) {
+            assertThat(response.getStatus()).isEqualTo(206);
+            assertThat(response.getHeaderString("Content-Length")).isEqualTo("1000");
+            assertThat(response.getHeaderString("Content-Range")).isEqualTo("bytes 1000-1999/" + testContent.length);
+            int[] writes = {0};
+            ByteArrayOutputStream output = new ByteArrayOutputStream() {
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    writes[0]++;
+                    super.write(b, off, len);
+                }
+            };
+            ((StreamingOutput) response.getEntity()).write(output);
+            assertThat(output.toByteArray()).isEqualTo(Arrays.copyOfRange(testContent, 1000, 2000));
+            assertThat(writes[0]).isEqualTo(1);
+        }
+    }
+
     // Tests for FileResponseConfig
 
     @Test